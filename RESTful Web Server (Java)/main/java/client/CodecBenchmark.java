@@ -0,0 +1,159 @@
+package client;
+
+import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import servlethelpers.LiftRide;
+import servlethelpers.LiftRideBinaryCodec;
+import servlethelpers.LiftRideCodec;
+import servlethelpers.LiftRideInput;
+import servlethelpers.LiftRideList;
+import servlethelpers.Message;
+
+/**
+ * Micro benchmark comparing reflective Gson, our hand-written LiftRideCodec, and our binary
+ * LiftRideBinaryCodec on the payloads the servlets encode and decode on every request. Each case
+ * reports the time and the bytes allocated per operation, measured with the JVM's per-thread
+ * allocation counter, followed by the size of its body in each format:
+ *
+ *   java -cp ... client.CodecBenchmark [iterations]
+ */
+public class CodecBenchmark {
+  private static final int DEF_ITERATIONS = 200000;
+  private static final int LIST_SIZE = 100;
+  private static final com.sun.management.ThreadMXBean threads =
+          (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  // results are accumulated here so the JIT can't drop the work being measured
+  private static long sink;
+
+  /**
+   * A single operation being measured
+   */
+  private interface Operation {
+    void run() throws IOException;
+  }
+
+  /**
+   * Runs our benchmark
+   * @param args optionally holds the number of iterations to run every case for
+   * @throws IOException never in practice, our output stream discards everything
+   */
+  public static void main(String[] args) throws IOException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEF_ITERATIONS;
+    Gson reflective = new Gson();
+    Gson codec = LiftRideCodec.gson();
+    OutputStream out = OutputStream.nullOutputStream();
+
+    LiftRide created = new LiftRide(123456, 4821, 12, 37, 215);
+    LiftRideList list = new LiftRideList();
+    for (int i = 1; i <= LIST_SIZE; i++) {
+      list.addRide(new LiftRide(i, 4821, 12, i % 40 + 1, i));
+    }
+    String message = "Invalid request body";
+    LiftRideInput ride = new LiftRideInput(4821, 12, 37, 215);
+    String input = codec.toJson(ride);
+    byte[] binaryInput = LiftRideBinaryCodec.encodeInput(ride);
+    String listJson = codec.toJson(list);
+    byte[] binaryList = encode(body -> LiftRideBinaryCodec.writeRideList(list, body));
+
+    System.out.printf("%-44s %12s %12s %12s%n", "case", "ns/op", "ops/s", "bytes/op");
+    run("GET /liftrides/{id} body (Gson)", iterations,
+        () -> out.write(reflective.toJson(created).getBytes(StandardCharsets.UTF_8)));
+    run("GET /liftrides/{id} body (codec)", iterations,
+        () -> LiftRideCodec.writeRide(created, out));
+    run("GET /liftrides/{id} body (binary)", iterations,
+        () -> LiftRideBinaryCodec.writeRide(created, out));
+    run("LiftRideList of " + LIST_SIZE + " body (Gson)", iterations / 10,
+        () -> out.write(reflective.toJson(list).getBytes(StandardCharsets.UTF_8)));
+    run("LiftRideList of " + LIST_SIZE + " body (codec)", iterations / 10,
+        () -> LiftRideCodec.writeRideList(list, out));
+    run("LiftRideList of " + LIST_SIZE + " body (binary)", iterations / 10,
+        () -> LiftRideBinaryCodec.writeRideList(list, out));
+    run("Message body (Gson)", iterations,
+        () -> out.write(reflective.toJson(new Message(message))
+                .getBytes(StandardCharsets.UTF_8)));
+    run("Message body (codec)", iterations,
+        () -> out.write(LiftRideCodec.message(message)));
+    run("POST /liftrides request (Gson)", iterations,
+        () -> sink += reflective.fromJson(new StringReader(input), LiftRideInput.class)
+                .getSkierID());
+    run("POST /liftrides request (codec)", iterations,
+        () -> sink += codec.fromJson(new StringReader(input), LiftRideInput.class).getSkierID());
+    run("POST /liftrides request (binary)", iterations,
+        () -> sink += LiftRideBinaryCodec.readInput(new ByteArrayInputStream(binaryInput))
+                .getSkierID());
+    run("LiftRideList of " + LIST_SIZE + " read by client (codec)", iterations / 10,
+        () -> sink += codec.fromJson(listJson, LiftRideList.class).getLastRideId());
+    run("LiftRideList of " + LIST_SIZE + " read by client (binary)", iterations / 10,
+        () -> sink += LiftRideBinaryCodec.readRideList(new ByteArrayInputStream(binaryList))
+                .getLastRideId());
+    System.out.println("(checksum " + sink + ")");
+
+    System.out.printf("%n%-44s %12s %12s%n", "body", "JSON bytes", "binary bytes");
+    System.out.printf("%-44s %12d %12d%n", "LiftRideInput", input.length(), binaryInput.length);
+    System.out.printf("%-44s %12d %12d%n", "LiftRide",
+            encode(body -> LiftRideCodec.writeRide(created, body)).length,
+            encode(body -> LiftRideBinaryCodec.writeRide(created, body)).length);
+    System.out.printf("%-44s %12d %12d%n", "LiftRideList of " + LIST_SIZE, listJson.length(),
+            binaryList.length);
+  }
+
+  /**
+   * A body being encoded into a stream
+   */
+  private interface Encoding {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Helper method that encodes a body in memory
+   * @param encoding is the body being encoded
+   * @return the encoded bytes
+   * @throws IOException never in practice, the body is encoded in memory
+   */
+  private static byte[] encode(Encoding encoding) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    encoding.writeTo(body);
+    return body.toByteArray();
+  }
+
+  /**
+   * Warms up and then measures one case, printing a line for it
+   * @param name is the String name of the case
+   * @param iterations is the number of times the case is run once warmed up
+   * @param op is the case being measured
+   * @throws IOException if an operation fails
+   */
+  private static void run(String name, int iterations, Operation op) throws IOException {
+    // warm up first so the case isn't measured while still being compiled
+    measure(op, iterations);
+    long[] result = measure(op, iterations);
+    double nanos = (double) result[0] / iterations;
+    System.out.printf("%-44s %12.1f %12.0f %12.1f%n", name, nanos, 1e9 / nanos,
+            (double) result[1] / iterations);
+  }
+
+  /**
+   * Runs an operation the given number of times
+   * @param op is the operation
+   * @param iterations is the number of times it is run
+   * @return the total ns taken and the total bytes allocated by this thread
+   * @throws IOException if the operation fails
+   */
+  private static long[] measure(Operation op, int iterations) throws IOException {
+    long threadID = Thread.currentThread().getId();
+    long startBytes = threads.getThreadAllocatedBytes(threadID);
+    long startTime = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      op.run();
+    }
+    long elapsed = System.nanoTime() - startTime;
+    return new long[] {elapsed, threads.getThreadAllocatedBytes(threadID) - startBytes};
+  }
+}
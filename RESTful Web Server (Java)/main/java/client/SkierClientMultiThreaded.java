@@ -19,13 +19,18 @@ public class SkierClientMultiThreaded {
   private static int requestsTimerSecs = 0;
   private static int port;
   private static String hostname;
+  private static int batchSize = 0;
+  private static boolean binary = false;
 
   /**
    * Entry point into our program that takes a set of command line arguments and sends
    * a large number of POST/GET requests to our server.
    * @param args is our command line arguments. It expects the arguments to be of form (in any order):
-   *            [-T desiredTestTime -t numThreads -s numSkiers -h hostname -p port -l numLifts].
-   *             testTime & numLifts are optional (defaults will be used)
+   *            [-T desiredTestTime -t numThreads -s numSkiers -h hostname -p port -l numLifts
+   *            -b batchSize -B].
+   *             testTime & numLifts are optional (defaults will be used), batchSize is optional
+   *             and sends that many lift rides per POST to /liftrides/batch when given, and -B
+   *             switches from JSON to the server's compact binary format
    * @throws NumberFormatException if the number of threads, skiers, port, lifts, or runs
    *                               could not be converted to an integer
    */
@@ -56,6 +61,12 @@ public class SkierClientMultiThreaded {
         case "-l":
           numLifts = Integer.parseInt(args[i+1]);
           break;
+        case "-b":
+          batchSize = Integer.parseInt(args[i+1]);
+          break;
+        case "-B":
+          binary = true;
+          break;
       }
     }
     // error check & run
@@ -85,6 +96,8 @@ public class SkierClientMultiThreaded {
       throw new IllegalArgumentException("Time must be a positive integer");
     } else if (hostname == null || port < 1) {
       throw new IllegalArgumentException("Invalid hostname or port");
+    } else if (batchSize < 0) {
+      throw new IllegalArgumentException("Batch size must not be negative");
     }
   }
 
@@ -149,7 +162,9 @@ public class SkierClientMultiThreaded {
     System.out.println("Total Requests/second GET: " + SkierClientThread.getTotalGets() / runtime);
     System.out.println("Total Requests/second POST:" + SkierClientThread.getTotalGets() / runtime);
     System.out.println("Total Run Time: " + runtime + " seconds");
-    System.out.println("Total requests/second: " + (totalReqs / runtime) + "\n---");
+    System.out.println("Total requests/second: " + (totalReqs / runtime));
+    System.out.println("Total lift rides written/second: "
+            + SkierClientThread.getTotalRides() / runtime + "\n---");
     printHistogram("POST", SkierClientThread.getPostHistogram(),
             SkierClientThread.getPostOverflow());
     printHistogram("GET", SkierClientThread.getGetHistogram(),
@@ -195,7 +210,7 @@ public class SkierClientMultiThreaded {
       int startSkierID = i * (numSkiers / numThreads) + 1;
       int endSkierID = startSkierID + (numSkiers / numThreads);
       SkierClientThread sct = new SkierClientThread(hostname, port, startSkierID, endSkierID,
-              startTime, endTime, numLifts);
+              startTime, endTime, numLifts, batchSize, binary);
       tids[i] = sct;
       sct.start();
     }
@@ -2,14 +2,22 @@ package client;
 
 import com.google.gson.Gson;
 import org.apache.log4j.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.Random;
 
+import servlethelpers.LiftRideBatchResult;
+import servlethelpers.LiftRideBinaryCodec;
+import servlethelpers.LiftRideCodec;
 import servlethelpers.LiftRideInput;
 import servlethelpers.LiftRideList;
 
@@ -26,13 +34,17 @@ public class SkierClientThread extends Thread {
   private final int liftStartTime;
   private final int liftEndTime;
   private final int numLifts;
+  private final int batchSize;
+  private final boolean binary;
+  private final String contentType;
   private final HttpClient client;
   private final String app_path = "/A3_war";
-  private final Gson gson = new Gson();
+  private final Gson gson = LiftRideCodec.gson();
   private static int FAILURE_COUNT = 0;
   private static int SUCCESS_COUNT = 0;
   private static int TOTAL_GET = 0;
   private static int TOTAL_POST = 0;
+  private static int TOTAL_RIDES = 0;
   private static final int[] POST_HISTOGRAM = new int[500];
   private static final int[] GET_HISTOGRAM = new int[500];
   private static int POST_OVERFLOW = 0;
@@ -49,9 +61,14 @@ public class SkierClientThread extends Thread {
    * @param liftStartTime is the integer lower bound for our lift ride time
    * @param liftEndTime is the integer upper bound for our lift ride time
    * @param numLifts is the total number of lifts available to choose from
+   * @param batchSize is the number of lift rides sent per POST to /liftrides/batch, or 0 to send
+   *                  each ride on its own to /liftrides
+   * @param binary is true to send and receive lift rides in the server's compact binary format
+   *               instead of JSON
    */
   public SkierClientThread(String hostname, int port, int firstSkierID, int lastSkierID,
-                           int liftStartTime, int liftEndTime, int numLifts) {
+                           int liftStartTime, int liftEndTime, int numLifts, int batchSize,
+                           boolean binary) {
     this.hostname = hostname;
     this.port = port;
     this.firstSkierID = firstSkierID;
@@ -59,6 +76,9 @@ public class SkierClientThread extends Thread {
     this.liftStartTime = liftStartTime;
     this.liftEndTime = liftEndTime;
     this.numLifts = numLifts;
+    this.batchSize = batchSize;
+    this.binary = binary;
+    this.contentType = binary ? LiftRideBinaryCodec.CONTENT_TYPE : "application/json";
     this.client = HttpClient.newBuilder()
             .version(HttpClient.Version.HTTP_2)
             .connectTimeout(Duration.ofSeconds(15))
@@ -72,27 +92,64 @@ public class SkierClientThread extends Thread {
   public void run() {
     // our threads run until main thread switches the done flag
     while (!SkierClientMultiThreaded.isDone()) {
-      int resortID = 1;
-      int skierID = getRandomNum(firstSkierID, lastSkierID);
-      int time = getRandomNum(liftStartTime, liftEndTime);
-      int liftId = getRandomNum(1, numLifts);
-
-      // json formatted data
-      String requestBody = gson.toJson(
-              new LiftRideInput(skierID, resortID, liftId, time));
-      int rideID = sendPostRequest(requestBody);
+      int rideID;
+      if (batchSize > 0) {
+        List<LiftRideInput> rides = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+          rides.add(randomRide());
+        }
+        rideID = sendBatchPostRequest(encode(rides));
+      } else {
+        rideID = sendPostRequest(encode(randomRide()));
+      }
       if (!SkierClientMultiThreaded.isDone()) { // check before running GET
         sendGetRequest(rideID);
       }
       }
   }
 
+  /**
+   * Helper method that makes up a lift ride for one of our skiers at a random lift and time
+   * @return the randomly filled LiftRideInput
+   */
+  private LiftRideInput randomRide() {
+    int resortID = 1;
+    int skierID = getRandomNum(firstSkierID, lastSkierID);
+    int time = getRandomNum(liftStartTime, liftEndTime);
+    int liftId = getRandomNum(1, numLifts);
+    return new LiftRideInput(skierID, resortID, liftId, time);
+  }
+
+  /**
+   * Helper method that encodes the body of a POST request in our wire format
+   * @param ride is the LiftRideInput to be sent
+   * @return the encoded request body
+   */
+  private byte[] encode(LiftRideInput ride) {
+    if (binary) {
+      return LiftRideBinaryCodec.encodeInput(ride);
+    }
+    return gson.toJson(ride).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Helper method that encodes the body of a batch POST request in our wire format
+   * @param rides is the list of LiftRideInputs to be sent
+   * @return the encoded request body
+   */
+  private byte[] encode(List<LiftRideInput> rides) {
+    if (binary) {
+      return LiftRideBinaryCodec.encodeInputs(rides);
+    }
+    return gson.toJson(rides).getBytes(StandardCharsets.UTF_8);
+  }
+
   /**
    * Helper method that handles issuing the POST request to the servlet and logging the response.
-   * @param jsonPostBody is the JSON formatted LiftRideInput that will be created in the database
+   * @param postBody is the encoded LiftRideInput that will be created in the database
    * @return the integer ID of the Lift Ride that was created in our database or -1 if it failed
    */
-  private int sendPostRequest(String jsonPostBody) {
+  private int sendPostRequest(byte[] postBody) {
     long startTime = System.currentTimeMillis();
     String uriBuilt = "http://" + hostname + app_path + "/liftrides";
     URI uri = URI.create(uriBuilt);
@@ -100,21 +157,23 @@ public class SkierClientThread extends Thread {
 
     try {
       HttpRequest request = HttpRequest.newBuilder()
-              .POST(HttpRequest.BodyPublishers.ofString(jsonPostBody))
+              .POST(HttpRequest.BodyPublishers.ofByteArray(postBody))
               .uri(uri)
-              .setHeader("Content-Type", "application/json")
+              .setHeader("Content-Type", contentType)
+              .setHeader("Accept", contentType)
               .setHeader("Authorization", basicAuth("admin", "admin"))
               .build();
-      HttpResponse<String> response = client.send(request,
-              HttpResponse.BodyHandlers.ofString());
+      HttpResponse<byte[]> response = client.send(request,
+              HttpResponse.BodyHandlers.ofByteArray());
 
       if (response.statusCode() == 201) {
         incSuccess();
+        incRides(1);
         // pull out the lift ride ID that was returned
-        rideID = gson.fromJson(response.body(), LiftRideList.class).getLastRideId();
+        rideID = readRideList(response.body()).getLastRideId();
       } else {
         incFail();
-        log.debug("POST: " + response.body());
+        log.debug("POST: " + new String(response.body(), StandardCharsets.UTF_8));
       }
     } catch (Exception ex) {
       incFail();
@@ -125,6 +184,78 @@ public class SkierClientThread extends Thread {
     return rideID;
   }
 
+  /**
+   * Helper method that handles issuing a batch POST request to the servlet and logging the
+   * response. The request counts as successful if every ride in it was written.
+   * @param postBody is the encoded list of LiftRideInputs that will be created in the database
+   * @return the integer ID of the last Lift Ride that was created in our database or -1 if none
+   */
+  private int sendBatchPostRequest(byte[] postBody) {
+    long startTime = System.currentTimeMillis();
+    String uriBuilt = "http://" + hostname + app_path + "/liftrides/batch";
+    URI uri = URI.create(uriBuilt);
+    int rideID = -1;
+
+    try {
+      HttpRequest request = HttpRequest.newBuilder()
+              .POST(HttpRequest.BodyPublishers.ofByteArray(postBody))
+              .uri(uri)
+              .setHeader("Content-Type", contentType)
+              .setHeader("Accept", contentType)
+              .setHeader("Authorization", basicAuth("admin", "admin"))
+              .build();
+      HttpResponse<byte[]> response = client.send(request,
+              HttpResponse.BodyHandlers.ofByteArray());
+
+      if (response.statusCode() == 200) {
+        LiftRideBatchResult result = readBatchResult(response.body());
+        incRides(result.getSuccessCount());
+        if (result.getSuccessCount() == batchSize) {
+          incSuccess();
+        } else {
+          incFail();
+          log.debug("POST: " + new String(response.body(), StandardCharsets.UTF_8));
+        }
+        rideID = result.getLastRideId();
+      } else {
+        incFail();
+        log.debug("POST: " + new String(response.body(), StandardCharsets.UTF_8));
+      }
+    } catch (Exception ex) {
+      incFail();
+      log.debug("POST: " + ex.getMessage());
+    }
+    updateHistogram("POST", (int) (System.currentTimeMillis() - startTime));
+    incPost();
+    return rideID;
+  }
+
+  /**
+   * Helper method that decodes the LiftRideList in a response body
+   * @param body is the response body
+   * @return the LiftRideList held in the body
+   * @throws IOException if the body is not a valid binary LiftRideList
+   */
+  private LiftRideList readRideList(byte[] body) throws IOException {
+    if (binary) {
+      return LiftRideBinaryCodec.readRideList(new ByteArrayInputStream(body));
+    }
+    return gson.fromJson(new String(body, StandardCharsets.UTF_8), LiftRideList.class);
+  }
+
+  /**
+   * Helper method that decodes the LiftRideBatchResult in a response body
+   * @param body is the response body
+   * @return the LiftRideBatchResult held in the body
+   * @throws IOException if the body is not a valid binary LiftRideBatchResult
+   */
+  private LiftRideBatchResult readBatchResult(byte[] body) throws IOException {
+    if (binary) {
+      return LiftRideBinaryCodec.readBatchResult(new ByteArrayInputStream(body));
+    }
+    return gson.fromJson(new String(body, StandardCharsets.UTF_8), LiftRideBatchResult.class);
+  }
+
   /**
    * Helper method that handles issuing the GET request to the servlet and logging the response.
    * @param rideID is the integer ID of the lift ride we are querying
@@ -142,7 +273,7 @@ public class SkierClientThread extends Thread {
         HttpRequest request = HttpRequest.newBuilder()
                 .GET()
                 .uri(uri)
-                .setHeader("Content-Type", "application/json")
+                .setHeader("Accept", contentType)
                 .build();
         HttpResponse<String> response = client.send(request,
                 HttpResponse.BodyHandlers.ofString());
@@ -235,6 +366,21 @@ public class SkierClientThread extends Thread {
     TOTAL_POST++;
   }
 
+  /**
+   * Adds to our global counter holding the total number of lift rides written
+   * @param rides is the number of lift rides a POST wrote
+   */
+  synchronized private void incRides(int rides) {
+    TOTAL_RIDES += rides;
+  }
+
+  /**
+   * Returns the total number of lift rides written, whether sent alone or in batches
+   */
+  synchronized public static int getTotalRides() {
+    return TOTAL_RIDES;
+  }
+
   /**
    * Returns the total number of GET requests issued
    */
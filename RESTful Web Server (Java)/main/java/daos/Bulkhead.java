@@ -0,0 +1,144 @@
+package daos;
+
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import servlethelpers.LatencyHistogram;
+import servlethelpers.ServerMetrics;
+import servlethelpers.ServerProperties;
+
+/**
+ * One of the compartments our database-bound work is split into, so that one kind of traffic
+ * saturating its share can't starve the others: WRITES for ingesting lift rides, POINT_READS for
+ * single lift ride lookups, and SCANS for lift ride lists and resort loads.
+ * Every compartment has its own DAOExecutor (with its own threads, queue and ConcurrencyLimiter)
+ * and its own share of every connection pool. A thread running a compartment's work may only
+ * hold as many connections from a pool as the compartment's share of that pool's
+ * DB_POOL_MAX_TOTAL, and waits on its own compartment (not the shared pool) once it has them all.
+ * Shares are percentages set through DB_POOL_[NAME]_SHARE (40 for writes and point reads, 20 for
+ * scans by default) and may add up to more than 100 to let compartments overlap. Executors are
+ * sized to their share of every pool by default, tuned through DAO_[NAME]_THREADS and
+ * DAO_[NAME]_QUEUE_SIZE, with [NAME] being WRITE, POINT_READ or SCAN.
+ * Work run outside of any compartment (e.g. reloading the resort catalog in the background) is
+ * not limited. Each compartment's connections in use, connection waits and connection timeouts
+ * are reported through ServerMetrics, labeled with the compartment's name.
+ */
+public class Bulkhead {
+  private static final ThreadLocal<Bulkhead> current = new ThreadLocal<>();
+  public static final Bulkhead WRITES = new Bulkhead("write", "WRITE", 40);
+  public static final Bulkhead POINT_READS = new Bulkhead("point_read", "POINT_READ", 40);
+  public static final Bulkhead SCANS = new Bulkhead("scan", "SCAN", 20);
+  private final String name;
+  private final int poolShare;
+  private final DAOExecutor executor;
+  private final AtomicInteger connectionsInUse = new AtomicInteger();
+  private final LongAdder connectionTimeouts = new LongAdder();
+  private final LatencyHistogram connectionWaits;
+
+  /**
+   * Constructs a compartment from the server properties, starting its executor and registering
+   * its metrics
+   * @param name is the String name our metrics are labeled with
+   * @param property is the String name used in the compartment's properties
+   * @param defaultShare is the default percentage of every pool the compartment may use
+   */
+  private Bulkhead(String name, String property, int defaultShare) {
+    this.name = name;
+    this.poolShare = Math.max(1, Math.min(100,
+            ServerProperties.getInt("DB_POOL_" + property + "_SHARE", defaultShare)));
+    int numThreads = ServerProperties.getInt("DAO_" + property + "_THREADS",
+            Math.max(1, DBCPDataSource.getMaxTotal() * poolShare / 100));
+    int queueSize = ServerProperties.getInt("DAO_" + property + "_QUEUE_SIZE", 10000);
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    connectionWaits = metrics.histogram("bulkhead_connection_wait_micros", "bulkhead", name);
+    metrics.registerGauge(ServerMetrics.labeled("bulkhead_connections_in_use", "bulkhead", name),
+            connectionsInUse::get);
+    metrics.registerCounter(ServerMetrics.labeled("bulkhead_connection_timeouts_total",
+            "bulkhead", name), connectionTimeouts::sum);
+    this.executor = new DAOExecutor(this, numThreads, queueSize);
+  }
+
+  /**
+   * Finds the compartment whose work the calling thread is running
+   * @return the Bulkhead of the calling thread, or null if it runs outside of any compartment
+   */
+  public static Bulkhead current() {
+    return current.get();
+  }
+
+  /**
+   * Marks the calling thread as running this compartment's work from now on, for threads that
+   * are dedicated to one compartment (e.g. our writer threads)
+   */
+  public void bind() {
+    current.set(this);
+  }
+
+  /**
+   * Simple getter for the name our metrics are labeled with
+   * @return the String name of this compartment
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Simple getter for the executor that runs this compartment's work
+   * @return the DAOExecutor of this compartment
+   */
+  public DAOExecutor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Creates this compartment's share of a connection pool
+   * @param maxTotal is the number of connections the pool can hand out at once
+   * @return the Semaphore holding a permit for every connection this compartment may hold
+   */
+  Semaphore createPermits(int maxTotal) {
+    return new Semaphore(Math.max(1, maxTotal * poolShare / 100));
+  }
+
+  /**
+   * Takes one of this compartment's connections from a pool, waiting for one of its other
+   * connections to be handed back if it holds its whole share
+   * @param permits is the Semaphore created by createPermits for the pool
+   * @param maxWaitMillis is the longest time (in ms) to wait, negative to wait indefinitely
+   * @throws SQLException if no connection was handed back in time or the wait was interrupted
+   */
+  void acquireConnection(Semaphore permits, long maxWaitMillis) throws SQLException {
+    if (!permits.tryAcquire()) {
+      long startTime = System.nanoTime();
+      boolean acquired;
+      try {
+        if (maxWaitMillis < 0) {
+          permits.acquire();
+          acquired = true;
+        } else {
+          acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted waiting for a " + name + " connection", e);
+      }
+      connectionWaits.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+      if (!acquired) {
+        connectionTimeouts.increment();
+        throw new SQLException("Timed out waiting for a " + name + " connection");
+      }
+    }
+    connectionsInUse.incrementAndGet();
+  }
+
+  /**
+   * Hands back a connection taken with acquireConnection
+   * @param permits is the Semaphore the connection was taken from
+   */
+  void releaseConnection(Semaphore permits) {
+    connectionsInUse.decrementAndGet();
+    permits.release();
+  }
+}
@@ -0,0 +1,307 @@
+package daos;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import servlethelpers.LiftRide;
+import servlethelpers.LiftRideInput;
+import servlethelpers.LiftRideList;
+import servlethelpers.Resort;
+import servlethelpers.ResortList;
+import servlethelpers.ServerProperties;
+
+/**
+ * An in-process StorageEngine that keeps lift rides in columns of primitive ints (one array each
+ * for skier, resort, lift and time) instead of in a database, selected with STORAGE_ENGINE=memory.
+ * Nothing is persisted, so it is meant for running the server without MySQL and for trying out
+ * how fast the layers above the storage can go.
+ * RideIDs are handed out densely from 1, so a ride's offset in the columns is its rideID - 1 and
+ * looking a ride up costs no search at all. Every skier has a posting list of the offsets of
+ * their rides, in ascending order, so a skier's rides are found without a scan.
+ * Rides are appended under a single lock and published with a volatile write of our size, so
+ * reads never lock and streaming rides hands the columns' ints straight to the handler without
+ * creating an object per ride. Our resorts are set with STORAGE_RESORTS as a comma separated list
+ * of id:name entries, the ones created by upicDB.txt by default.
+ */
+public class ColumnarStorageEngine implements StorageEngine {
+  private static final int INITIAL_CAPACITY = 1 << 16;
+  private static final int INITIAL_POSTING_CAPACITY = 8;
+  private static final String DEFAULT_RESORTS =
+          "1:Blue-Hills,2:Nashoba,3:Wachusett,4:Catamount,5:Jiminy-Peak";
+  private final Map<Integer, Posting> skierIndex = new ConcurrentHashMap<>();
+  private final Resort[] resorts;
+  // guarded by this
+  private final Map<String, Integer> requestKeys = new HashMap<>();
+  // replaced (never modified past our size) when the columns grow
+  private volatile Columns columns = new Columns(INITIAL_CAPACITY);
+  // written last by every append, so a reader seeing a size sees every ride below it
+  private volatile int size;
+
+  /**
+   * Our columns of ride data, indexed by offset
+   */
+  private static class Columns {
+    private final int[] skier;
+    private final int[] resort;
+    private final int[] lift;
+    private final int[] time;
+
+    private Columns(int capacity) {
+      this.skier = new int[capacity];
+      this.resort = new int[capacity];
+      this.lift = new int[capacity];
+      this.time = new int[capacity];
+    }
+
+    /**
+     * Copies our columns into columns twice as large
+     * @param size is the number of rides held
+     * @return the larger Columns
+     */
+    private Columns grow(int size) {
+      Columns grown = new Columns(skier.length * 2);
+      System.arraycopy(skier, 0, grown.skier, 0, size);
+      System.arraycopy(resort, 0, grown.resort, 0, size);
+      System.arraycopy(lift, 0, grown.lift, 0, size);
+      System.arraycopy(time, 0, grown.time, 0, size);
+      return grown;
+    }
+  }
+
+  /**
+   * The offsets of one skier's rides in ascending order, appended to under our lock and read
+   * without it the same way as our columns
+   */
+  private static class Posting {
+    private volatile int[] offsets = new int[INITIAL_POSTING_CAPACITY];
+    private volatile int count;
+
+    /**
+     * Appends the offset of the skier's newest ride
+     * @param offset is the offset of the ride in our columns
+     */
+    private void add(int offset) {
+      int[] current = offsets;
+      if (count == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+        offsets = current;
+      }
+      current[count] = offset;
+      count++;
+    }
+  }
+
+  /**
+   * Constructs an empty store holding the resorts found in the server properties
+   * @throws IllegalArgumentException if STORAGE_RESORTS is not a list of id:name entries
+   */
+  public ColumnarStorageEngine() throws IllegalArgumentException {
+    String[] entries = ServerProperties.getString("STORAGE_RESORTS", DEFAULT_RESORTS).split(",");
+    resorts = new Resort[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      String[] idName = entries[i].trim().split(":", 2);
+      if (idName.length != 2) {
+        throw new IllegalArgumentException("Invalid STORAGE_RESORTS entry " + entries[i]);
+      }
+      resorts[i] = new Resort(idName[1], Integer.parseInt(idName[0]));
+    }
+  }
+
+  /**
+   * Takes a specific integer ride ID and returns a Lift Ride object representing that ride
+   * @param rideID is the integer ID of the lift ride to be returned
+   * @return a Lift Ride object representing the given rideID or null if not found
+   */
+  @Override
+  public LiftRide getLiftRide(int rideID) {
+    int offset = rideID - 1;
+    if (offset < 0 || offset >= size) {
+      return null;
+    }
+    Columns data = columns;
+    return new LiftRide(rideID, data.skier[offset], data.resort[offset], data.lift[offset],
+            data.time[offset]);
+  }
+
+  /**
+   * Takes a skierID and returns a LiftRideList of all lift rides for that skier ID
+   * @param skierID an integer ID for the skier
+   * @return a LiftRideList containing all lift rides for that skier ID
+   */
+  @Override
+  public LiftRideList getSkierRides(int skierID) {
+    return collect(skierID);
+  }
+
+  /**
+   * Gets all lift rides and returns them as a LiftRideList
+   * @return a LiftRideList of all lift rides for all skiers
+   */
+  @Override
+  public LiftRideList getAllLiftRides() {
+    return collect(null);
+  }
+
+  /**
+   * Helper method for getSkierRides and getAllLiftRides that collects streamed rides into a list
+   * @param skierID is the ID of the skier whose rides are collected or null for all skiers
+   * @return a LiftRideList of the collected rides
+   */
+  private LiftRideList collect(Integer skierID) {
+    LiftRideList rideList = new LiftRideList();
+    try {
+      streamLiftRides(skierID, 0, 0, (rideID, skier, resort, lift, time) ->
+              rideList.addRide(new LiftRide(rideID, skier, resort, lift, time)));
+    } catch (IOException e) {
+      // adding to a list never throws
+      throw new UncheckedIOException(e);
+    }
+    return rideList;
+  }
+
+  /**
+   * Streams lift rides in ascending rideID order straight from our columns
+   * @param skierID is the ID of the skier whose rides are streamed or null for all skiers
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param limit is the maximum number of rides to stream, 0 for no limit
+   * @param handler is called once for every lift ride read
+   * @return true, reading from memory can't fail
+   * @throws IOException if the handler failed writing a ride out
+   */
+  @Override
+  public boolean streamLiftRides(Integer skierID, int afterID, int limit, LiftRideHandler handler)
+          throws IOException {
+    if (skierID == null) {
+      streamAllRides(afterID, limit, handler);
+    } else {
+      streamSkierRides(skierID, afterID, limit, handler);
+    }
+    return true;
+  }
+
+  /**
+   * Helper method for streamLiftRides that streams a page of every skier's rides
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param limit is the maximum number of rides to stream, 0 for no limit
+   * @param handler is called once for every lift ride read
+   */
+  private void streamAllRides(int afterID, int limit, LiftRideHandler handler) throws IOException {
+    int end = size;
+    Columns data = columns;
+    // rideIDs above afterID start at offset afterID
+    int start = Math.max(0, afterID);
+    if (limit > 0) {
+      end = (int) Math.min(end, (long) start + limit);
+    }
+    for (int offset = start; offset < end; offset++) {
+      handler.accept(offset + 1, data.skier[offset], data.resort[offset], data.lift[offset],
+              data.time[offset]);
+    }
+  }
+
+  /**
+   * Helper method for streamLiftRides that streams a page of one skier's rides through their
+   * posting list
+   * @param skierID is the ID of the skier whose rides are streamed
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param limit is the maximum number of rides to stream, 0 for no limit
+   * @param handler is called once for every lift ride read
+   */
+  private void streamSkierRides(int skierID, int afterID, int limit, LiftRideHandler handler)
+          throws IOException {
+    Posting posting = skierIndex.get(skierID);
+    if (posting == null) {
+      return;
+    }
+    // read in this order, the offsets seen are never past the columns seen
+    int count = posting.count;
+    int[] offsets = posting.offsets;
+    Columns data = columns;
+    int index = Arrays.binarySearch(offsets, 0, count, afterID);
+    // offsets are rideIDs - 1, so a hit is the ride with rideID afterID + 1
+    int start = index >= 0 ? index : -index - 1;
+    int end = limit > 0 ? (int) Math.min(count, (long) start + limit) : count;
+    for (int i = start; i < end; i++) {
+      int offset = offsets[i];
+      handler.accept(offset + 1, data.skier[offset], data.resort[offset], data.lift[offset],
+              data.time[offset]);
+    }
+  }
+
+  /**
+   * Appends a new lift ride to our columns, or finds the ride already stored under its
+   * idempotency key
+   * @param newLiftRide is the Lift Ride object holding the data to be added
+   * @return the integer rideID of the stored (or previously stored) ride
+   */
+  @Override
+  public synchronized int createLiftRide(LiftRideInput newLiftRide) {
+    String requestKey = newLiftRide.getRequestKey();
+    if (requestKey != null) {
+      Integer existing = requestKeys.get(requestKey);
+      if (existing != null) {
+        newLiftRide.setDuplicate(true);
+        return existing;
+      }
+    }
+    int offset = size;
+    Columns data = columns;
+    if (offset == data.skier.length) {
+      if (offset == Integer.MAX_VALUE - 1) {
+        return -1;
+      }
+      data = data.grow(offset);
+      columns = data;
+    }
+    data.skier[offset] = newLiftRide.getSkierID();
+    data.resort[offset] = newLiftRide.getResortID();
+    data.lift[offset] = newLiftRide.getLiftID();
+    data.time[offset] = newLiftRide.getTime();
+    skierIndex.computeIfAbsent(newLiftRide.getSkierID(), skier -> new Posting()).add(offset);
+    int rideID = offset + 1;
+    if (requestKey != null) {
+      requestKeys.put(requestKey, rideID);
+    }
+    size = offset + 1;
+    return rideID;
+  }
+
+  /**
+   * Appends a list of new lift rides to our columns, all under one hold of our lock
+   * @param newLiftRides is the list of Lift Ride objects holding the data to be added
+   * @return the rideIDs in the same order as the given list
+   */
+  @Override
+  public synchronized int[] createLiftRides(List<LiftRideInput> newLiftRides) {
+    int[] ids = new int[newLiftRides.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = createLiftRide(newLiftRides.get(i));
+    }
+    return ids;
+  }
+
+  /**
+   * Returns a ResortList object filled with the resorts set at startup
+   * @return a new ResortList of our resorts
+   */
+  @Override
+  public ResortList getResortList() {
+    ResortList list = new ResortList();
+    for (Resort resort : resorts) {
+      list.addResort(resort);
+    }
+    return list;
+  }
+
+  /**
+   * @return the number of lift rides stored
+   */
+  public int getSize() {
+    return size;
+  }
+}
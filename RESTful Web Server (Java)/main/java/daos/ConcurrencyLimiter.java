@@ -0,0 +1,194 @@
+package daos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import servlethelpers.ServerMetrics;
+import servlethelpers.ServerProperties;
+
+/**
+ * Our adaptive admission control for database-bound work. Only as many requests as our current
+ * limit are let through at once, and the rest are turned away right away (to be answered with a
+ * 503) instead of queueing on the executor and the connection pools until every request is slow.
+ * The limit follows the latency of the work it admits, in the style of a gradient limiter: the
+ * average latency of the last 100ms window is compared against a long-term average, and the limit
+ * shrinks in proportion while latency rises above the long-term average (beyond a tolerance) and
+ * grows by about its square root while latency holds steady. Work that fails or times out cuts
+ * the limit by a tenth, like the multiplicative decrease of AIMD.
+ * Configured through ADMISSION_LIMITER (on by default), ADMISSION_INITIAL_LIMIT,
+ * ADMISSION_MIN_LIMIT, ADMISSION_MAX_LIMIT, ADMISSION_RTT_TOLERANCE (1.5 by default) and
+ * ADMISSION_RETRY_AFTER_SECS (1 by default), the Retry-After rejected clients are told to wait.
+ * Its limit, in-flight count, average latency, rejections and drops are reported through
+ * ServerMetrics.
+ */
+public class ConcurrencyLimiter {
+  private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int MIN_WINDOW_SAMPLES = 10;
+  // in windows, the long-term average moves slowly so it remembers what healthy latency looks like
+  private static final double LONG_WINDOWS = 600;
+  private static final double SMOOTHING = 0.2;
+  private static final double MIN_GRADIENT = 0.5;
+  private static final double DROP_FACTOR = 0.9;
+  private final boolean enabled;
+  private final int minLimit;
+  private final int maxLimit;
+  private final double tolerance;
+  private final long retryAfterSecs;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder rejections = new LongAdder();
+  private final LongAdder drops = new LongAdder();
+  private volatile int limit;
+  // guarded by this
+  private double estimatedLimit;
+  private double shortRtt;
+  private double longRtt;
+  private long windowStart = System.nanoTime();
+  private long windowRtt;
+  private int windowSamples;
+  private int windowMaxInFlight;
+
+  /**
+   * Constructs our limiter from the server properties and registers its metrics
+   * @param name is the String name our metrics are labeled with
+   * @param concurrency is the number of requests the guarded work can actually run at once
+   *                    (e.g. its threads), which our limits default to multiples of
+   */
+  public ConcurrencyLimiter(String name, int concurrency) {
+    this.enabled = ServerProperties.getBoolean("ADMISSION_LIMITER", true);
+    // admitting fewer than can run at once would only leave threads idle
+    this.minLimit = Math.max(1, ServerProperties.getInt("ADMISSION_MIN_LIMIT", concurrency));
+    this.maxLimit = Math.max(minLimit,
+            ServerProperties.getInt("ADMISSION_MAX_LIMIT", 10 * concurrency));
+    this.tolerance = Math.max(1, ServerProperties.getDouble("ADMISSION_RTT_TOLERANCE", 1.5));
+    this.retryAfterSecs = Math.max(1, ServerProperties.getLong("ADMISSION_RETRY_AFTER_SECS", 1));
+    this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit,
+            ServerProperties.getInt("ADMISSION_INITIAL_LIMIT", 2 * concurrency)));
+    this.limit = (int) estimatedLimit;
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    metrics.registerGauge(ServerMetrics.labeled("admission_limit", "limiter", name),
+            this::getLimit);
+    metrics.registerGauge(ServerMetrics.labeled("admission_in_flight", "limiter", name),
+            this::getInFlight);
+    metrics.registerGauge(ServerMetrics.labeled("admission_latency_micros", "limiter", name),
+            this::getLatencyMicros);
+    metrics.registerCounter(ServerMetrics.labeled("admission_rejections_total", "limiter", name),
+            rejections::sum);
+    metrics.registerCounter(ServerMetrics.labeled("admission_drops_total", "limiter", name),
+            drops::sum);
+  }
+
+  /**
+   * Admits a request if we are under our current limit. Every admitted request must be handed
+   * back with release or releaseDropped once its work is done.
+   * @return true if the request was admitted, false if it should be rejected
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (enabled && current >= limit) {
+        rejections.increment();
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Hands back an admitted request whose work succeeded, adapting our limit to its latency
+   * @param startTime is the System.nanoTime when the request was admitted
+   */
+  public void release(long startTime) {
+    int current = inFlight.getAndDecrement();
+    if (enabled) {
+      adapt(System.nanoTime() - startTime, current);
+    }
+  }
+
+  /**
+   * Hands back an admitted request whose work failed or timed out, which is taken as a sign that
+   * we are already admitting more than the database can keep up with
+   */
+  public void releaseDropped() {
+    inFlight.decrementAndGet();
+    drops.increment();
+    if (enabled) {
+      synchronized (this) {
+        estimatedLimit = Math.max(minLimit, estimatedLimit * DROP_FACTOR);
+        limit = (int) estimatedLimit;
+      }
+    }
+  }
+
+  /**
+   * Helper method for release that takes a latency sample into account. Samples are averaged over
+   * short windows, and the limit is adapted once per window rather than once per request, so how
+   * fast it moves doesn't depend on how busy we are.
+   * @param rtt is the latency (in ns) of the request being released
+   * @param inFlightAtRelease is the number of requests in flight, including this one
+   */
+  private synchronized void adapt(long rtt, int inFlightAtRelease) {
+    windowRtt += rtt;
+    windowSamples++;
+    windowMaxInFlight = Math.max(windowMaxInFlight, inFlightAtRelease);
+    long now = System.nanoTime();
+    if (windowSamples < MIN_WINDOW_SAMPLES || now - windowStart < WINDOW_NANOS) {
+      return;
+    }
+    double sample = (double) windowRtt / windowSamples;
+    int maxInFlight = windowMaxInFlight;
+    windowStart = now;
+    windowRtt = 0;
+    windowSamples = 0;
+    windowMaxInFlight = 0;
+    if (longRtt == 0) {
+      longRtt = sample;
+    }
+    shortRtt = sample;
+    longRtt += (sample - longRtt) / LONG_WINDOWS;
+    // under sustained overload the long-term average creeps up, so once latency recovers well
+    // below it, pull it back down quickly rather than over the next LONG_WINDOWS windows
+    if (longRtt > 2 * shortRtt) {
+      longRtt *= 0.95;
+    }
+    // latency says nothing about a higher limit when we weren't using most of the current one
+    if (maxInFlight < estimatedLimit / 2) {
+      return;
+    }
+    double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, tolerance * longRtt / shortRtt));
+    double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+    newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+    estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    limit = (int) estimatedLimit;
+  }
+
+  /**
+   * @return the number of requests we currently admit at once
+   */
+  public long getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return the number of admitted requests that have not been released yet
+   */
+  public long getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * @return the number of seconds rejected clients should wait before retrying
+   */
+  public long getRetryAfterSecs() {
+    return retryAfterSecs;
+  }
+
+  /**
+   * @return the average latency (in microseconds) of the work we admitted in the last window
+   */
+  public synchronized long getLatencyMicros() {
+    return TimeUnit.NANOSECONDS.toMicros((long) shortRtt);
+  }
+}
@@ -0,0 +1,118 @@
+package daos;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import servlethelpers.LatencyHistogram;
+import servlethelpers.ServerMetrics;
+
+/**
+ * Our bounded executor for database-bound work. The servlets hand DAO calls to this executor
+ * (using async processing) instead of running them on Tomcat request threads, so a slow database
+ * ties up these threads rather than every container thread. Every Bulkhead has its own executor,
+ * sized to its share of the DBCPDataSource pools by default since more threads than connections
+ * would only queue on the pools. Once its queue is full new work is rejected rather than waited
+ * on. Its queue depth, queue wait times, and rejections are reported through ServerMetrics,
+ * labeled with the name of its Bulkhead.
+ * Requests are admitted to DB-bound work through our ConcurrencyLimiter first, so under overload
+ * they are turned away long before this queue fills up.
+ */
+public class DAOExecutor {
+  private final ThreadPoolExecutor executor;
+  private final LongAdder rejections = new LongAdder();
+  private final LongAdder completed = new LongAdder();
+  private final LatencyHistogram waitTimes;
+  private final ConcurrencyLimiter limiter;
+
+  /**
+   * Sets up the thread pool of a Bulkhead, whose threads all run that compartment's work
+   * @param bulkhead is the Bulkhead this executor belongs to
+   * @param numThreads is the number of threads running tasks
+   * @param queueSize is the maximum number of tasks waiting for a free thread
+   */
+  DAOExecutor(Bulkhead bulkhead, int numThreads, int queueSize) {
+    String name = bulkhead.getName();
+    executor = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueSize), task -> {
+              Thread thread = new Thread(() -> {
+                bulkhead.bind();
+                task.run();
+              }, "dao-executor-" + name);
+              thread.setDaemon(true);
+              return thread;
+            });
+    limiter = new ConcurrencyLimiter(name, numThreads);
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    waitTimes = metrics.histogram("dao_executor_wait_micros", "bulkhead", name);
+    metrics.registerGauge(ServerMetrics.labeled("dao_executor_queue_depth", "bulkhead", name),
+            this::getQueueDepth);
+    metrics.registerGauge(ServerMetrics.labeled("dao_executor_active_threads", "bulkhead", name),
+            this::getActiveCount);
+    metrics.registerCounter(ServerMetrics.labeled("dao_executor_rejections_total",
+            "bulkhead", name), this::getRejections);
+    metrics.registerCounter(ServerMetrics.labeled("dao_executor_completed_total",
+            "bulkhead", name), this::getCompleted);
+  }
+
+  /**
+   * Simple getter for the limiter admitting requests to DB-bound work
+   * @return the ConcurrencyLimiter in front of our threads
+   */
+  public ConcurrencyLimiter getLimiter() {
+    return limiter;
+  }
+
+  /**
+   * Queues the given task to be run on one of our DAO threads
+   * @param task is the database-bound work to be run
+   * @return true if the task was queued, false if it was rejected because the queue is full
+   */
+  public boolean execute(Runnable task) {
+    long enqueueTime = System.nanoTime();
+    try {
+      executor.execute(() -> {
+        waitTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - enqueueTime));
+        try {
+          task.run();
+        } finally {
+          completed.increment();
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      rejections.increment();
+      return false;
+    }
+  }
+
+  /**
+   * @return the number of tasks waiting in our queue for a free thread
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * @return the number of threads currently running a task
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * @return the total number of tasks rejected because our queue was full
+   */
+  public long getRejections() {
+    return rejections.sum();
+  }
+
+  /**
+   * @return the total number of tasks that have finished running
+   */
+  public long getCompleted() {
+    return completed.sum();
+  }
+}
@@ -1,47 +1,229 @@
 package daos;
 
-import org.apache.commons.dbcp2.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import servlethelpers.ServerProperties;
 
 /**
- * Our database connection pool which handles our DAO connections to the Upic RDS database.
+ * Our database connection pools which handle our DAO connections to the Upic RDS database.
  * This code is heavily based on our Lab 6 from class: https://piazza.com/class/ktdhhr8hkmg2x6?cid=90
+ * Lift rides are sharded by skier across DB_SHARDS databases (1 by default), each a
+ * DatabaseShard with a primary pool for writes and a pool per read replica.
+ * Shard 0 is set with MySQL_IP_ADDRESS and MySQL_PORT, and its replicas with
+ * MySQL_REPLICA_IP_ADDRESSES as a comma separated list of host or host:port entries. DB_URL and
+ * DB_REPLICA_URLS take full JDBC URLs instead (e.g. in-memory databases for local testing),
+ * with DB_DRIVER naming their driver class. Pools are sized through DB_POOL_INITIAL_SIZE,
+ * DB_POOL_MAX_TOTAL and DB_POOL_MAX_WAIT_MS, and the replica pools through the same properties
+ * prefixed with DB_REPLICA_ in place of DB_. Every other shard is configured through the same
+ * properties prefixed with SHARD[N]_.
+ * The shard a ride was written to is kept in the low SHARD_BITS bits of its public rideID, even
+ * with a single shard, so a rideID keeps naming the same ride whatever DB_SHARDS is changed to and
+ * a lookup by rideID only has to ask one shard. Rides written before rideIDs carried their shard
+ * are covered by DB_LEGACY_MAX_RIDE_ID, set to the highest rideID handed out back then: those
+ * rideIDs are read as shard 0's own IDs, and every newer rideID is numbered past them. The value
+ * is recorded in shard 0 the first time it is used, and LiftRideDAO.checkRideIDLayout refuses a
+ * value that would change what stored rideIDs mean. Since every rideID is an INT, a shard's
+ * rides stop being written once their public rideIDs would pass Integer.MAX_VALUE.
  */
 public class DBCPDataSource {
-  private static BasicDataSource dataSource;
-  private static final String HOST_NAME = System.getProperty("MySQL_IP_ADDRESS");
-  private static final String PORT = System.getProperty("MySQL_PORT");
-  private static final String DATABASE = "upic";
-  private static final String USERNAME = System.getProperty("DB_USERNAME");
-  private static final String PASSWORD = System.getProperty("DB_PASSWORD");
+  public static final int SHARD_BITS = 4;
+  public static final int MAX_SHARDS = 1 << SHARD_BITS;
+  // the largest DB_LEGACY_MAX_RIDE_ID leaving shard 0 room for its first newer rideID
+  public static final int MAX_LEGACY_ID = (Integer.MAX_VALUE - MAX_SHARDS) / (MAX_SHARDS + 1);
+  // rideIDs up to this one were handed out before rideIDs carried their shard
+  private static final int legacyMaxID =
+          Math.max(0, ServerProperties.getInt("DB_LEGACY_MAX_RIDE_ID", 0));
+  private static volatile DatabaseShard[] shards;
+  private static final Map<Integer, DatabaseShard> extraShards = new ConcurrentHashMap<>();
 
   static {
-    // https://dev.mysql.com/doc/connector-j/8.0/en/connector-j-reference-jdbc-url-format.html
-    dataSource = new BasicDataSource();
     try {
-      Class.forName("com.mysql.cj.jdbc.Driver");
+      Class.forName(ServerProperties.getString("DB_DRIVER", "com.mysql.cj.jdbc.Driver"));
     } catch (ClassNotFoundException e) {
       System.out.println("Failure finding JDBC driver");
     }
-    String url = String.format("jdbc:mysql://%s:%s/%s?serverTimezone=UTC", HOST_NAME, PORT, DATABASE);
-    // set up basic connection pool login
-    dataSource.setUrl(url);
-    dataSource.setUsername(USERNAME);
-    dataSource.setPassword(PASSWORD);
-    // set up initial and max number of allowed DB connections
-    dataSource.setInitialSize(10);
-    dataSource.setMaxTotal(60);
-    // set up connection pool to find and recover unclosed DB connections
-    dataSource.setTimeBetweenEvictionRunsMillis(300);
-    dataSource.setRemoveAbandonedOnBorrow(true);
-    dataSource.setRemoveAbandonedTimeout(15);
-    dataSource.setRemoveAbandonedOnMaintenance(true);
+    int numShards = Math.max(1, Math.min(MAX_SHARDS, ServerProperties.getInt("DB_SHARDS", 1)));
+    DatabaseShard[] created = new DatabaseShard[numShards];
+    for (int i = 0; i < numShards; i++) {
+      created[i] = new DatabaseShard(i);
+    }
+    shards = created;
+  }
+
+  /**
+   * Simple getter to fetch the pool on shard 0's primary database, which holds our resorts
+   * @return the data source connection to our primary database
+   */
+  public static InstrumentedDataSource getDataSource() {
+    return shards[0].getPrimary();
+  }
+
+  /**
+   * Borrows a connection on shard 0 for a read-only query, see DatabaseShard.getReadConnection
+   * @param caller is the String name of the DAO method borrowing the connection
+   * @param latest is true if the read must see the latest writes
+   * @return a pooled connection to be closed by the caller as usual
+   * @throws SQLException if no connection could be borrowed
+   */
+  public static Connection getReadConnection(String caller, boolean latest) throws SQLException {
+    return shards[0].getReadConnection(caller, latest);
+  }
+
+  /**
+   * @return the number of shards our lift rides are spread across
+   */
+  public static int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Simple getter for one of our shards
+   * @param index is the integer index of the shard
+   * @return the DatabaseShard at that index
+   */
+  public static DatabaseShard getShard(int index) {
+    return shards[index];
+  }
+
+  /**
+   * Fetches a shard that may lie past the ones we route to, creating its pools the first time it
+   * is asked for. Used by the ShardRebalancer to drain shards that are being retired.
+   * @param index is the integer index of the shard
+   * @return the DatabaseShard at that index
+   */
+  public static DatabaseShard getAnyShard(int index) {
+    DatabaseShard[] current = shards;
+    if (index < current.length) {
+      return current[index];
+    }
+    return extraShards.computeIfAbsent(index, DatabaseShard::new);
+  }
+
+  /**
+   * Changes the number of shards we route to, reusing the pools of every shard we already know
+   * of. Lets tests move between layouts the way a restart with a new DB_SHARDS would.
+   * @param numShards is the new number of shards
+   */
+  static synchronized void setShardCount(int numShards) {
+    DatabaseShard[] resized = new DatabaseShard[numShards];
+    for (int i = 0; i < numShards; i++) {
+      resized[i] = getAnyShard(i);
+      extraShards.putIfAbsent(i, resized[i]);
+    }
+    shards = resized;
+  }
+
+  /**
+   * @return the highest rideID handed out before rideIDs carried their shard
+   */
+  public static int getLegacyMaxID() {
+    return legacyMaxID;
+  }
+
+  /**
+   * @return the total number of connections our pools can hand out at once
+   */
+  public static int getMaxTotal() {
+    int total = 0;
+    for (DatabaseShard shard : shards) {
+      total += shard.getMaxTotal();
+    }
+    return total;
+  }
+
+  /**
+   * Finds the shard holding a skier's rides using jump consistent hashing, so growing from N to
+   * N+1 shards only moves 1/(N+1) of the skiers
+   * @param skierID is the ID of the skier
+   * @param numShards is the number of shards being routed to
+   * @return the integer index of the skier's shard
+   */
+  public static int shardOf(int skierID, int numShards) {
+    // https://arxiv.org/abs/1406.2294
+    long key = skierID * 0x9E3779B97F4A7C15L;
+    long bucket = -1;
+    long next = 0;
+    while (next < numShards) {
+      bucket = next;
+      key = key * 2862933555777941757L + 1;
+      next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+    }
+    return (int) bucket;
   }
 
   /**
-   * Simple getter to fetch our underlying data source for our DAOs to use
-   * @return the data source connection to our database
+   * @param skierID is the ID of the skier
+   * @return the integer index of the shard currently holding the skier's rides
    */
-  public static BasicDataSource getDataSource() {
-    return dataSource;
+  public static int shardOf(int skierID) {
+    return shardOf(skierID, shards.length);
+  }
+
+  /**
+   * Finds the shard a ride was written to, which may be a shard that has since been retired
+   * @param rideID is the public ID of a lift ride
+   * @return the integer index of the shard the ride was written to
+   */
+  public static int shardOfRide(int rideID) {
+    if (rideID <= legacyMaxID) {
+      return 0;
+    }
+    return (rideID - legacyMaxID) & (MAX_SHARDS - 1);
+  }
+
+  /**
+   * Finds the shard holding the rideforwards entry of a ride the ShardRebalancer moved: the
+   * shard the ride was written to, or shard 0 if that shard has been retired
+   * @param rideID is the public ID of a lift ride
+   * @return the integer index of the shard holding the ride's forward
+   */
+  public static int forwardShardOf(int rideID) {
+    int shard = shardOfRide(rideID);
+    return shard < shards.length ? shard : 0;
+  }
+
+  /**
+   * Turns a rideID generated by one of our shards into the public rideID handed to clients
+   * @param localID is the rideID generated by the shard's liftrides table
+   * @param shard is the integer index of the shard
+   * @return the public rideID, or -1 if it would not fit in an int
+   */
+  public static int toPublicID(int localID, int shard) {
+    if (shard == 0 && localID <= legacyMaxID) {
+      return localID;
+    }
+    long rideID = legacyMaxID + ((long) localID << SHARD_BITS | shard);
+    return rideID > Integer.MAX_VALUE ? -1 : (int) rideID;
+  }
+
+  /**
+   * Turns a public rideID back into the rideID stored in its shard's liftrides table
+   * @param rideID is the public ID of a lift ride
+   * @return the rideID stored by the shard, or -1 if no ride was ever handed that public rideID
+   */
+  public static int toLocalID(int rideID) {
+    if (rideID <= legacyMaxID) {
+      return rideID;
+    }
+    int localID = (rideID - legacyMaxID) >>> SHARD_BITS;
+    // shard 0's IDs up to legacyMaxID are never numbered past the legacy ones
+    return shardOfRide(rideID) == 0 && localID <= legacyMaxID ? -1 : localID;
+  }
+
+  /**
+   * Translates the public rideID a page starts after into the rideIDs stored by one shard
+   * @param afterID is the public rideID a page starts after
+   * @param shard is the integer index of the shard
+   * @return the rideID stored by the shard that its part of the page starts after
+   */
+  public static int localAfter(int afterID, int shard) {
+    if (afterID <= legacyMaxID) {
+      return shard == 0 ? Math.max(0, afterID) : 0;
+    }
+    int after = Math.floorDiv(afterID - legacyMaxID - shard, MAX_SHARDS);
+    return Math.max(shard == 0 ? legacyMaxID : 0, after);
   }
 }
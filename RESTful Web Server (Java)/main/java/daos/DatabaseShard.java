@@ -0,0 +1,173 @@
+package daos;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import servlethelpers.ServerProperties;
+
+/**
+ * One of the databases our lift rides are sharded across: a primary pool that every write goes
+ * through and one pool per read replica. Reads are spread round-robin across the replicas,
+ * falling back to the primary when none are configured or a replica can't hand out a connection.
+ * The pools are InstrumentedDataSources labeled shard[N]-primary and shard[N]-replica[M] so their
+ * wait and hold times show up on /metrics.
+ * Shard 0 is configured through the unprefixed properties described in DBCPDataSource and every
+ * other shard through the same properties prefixed with SHARD[N]_ (e.g. SHARD1_DB_URL), falling
+ * back to shard 0's credentials and pool sizing when not set.
+ */
+public class DatabaseShard {
+  private static final String DATABASE = "upic";
+  private final int index;
+  private final String prefix;
+  private final InstrumentedDataSource primary;
+  private final List<InstrumentedDataSource> replicas = new ArrayList<>();
+  private final AtomicInteger nextReplica = new AtomicInteger();
+
+  /**
+   * Constructs the pools of the given shard using the settings found in the system properties
+   * @param index is the integer index of the shard, 0 being our original database
+   */
+  public DatabaseShard(int index) {
+    this.index = index;
+    this.prefix = index == 0 ? "" : "SHARD" + index + "_";
+    String name = "shard" + index;
+    primary = createPool(name + "-primary", property("DB_URL",
+            mysqlUrl(property("MySQL_IP_ADDRESS", null), property("MySQL_PORT", null))), "DB_");
+
+    String replicaUrls = property("DB_REPLICA_URLS", null);
+    if (replicaUrls != null) {
+      for (String url : replicaUrls.split(",")) {
+        replicas.add(createPool(name + "-replica" + replicas.size(), url.trim(), "DB_REPLICA_"));
+      }
+    } else {
+      String replicaHosts = property("MySQL_REPLICA_IP_ADDRESSES", "");
+      for (String host : replicaHosts.split(",")) {
+        if (host.trim().isEmpty()) {
+          continue;
+        }
+        String[] hostPort = host.trim().split(":");
+        String url = mysqlUrl(hostPort[0],
+                hostPort.length > 1 ? hostPort[1] : property("MySQL_PORT", null));
+        replicas.add(createPool(name + "-replica" + replicas.size(), url, "DB_REPLICA_"));
+      }
+    }
+  }
+
+  /**
+   * Helper method that reads one of this shard's properties
+   * @param name is the unprefixed name of the system property
+   * @param defaultValue is the value returned if the property is not set
+   * @return the String value of the property or the default if not set
+   */
+  private String property(String name, String defaultValue) {
+    return ServerProperties.getString(prefix + name, defaultValue);
+  }
+
+  /**
+   * Helper method that builds the JDBC URL of one of our MySQL instances
+   * @param host is the host name or IP address of the instance
+   * @param port is the port the instance listens on
+   * @return the String JDBC URL of the instance
+   */
+  private static String mysqlUrl(String host, String port) {
+    // https://dev.mysql.com/doc/connector-j/8.0/en/connector-j-reference-jdbc-url-format.html
+    // rewriteBatchedStatements lets the driver send a JDBC batch as one multi-row INSERT
+    return String.format("jdbc:mysql://%s:%s/%s?serverTimezone=UTC" +
+            "&rewriteBatchedStatements=true", host, port, DATABASE);
+  }
+
+  /**
+   * Helper method that creates and configures one of our connection pools
+   * @param poolName is the String name the pool's metrics are labeled with
+   * @param url is the JDBC URL of the database the pool connects to
+   * @param kind is the prefix of the properties the pool is sized from, DB_ or DB_REPLICA_
+   * @return the configured pool
+   */
+  private InstrumentedDataSource createPool(String poolName, String url, String kind) {
+    InstrumentedDataSource pool = new InstrumentedDataSource(poolName);
+    // set up basic connection pool login
+    pool.setUrl(url);
+    pool.setUsername(System.getProperty(setting(kind, "USERNAME")));
+    pool.setPassword(System.getProperty(setting(kind, "PASSWORD")));
+    // set up initial and max number of allowed DB connections
+    pool.setInitialSize(ServerProperties.getInt(setting(kind, "POOL_INITIAL_SIZE"), 10));
+    pool.setMaxTotal(ServerProperties.getInt(setting(kind, "POOL_MAX_TOTAL"), 60));
+    // by default a borrow waits as long as it takes for a connection to free up
+    pool.setMaxWaitMillis(ServerProperties.getLong(setting(kind, "POOL_MAX_WAIT_MS"), -1));
+    // set up connection pool to find and recover unclosed DB connections
+    pool.setTimeBetweenEvictionRunsMillis(300);
+    pool.setRemoveAbandonedOnBorrow(true);
+    pool.setRemoveAbandonedTimeout(15);
+    pool.setRemoveAbandonedOnMaintenance(true);
+    return pool;
+  }
+
+  /**
+   * Helper method that finds the property a pool setting is read from: this shard's own
+   * property for the kind of pool if set, otherwise shard 0's property for the kind of pool if
+   * set, otherwise shard 0's primary property
+   * @param kind is the prefix of the kind of pool, DB_ or DB_REPLICA_
+   * @param name is the name of the setting (e.g. POOL_MAX_TOTAL)
+   * @return the String name of the system property holding the setting
+   */
+  private String setting(String kind, String name) {
+    if (System.getProperty(prefix + kind + name) != null) {
+      return prefix + kind + name;
+    }
+    if (System.getProperty(kind + name) != null) {
+      return kind + name;
+    }
+    return "DB_" + name;
+  }
+
+  /**
+   * Simple getter for the index of this shard
+   * @return the integer index of the shard
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * Simple getter to fetch the pool on this shard's primary, which every write must go through
+   * @return the data source connection to the shard's primary database
+   */
+  public InstrumentedDataSource getPrimary() {
+    return primary;
+  }
+
+  /**
+   * @return the total number of connections this shard's pools can hand out at once
+   */
+  public int getMaxTotal() {
+    int total = primary.getMaxTotal();
+    for (InstrumentedDataSource replica : replicas) {
+      total += replica.getMaxTotal();
+    }
+    return total;
+  }
+
+  /**
+   * Borrows a connection for a read-only query. Reads go round-robin to our replicas unless the
+   * caller needs to see a recent write, in which case (or if there are no replicas) they go to the
+   * primary. A replica that fails to hand out a connection sends the read to the primary as well.
+   * @param caller is the String name of the DAO method borrowing the connection
+   * @param latest is true if the read must see the latest writes
+   * @return a pooled connection to be closed by the caller as usual
+   * @throws SQLException if no connection could be borrowed from the primary either
+   */
+  public Connection getReadConnection(String caller, boolean latest) throws SQLException {
+    if (!latest && !replicas.isEmpty()) {
+      int replica = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+      try {
+        return replicas.get(replica).getConnection(caller);
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    return primary.getConnection(caller);
+  }
+}
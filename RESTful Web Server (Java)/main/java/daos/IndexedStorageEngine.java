@@ -0,0 +1,193 @@
+package daos;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import servlethelpers.LiftRide;
+import servlethelpers.LiftRideInput;
+import servlethelpers.LiftRideList;
+import servlethelpers.ResortList;
+import servlethelpers.ServerMetrics;
+
+/**
+ * Wraps another StorageEngine with an off-heap SkierRideIndex, enabled with SKIER_INDEX=true and
+ * sized with SKIER_INDEX_MAX_MB (1024 by default). Every ride successfully written through us is
+ * added to the index, and the index is rebuilt from the wrapped engine by a background thread at
+ * startup. Once the rebuild has finished, a skier's rides are read from the index instead of the
+ * database and streamed out as primitives, without a LiftRide per row.
+ * Until then (and for skiers whose posting lists overflowed) skiers are read from the wrapped
+ * engine. Since the index only sees the rides written through this server, it should only be
+ * enabled when this server is the only one writing, and rides moved by the ShardRebalancer are
+ * only picked up on the next restart. Whether the index is ready, the rides it holds, its direct
+ * memory, and the skier reads it served are reported through ServerMetrics.
+ */
+public class IndexedStorageEngine implements StorageEngine {
+  private static final long REBUILD_RETRY_MILLIS = 5000;
+  private final StorageEngine storage;
+  private final SkierRideIndex index;
+  private final LongAdder indexReads = new LongAdder();
+  private volatile boolean ready;
+
+  /**
+   * Constructs our index around the given engine and starts rebuilding it
+   * @param storage is the StorageEngine the rides are stored in
+   * @param maxBytes is the most direct memory the index may allocate
+   */
+  public IndexedStorageEngine(StorageEngine storage, long maxBytes) {
+    this.storage = storage;
+    this.index = new SkierRideIndex(maxBytes);
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    metrics.registerGauge("skier_index_ready", () -> ready ? 1 : 0);
+    metrics.registerGauge("skier_index_rides", index::getRides);
+    metrics.registerGauge("skier_index_bytes", index::getBytes);
+    metrics.registerCounter("skier_index_overflows_total", index::getOverflows);
+    metrics.registerCounter("skier_index_reads_total", indexReads::sum);
+    Thread rebuilder = new Thread(this::rebuild, "skier-index-rebuilder");
+    rebuilder.setDaemon(true);
+    rebuilder.start();
+  }
+
+  /**
+   * The body of our rebuild thread. Streams every stored ride into the index, picking up after
+   * the last ride it got whenever the read fails. Rides written while it runs are added by the
+   * writers as well, which the index ignores the second time.
+   */
+  private void rebuild() {
+    int[] lastID = {0};
+    while (true) {
+      boolean complete;
+      try {
+        complete = storage.streamLiftRides(null, lastID[0], 0, (rideID, skier, resort, lift,
+                time) -> {
+          index.add(skier, rideID, resort, lift, time);
+          lastID[0] = rideID;
+        });
+      } catch (IOException e) {
+        e.printStackTrace();
+        complete = false;
+      }
+      if (complete) {
+        ready = true;
+        return;
+      }
+      System.out.println("Failed rebuilding the skier index, retrying after ride " + lastID[0]);
+      try {
+        Thread.sleep(REBUILD_RETRY_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Looks up a lift ride in the wrapped engine
+   * @param rideID is the integer ID of the lift ride to be returned
+   * @return a Lift Ride object representing the given rideID or null if not found
+   */
+  @Override
+  public LiftRide getLiftRide(int rideID) {
+    return storage.getLiftRide(rideID);
+  }
+
+  /**
+   * Reads a skier's rides from the index once it is ready
+   * @param skierID an integer ID for the skier
+   * @return a LiftRideList containing all lift rides for that skier ID
+   */
+  @Override
+  public LiftRideList getSkierRides(int skierID) {
+    int[] rides = ready ? index.read(skierID, 0, 0) : null;
+    if (rides == null) {
+      return storage.getSkierRides(skierID);
+    }
+    indexReads.increment();
+    LiftRideList rideList = new LiftRideList();
+    for (int i = 0; i < rides.length; i += 4) {
+      rideList.addRide(new LiftRide(rides[i], skierID, rides[i + 1], rides[i + 2], rides[i + 3]));
+    }
+    return rideList;
+  }
+
+  /**
+   * Reads every ride from the wrapped engine
+   * @return a LiftRideList of all lift rides for all skiers
+   */
+  @Override
+  public LiftRideList getAllLiftRides() {
+    return storage.getAllLiftRides();
+  }
+
+  /**
+   * Streams a skier's rides from the index once it is ready, and every other read from the
+   * wrapped engine
+   * @param skierID is the ID of the skier whose rides are streamed or null for all skiers
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param limit is the maximum number of rides to stream, 0 for no limit
+   * @param handler is called once for every lift ride read
+   * @return true if every matching ride was streamed, false if the read failed
+   * @throws IOException if the handler failed writing a ride out
+   */
+  @Override
+  public boolean streamLiftRides(Integer skierID, int afterID, int limit, LiftRideHandler handler)
+          throws IOException {
+    int[] rides = ready && skierID != null ? index.read(skierID, afterID, limit) : null;
+    if (rides == null) {
+      return storage.streamLiftRides(skierID, afterID, limit, handler);
+    }
+    indexReads.increment();
+    for (int i = 0; i < rides.length; i += 4) {
+      handler.accept(rides[i], skierID, rides[i + 1], rides[i + 2], rides[i + 3]);
+    }
+    return true;
+  }
+
+  /**
+   * Stores a new lift ride in the wrapped engine and adds it to the index
+   * @param newLiftRide is the Lift Ride object holding the data to be added
+   * @return the integer rideID of the stored (or previously stored) ride, or -1 if storing failed
+   */
+  @Override
+  public int createLiftRide(LiftRideInput newLiftRide) {
+    int rideID = storage.createLiftRide(newLiftRide);
+    indexRide(newLiftRide, rideID);
+    return rideID;
+  }
+
+  /**
+   * Stores a list of new lift rides in the wrapped engine and adds them to the index
+   * @param newLiftRides is the list of Lift Ride objects holding the data to be added
+   * @return the rideIDs in the same order as the given list, with -1 for every ride that failed
+   *         to be stored
+   */
+  @Override
+  public int[] createLiftRides(List<LiftRideInput> newLiftRides) {
+    int[] ids = storage.createLiftRides(newLiftRides);
+    for (int i = 0; i < ids.length; i++) {
+      indexRide(newLiftRides.get(i), ids[i]);
+    }
+    return ids;
+  }
+
+  /**
+   * Helper method that adds a stored ride to the index. Replayed rides are skipped: they come
+   * back with the ID of the original ride, which the index already holds, while their body may
+   * hold a different ride (even another skier's) than the one stored under that ID.
+   * @param ride is the ride that was stored
+   * @param rideID is the integer ID it was stored under, -1 if storing failed
+   */
+  private void indexRide(LiftRideInput ride, int rideID) {
+    if (rideID > 0 && !ride.isDuplicate()) {
+      index.add(ride.getSkierID(), rideID, ride.getResortID(), ride.getLiftID(), ride.getTime());
+    }
+  }
+
+  /**
+   * Reads our resorts from the wrapped engine
+   * @return a ResortList of our active resorts or null if they could not be read
+   */
+  @Override
+  public ResortList getResortList() {
+    return storage.getResortList();
+  }
+}
@@ -0,0 +1,417 @@
+package daos;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import servlethelpers.LatencyHistogram;
+import servlethelpers.LiftRideInput;
+import servlethelpers.ServerMetrics;
+
+/**
+ * A local, segmented write-ahead log of lift rides waiting to be written to the database. Rides
+ * are appended to memory-mapped segment files and a single sync thread forces the appended bytes
+ * to disk, so any number of appends waiting on the same sync share one fsync. Every append gets a
+ * future completing once its ride is durable.
+ * Each record is laid out as [length][crc32][skier, resort, lift, time, key length, key] where a
+ * length of 0 marks the end of a segment. Positions in the log are the segment number in the
+ * high 32 bits and the offset within the segment in the low 32 bits, so they only ever grow.
+ * The IngestLogDrainer reads the durable records back in order and checkpoints how far it got,
+ * which is where reading resumes after a restart. Segments behind the checkpoint are deleted.
+ * Every log gets a random ID the first time its directory is used, kept next to the checkpoint.
+ * The idempotency key of a keyless record is made from that ID and the record's position, so a
+ * log started over in a wiped directory can never hand out the key of a ride already written.
+ */
+public class IngestLog {
+  private static final int HEADER_BYTES = 8;
+  private static final int RIDE_BYTES = 18;
+  private static final String CHECKPOINT = "checkpoint";
+  private static final String LOG_ID = "log-id";
+  /** Starts every key made by a log, and so can't start the idempotency key of a client */
+  public static final String KEY_PREFIX = "wal:";
+  private final Path directory;
+  private final int segmentBytes;
+  private final String logID;
+  private final ConcurrentSkipListMap<Long, MappedByteBuffer> segments =
+          new ConcurrentSkipListMap<>();
+  private final Queue<PendingSync> waiting = new ArrayDeque<>();
+  private final Thread syncer;
+  private final LatencyHistogram syncTimes;
+  private long segment;
+  private MappedByteBuffer current;
+  private int offset;
+  private volatile long synced;
+  private volatile boolean running;
+
+  /**
+   * A single appended record along with the future its caller is waiting on
+   */
+  private static class PendingSync {
+    private final long position;
+    private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+    private PendingSync(long position) {
+      this.position = position;
+    }
+  }
+
+  /**
+   * One record read back from the log
+   */
+  public static class Entry {
+    private final LiftRideInput ride;
+    private final long next;
+
+    private Entry(LiftRideInput ride, long next) {
+      this.ride = ride;
+      this.next = next;
+    }
+
+    /**
+     * @return the lift ride held by the record
+     */
+    public LiftRideInput getRide() {
+      return ride;
+    }
+
+    /**
+     * @return the position of the record following this one
+     */
+    public long getNext() {
+      return next;
+    }
+  }
+
+  /**
+   * Opens the log in the given directory, recovering any segments left behind by a previous run,
+   * and starts its sync thread. Appends always go to a fresh segment, so a record torn by a crash
+   * is never written past.
+   * @param directory is the directory holding the segment files and checkpoint
+   * @param segmentBytes is the size of each segment file
+   * @throws IOException if the directory or a segment could not be opened
+   */
+  public IngestLog(Path directory, int segmentBytes) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    Files.createDirectories(directory);
+    logID = readLogID();
+    long last = -1;
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(".log")) {
+          long number = Long.parseLong(name.substring(0, name.length() - 4));
+          segments.put(number, map(file, FileChannel.MapMode.READ_ONLY, Files.size(file)));
+          last = Math.max(last, number);
+        }
+      }
+    }
+    openSegment(last + 1);
+    synced = position(segment, 0);
+    running = true;
+    syncTimes = ServerMetrics.getInstance().histogram("ingest_log_sync_micros");
+    syncer = new Thread(this::syncLoop, "ingest-log-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  /**
+   * Helper method that reads the ID of the log in our directory, giving it a new random one if
+   * it has none yet
+   * @return the String ID of the log
+   * @throws IOException if the ID could not be read or written
+   */
+  private String readLogID() throws IOException {
+    Path file = directory.resolve(LOG_ID);
+    if (Files.exists(file)) {
+      return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+    }
+    String id = String.format("%016x", new SecureRandom().nextLong());
+    writeDurably(LOG_ID, ByteBuffer.wrap(id.getBytes(StandardCharsets.US_ASCII)));
+    return id;
+  }
+
+  /**
+   * Helper method that replaces one of our small files, making sure a crash leaves either the
+   * old or the new contents behind
+   * @param name is the name of the file within our directory
+   * @param contents is the buffer holding the new contents of the file
+   * @throws IOException if the file could not be written
+   */
+  private void writeDurably(String name, ByteBuffer contents) throws IOException {
+    Path temp = directory.resolve(name + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(contents);
+      channel.force(true);
+    }
+    Files.move(temp, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @param segment is the number of a segment
+   * @param offset is the offset within the segment
+   * @return the position in the log
+   */
+  private static long position(long segment, int offset) {
+    return segment << 32 | offset;
+  }
+
+  /**
+   * @param segment is the number of a segment
+   * @return the path of the segment's file
+   */
+  private Path segmentFile(long segment) {
+    return directory.resolve(String.format("%016d.log", segment));
+  }
+
+  /**
+   * Helper method that memory maps a file
+   * @param file is the path of the file
+   * @param mode is whether the file is mapped for reading or writing
+   * @param size is the number of bytes mapped, a file mapped for writing is grown to this size
+   * @return the mapped buffer
+   * @throws IOException if the file could not be mapped
+   */
+  private static MappedByteBuffer map(Path file, FileChannel.MapMode mode, long size)
+          throws IOException {
+    String access = mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw";
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), access)) {
+      // the mapping stays valid once the channel is closed
+      return raf.getChannel().map(mode, 0, size);
+    }
+  }
+
+  /**
+   * Helper method that starts appending to a new segment, must be called holding our lock
+   * @param number is the number of the new segment
+   * @throws IOException if the segment could not be created
+   */
+  private void openSegment(long number) throws IOException {
+    current = map(segmentFile(number), FileChannel.MapMode.READ_WRITE, segmentBytes);
+    segments.put(number, current);
+    segment = number;
+    offset = 0;
+  }
+
+  /**
+   * Appends a lift ride to the log
+   * @param ride is the validated LiftRideInput to be logged
+   * @return a future completing with the ride's position once it is durable, or null if the log
+   *         is closed or the ride could not be appended
+   */
+  public CompletableFuture<Long> append(LiftRideInput ride) {
+    byte[] key = ride.getRequestKey() == null ? new byte[0]
+            : ride.getRequestKey().getBytes(StandardCharsets.UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + RIDE_BYTES + key.length);
+    record.position(HEADER_BYTES);
+    record.putInt(ride.getSkierID()).putInt(ride.getResortID()).putInt(ride.getLiftID())
+            .putInt(ride.getTime()).putShort((short) key.length).put(key);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), HEADER_BYTES, RIDE_BYTES + key.length);
+    record.putInt(0, RIDE_BYTES + key.length).putInt(4, (int) crc.getValue());
+    record.flip();
+
+    synchronized (this) {
+      if (!running) {
+        return null;
+      }
+      try {
+        if (offset + record.remaining() > segmentBytes) {
+          // make sure the full segment is on disk before moving past it
+          current.force();
+          openSegment(segment + 1);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        return null;
+      }
+      ByteBuffer target = current.duplicate();
+      target.position(offset);
+      target.put(record);
+      offset = target.position();
+      PendingSync pending = new PendingSync(position(segment, offset));
+      waiting.add(pending);
+      notifyAll();
+      return pending.result;
+    }
+  }
+
+  /**
+   * The body of our sync thread. Waits for appended records, forces them to disk, and completes
+   * every append covered by the sync.
+   */
+  private void syncLoop() {
+    while (true) {
+      MappedByteBuffer buffer;
+      long target;
+      synchronized (this) {
+        while (running && waiting.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            running = false;
+          }
+        }
+        if (waiting.isEmpty()) {
+          return;
+        }
+        buffer = current;
+        target = position(segment, offset);
+      }
+      long startTime = System.nanoTime();
+      buffer.force();
+      syncTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+      synced = target;
+      synchronized (this) {
+        while (!waiting.isEmpty() && waiting.peek().position <= target) {
+          waiting.poll().result.complete(target);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the position just past the last durable record
+   */
+  public long getSynced() {
+    return synced;
+  }
+
+  /**
+   * Reads the record at the given position, skipping ahead to the next segment when the position
+   * is at the end of one
+   * @param position is the position of the record, at or before getSynced
+   * @return the record read, or null if there are no durable records at or past the position
+   */
+  public Entry read(long position) {
+    while (position < synced) {
+      long number = position >>> 32;
+      int at = (int) position;
+      MappedByteBuffer buffer = segments.get(number);
+      if (buffer == null) {
+        // a segment that was never written, or has already been drained
+        Long next = segments.higherKey(number);
+        if (next == null) {
+          return null;
+        }
+        position = position(next, 0);
+        continue;
+      }
+      ByteBuffer view = buffer.duplicate();
+      int length = at + HEADER_BYTES <= view.limit() ? view.getInt(at) : 0;
+      if (length < RIDE_BYTES || at + HEADER_BYTES + length > view.limit()) {
+        position = position(number + 1, 0);
+        continue;
+      }
+      byte[] payload = new byte[length];
+      view.position(at + HEADER_BYTES);
+      view.get(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != view.getInt(at + 4)) {
+        // a record torn by a crash, nothing past it in this segment was acknowledged
+        position = position(number + 1, 0);
+        continue;
+      }
+      ByteBuffer fields = ByteBuffer.wrap(payload);
+      LiftRideInput ride = new LiftRideInput(fields.getInt(), fields.getInt(), fields.getInt(),
+              fields.getInt());
+      int keyLength = fields.getShort();
+      if (keyLength > 0) {
+        ride.setRequestKey(new String(payload, RIDE_BYTES, keyLength, StandardCharsets.UTF_8));
+      }
+      return new Entry(ride, position(number, at + HEADER_BYTES + length));
+    }
+    return null;
+  }
+
+  /**
+   * Makes the idempotency key a record without one of its own is written under, which no other
+   * record of this log or any other log shares
+   * @param position is the position of the record
+   * @return the String key of the record
+   */
+  public String keyOf(long position) {
+    return KEY_PREFIX + logID + ":" + (position >>> 32) + ":" + (int) position;
+  }
+
+  /**
+   * @param requestKey is an idempotency key sent by a client
+   * @return true if the key could clash with the keys our logs make for their records
+   */
+  public static boolean isLogKey(String requestKey) {
+    return requestKey.startsWith(KEY_PREFIX);
+  }
+
+  /**
+   * Reads the position the drainer last checkpointed
+   * @return the checkpointed position, or the start of the oldest segment if there is none
+   */
+  public long readCheckpoint() {
+    Path file = directory.resolve(CHECKPOINT);
+    if (Files.exists(file)) {
+      try {
+        return ByteBuffer.wrap(Files.readAllBytes(file)).getLong();
+      } catch (IOException | RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+    return segments.isEmpty() ? 0 : position(segments.firstKey(), 0);
+  }
+
+  /**
+   * Durably records how far the drainer got and deletes every segment behind it
+   * @param position is the position of the first record not yet written to the database
+   * @throws IOException if the checkpoint could not be written
+   */
+  public void checkpoint(long position) throws IOException {
+    writeDurably(CHECKPOINT, ByteBuffer.allocate(Long.BYTES).putLong(0, position));
+    long number = position >>> 32;
+    for (Long old : segments.keySet()) {
+      if (old >= number) {
+        break;
+      }
+      segments.remove(old);
+      Files.deleteIfExists(segmentFile(old));
+    }
+  }
+
+  /**
+   * @return the number of segment files currently on disk
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Stops accepting appends, lets the sync thread make everything appended durable, and waits
+   * for it to finish
+   */
+  public void close() {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    try {
+      syncer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package daos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjIntConsumer;
+
+import servlethelpers.LiftRideInput;
+import servlethelpers.ServerMetrics;
+
+/**
+ * Replays the durable lift rides of an IngestLog into the database. A single drainer thread reads
+ * the log from its checkpoint in batches, writes each batch to the StorageEngine, and checkpoints
+ * the log once the batch commits. If the database is unavailable the same batch is retried after
+ * a back off, so the log simply grows until the database recovers.
+ * Every ride is written with an idempotency key, its own or one made from the log's ID and its
+ * position in the log, so a batch that committed right before a crash (but before its
+ * checkpoint) is not written twice when it is replayed on restart.
+ * A ride is handed to our callback on the attempt that first commits it, so when only part of a
+ * batch commits its rides are picked up as new rides rather than as the replays the retry sees.
+ */
+public class IngestLogDrainer {
+  private static final long IDLE_MILLIS = 5;
+  private static final long MAX_BACKOFF_MILLIS = 5000;
+  private final IngestLog log;
+  private final int batchSize;
+  private final ObjIntConsumer<LiftRideInput> committed;
+  private final Thread drainer;
+  private final LongAdder drained = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private volatile boolean running;
+  private volatile boolean stopped;
+
+  /**
+   * Constructs our drainer and starts its thread
+   * @param log is the log being drained
+   * @param batchSize is the maximum number of rides written per batch
+   * @param committed is called once with every ride (and its rideID) as soon as it commits
+   */
+  public IngestLogDrainer(IngestLog log, int batchSize, ObjIntConsumer<LiftRideInput> committed) {
+    this.log = log;
+    this.batchSize = batchSize;
+    this.committed = committed;
+    this.running = true;
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    metrics.registerCounter("ingest_log_drained_total", drained::sum);
+    metrics.registerCounter("ingest_log_drain_failures_total", failures::sum);
+    metrics.registerGauge("ingest_log_segments", log::getSegmentCount);
+    // our writes count against the connections of the write compartment
+    drainer = new Thread(() -> {
+      Bulkhead.WRITES.bind();
+      drainLoop();
+    }, "ingest-log-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /**
+   * The body of our drainer thread. Reads a batch from the checkpoint, writes it, and moves the
+   * checkpoint past it, backing off whenever the write fails.
+   */
+  private void drainLoop() {
+    StorageEngine storage = StorageEngine.getInstance();
+    long position = log.readCheckpoint();
+    long backoff = IDLE_MILLIS;
+    List<LiftRideInput> batch = new ArrayList<>(batchSize);
+    List<Long> positions = new ArrayList<>(batchSize);
+    // the positions of the rides in the current batch already handed to our callback
+    Set<Long> delivered = new HashSet<>();
+    while (!stopped && (running || position < log.getSynced())) {
+      long next = position;
+      IngestLog.Entry entry;
+      while (batch.size() < batchSize && (entry = log.read(next)) != null) {
+        LiftRideInput ride = entry.getRide();
+        if (ride.getRequestKey() == null) {
+          ride.setRequestKey(log.keyOf(next));
+        }
+        batch.add(ride);
+        positions.add(next);
+        next = entry.getNext();
+      }
+      if (batch.isEmpty()) {
+        if (!running) {
+          break;
+        }
+        pause(IDLE_MILLIS);
+        continue;
+      }
+
+      int[] ids;
+      try {
+        ids = storage.createLiftRides(batch);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        ids = new int[batch.size()];
+      }
+      boolean complete = true;
+      for (int i = 0; i < ids.length; i++) {
+        if (ids[i] <= 0) {
+          complete = false;
+        } else if (delivered.add(positions.get(i))) {
+          // a retry would see the ride as a replay of itself, so it is handed over right away
+          committed.accept(batch.get(i), ids[i]);
+        }
+      }
+      if (!complete) {
+        // keys make the rides that did commit a no-op on the retry
+        failures.increment();
+        batch.clear();
+        positions.clear();
+        pause(backoff);
+        backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        continue;
+      }
+      try {
+        log.checkpoint(next);
+      } catch (IOException e) {
+        // we'll replay from the older checkpoint, which the keys make safe
+        e.printStackTrace();
+      }
+      drained.add(ids.length);
+      position = next;
+      backoff = IDLE_MILLIS;
+      batch.clear();
+      positions.clear();
+      delivered.clear();
+    }
+  }
+
+  /**
+   * Sleeps the drainer thread, stopping the drainer for good if it is interrupted
+   * @param millis is the number of ms to sleep
+   */
+  private void pause(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      stopped = true;
+    }
+  }
+
+  /**
+   * Stops the drainer once it has written everything durable in the log and waits for it to
+   * finish, giving up after the given time (the rest is replayed on the next start)
+   * @param timeoutMillis is the longest time (in ms) to wait for the log to drain
+   */
+  public void shutdown(long timeoutMillis) {
+    running = false;
+    try {
+      drainer.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // whatever is left stays in the log for the next start
+    stopped = true;
+    drainer.interrupt();
+  }
+}
@@ -0,0 +1,208 @@
+package daos;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.dbcp2.DelegatingConnection;
+import org.apache.commons.dbcp2.PoolableConnection;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+
+import servlethelpers.LatencyHistogram;
+import servlethelpers.ServerMetrics;
+
+/**
+ * Our connection pool with telemetry layered on top of the DBCP BasicDataSource. Every borrow is
+ * timed into a wait-time histogram, and every connection handed out is wrapped so the time it is
+ * held (borrow to close) is recorded against the DAO method that borrowed it. The pool's
+ * active/idle counts and its lifetime counters, including abandoned-connection removals, are
+ * registered with ServerMetrics so they show up on /metrics next to our endpoint latencies.
+ * Every metric carries a pool label, so the primary and replica pools can be told apart.
+ * Connections borrowed by a thread running a Bulkhead's work count against that compartment's
+ * share of the pool, see Bulkhead.
+ */
+public class InstrumentedDataSource extends BasicDataSource {
+  private static final String UNKNOWN_CALLER = "unknown";
+  private final String poolName;
+  private final LatencyHistogram borrowWaits;
+  private final Map<String, LatencyHistogram> holdTimes = new ConcurrentHashMap<>();
+  private final Map<Bulkhead, Semaphore> bulkheadPermits = new ConcurrentHashMap<>();
+
+  /**
+   * A borrowed connection that records how long it was held when it is handed back to the pool
+   */
+  private static class TimedConnection extends DelegatingConnection<Connection> {
+    private final LatencyHistogram holdTimes;
+    private final Bulkhead bulkhead;
+    private final Semaphore permits;
+    private final long borrowTime;
+    private boolean released;
+
+    private TimedConnection(Connection conn, LatencyHistogram holdTimes, Bulkhead bulkhead,
+                            Semaphore permits) {
+      super(conn);
+      this.holdTimes = holdTimes;
+      this.bulkhead = bulkhead;
+      this.permits = permits;
+      this.borrowTime = System.nanoTime();
+    }
+
+    /**
+     * Returns the connection to the pool, recording its hold time the first time it is closed
+     * @throws SQLException if the underlying connection could not be closed
+     */
+    @Override
+    public void close() throws SQLException {
+      if (!released) {
+        released = true;
+        holdTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - borrowTime));
+        if (permits != null) {
+          bulkhead.releaseConnection(permits);
+        }
+      }
+      super.close();
+    }
+  }
+
+  /**
+   * Constructs our data source and registers its metrics. The pool itself is configured through
+   * the usual BasicDataSource setters before the first connection is borrowed.
+   * @param poolName is the String name our metrics are labeled with (e.g. primary)
+   */
+  public InstrumentedDataSource(String poolName) {
+    this.poolName = poolName;
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    borrowWaits = metrics.histogram("db_pool_borrow_wait_micros", "pool", poolName);
+    metrics.registerGauge(poolMetric("db_pool_active"), this::getNumActive);
+    metrics.registerGauge(poolMetric("db_pool_idle"), this::getNumIdle);
+    metrics.registerGauge(poolMetric("db_pool_max_total"), this::getMaxTotal);
+    metrics.registerGauge(poolMetric("db_pool_waiters"),
+            () -> poolStat(GenericObjectPool::getNumWaiters));
+    metrics.registerCounter(poolMetric("db_pool_borrowed_total"),
+            () -> poolStat(GenericObjectPool::getBorrowedCount));
+    metrics.registerCounter(poolMetric("db_pool_created_total"),
+            () -> poolStat(GenericObjectPool::getCreatedCount));
+    metrics.registerCounter(poolMetric("db_pool_destroyed_total"),
+            () -> poolStat(GenericObjectPool::getDestroyedCount));
+    metrics.registerCounter(poolMetric("db_pool_abandoned_removed_total"),
+            () -> poolStat(this::abandonedCount));
+  }
+
+  /**
+   * Simple getter for the name our metrics are labeled with
+   * @return the String name of this pool
+   */
+  public String getPoolName() {
+    return poolName;
+  }
+
+  /**
+   * Borrows a connection for a caller that did not name itself, its hold time is recorded
+   * against the "unknown" method
+   * @return a pooled connection to our database
+   * @throws SQLException if a connection could not be borrowed
+   */
+  @Override
+  public Connection getConnection() throws SQLException {
+    return getConnection(UNKNOWN_CALLER);
+  }
+
+  /**
+   * Borrows a connection from the pool, timing how long we waited for it and wrapping it so the
+   * time it is held is recorded against the given caller. A thread running a Bulkhead's work
+   * first takes one of its compartment's connections of this pool.
+   * @param caller is the String name of the DAO method borrowing the connection
+   *               (e.g. LiftRideDAO.getLiftRide)
+   * @return a pooled connection to our database, to be closed by the caller as usual
+   * @throws SQLException if a connection could not be borrowed
+   */
+  public Connection getConnection(String caller) throws SQLException {
+    Bulkhead bulkhead = Bulkhead.current();
+    Semaphore permits = bulkhead == null ? null : bulkheadPermits(bulkhead);
+    long startTime = System.nanoTime();
+    if (permits != null) {
+      bulkhead.acquireConnection(permits, getMaxWaitMillis());
+    }
+    Connection conn;
+    try {
+      conn = super.getConnection();
+    } catch (SQLException | RuntimeException e) {
+      if (permits != null) {
+        bulkhead.releaseConnection(permits);
+      }
+      throw e;
+    }
+    borrowWaits.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+    return new TimedConnection(conn, holdHistogram(caller), bulkhead, permits);
+  }
+
+  /**
+   * Helper method that looks up a compartment's share of this pool, creating it the first time
+   * the compartment borrows a connection
+   * @param bulkhead is the Bulkhead borrowing the connection
+   * @return the Semaphore holding the compartment's connections, or null if the pool is unbounded
+   */
+  private Semaphore bulkheadPermits(Bulkhead bulkhead) {
+    if (getMaxTotal() < 0) {
+      return null;
+    }
+    Semaphore permits = bulkheadPermits.get(bulkhead);
+    if (permits == null) {
+      permits = bulkheadPermits.computeIfAbsent(bulkhead,
+          key -> key.createPermits(getMaxTotal()));
+    }
+    return permits;
+  }
+
+  /**
+   * Helper method that looks up the hold-time histogram for a caller, registering it the first
+   * time the caller borrows a connection
+   * @param caller is the String name of the DAO method borrowing the connection
+   * @return the LatencyHistogram recording that caller's hold times
+   */
+  private LatencyHistogram holdHistogram(String caller) {
+    LatencyHistogram histogram = holdTimes.get(caller);
+    if (histogram == null) {
+      histogram = holdTimes.computeIfAbsent(caller, key -> ServerMetrics.getInstance()
+              .histogram(ServerMetrics.labeled("db_connection_hold_micros", "pool", poolName,
+                      "method", key)));
+    }
+    return histogram;
+  }
+
+  /**
+   * @param name is the metric name, in Prometheus form
+   * @return the key of the metric labeled with this pool's name
+   */
+  private String poolMetric(String name) {
+    return ServerMetrics.labeled(name, "pool", poolName);
+  }
+
+  /**
+   * Helper method that reads a statistic from the underlying object pool, which is only created
+   * once the first connection is borrowed
+   * @param stat is the statistic to read from the pool
+   * @return the value of the statistic, or 0 if the pool has not been created yet
+   */
+  private long poolStat(ToLongFunction<GenericObjectPool<PoolableConnection>> stat) {
+    GenericObjectPool<PoolableConnection> pool = getConnectionPool();
+    return pool == null ? 0 : stat.applyAsLong(pool);
+  }
+
+  /**
+   * The pool doesn't count abandoned removals on their own, so we take every connection destroyed
+   * other than by idle eviction or failed borrow validation. With our settings (no validation on
+   * return) that leaves the abandoned removals plus the rare connection dropped after a fatal
+   * SQL error.
+   * @param pool is the underlying object pool
+   * @return the approximate number of connections removed as abandoned
+   */
+  private long abandonedCount(GenericObjectPool<PoolableConnection> pool) {
+    return pool.getDestroyedCount() - pool.getDestroyedByEvictorCount()
+            - pool.getDestroyedByBorrowValidationCount();
+  }
+}
@@ -0,0 +1,93 @@
+package daos;
+
+import java.io.IOException;
+import java.util.List;
+
+import servlethelpers.LiftRide;
+import servlethelpers.LiftRideInput;
+import servlethelpers.LiftRideList;
+import servlethelpers.ResortList;
+
+/**
+ * Our default StorageEngine, keeping lift rides and resorts in the sharded MySQL databases of
+ * DBCPDataSource through LiftRideDAO and ResortDAO.
+ */
+public class JdbcStorageEngine implements StorageEngine {
+  private final LiftRideDAO liftDAO = new LiftRideDAO();
+  private final ResortDAO resortDAO = new ResortDAO();
+
+  /**
+   * Looks up a lift ride on its shard, see LiftRideDAO.getLiftRide
+   * @param rideID is the integer ID of the lift ride to be returned
+   * @return a Lift Ride object representing the given rideID or null if not found
+   */
+  @Override
+  public LiftRide getLiftRide(int rideID) {
+    return liftDAO.getLiftRide(rideID);
+  }
+
+  /**
+   * Reads a skier's rides from their shard, see LiftRideDAO.getSkierRides
+   * @param skierID an integer ID for the skier
+   * @return a LiftRideList containing all lift rides for that skier ID
+   */
+  @Override
+  public LiftRideList getSkierRides(int skierID) {
+    return liftDAO.getSkierRides(skierID);
+  }
+
+  /**
+   * Reads every ride from every shard, see LiftRideDAO.getAllLiftRides
+   * @return a LiftRideList of all lift rides for all skiers
+   */
+  @Override
+  public LiftRideList getAllLiftRides() {
+    return liftDAO.getAllLiftRides();
+  }
+
+  /**
+   * Streams rides straight from database cursors, see LiftRideDAO.streamLiftRides
+   * @param skierID is the ID of the skier whose rides are streamed or null for all skiers
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param limit is the maximum number of rides to stream, 0 for no limit
+   * @param handler is called once for every lift ride read
+   * @return true if every matching ride was streamed, false if the query failed
+   * @throws IOException if the handler failed writing a ride out
+   */
+  @Override
+  public boolean streamLiftRides(Integer skierID, int afterID, int limit, LiftRideHandler handler)
+          throws IOException {
+    return liftDAO.streamLiftRides(skierID, afterID, limit, handler);
+  }
+
+  /**
+   * Inserts a ride on its skier's shard, see LiftRideDAO.createLiftRide
+   * @param newLiftRide is the Lift Ride object holding the data to be added
+   * @return the integer rideID of the inserted (or previously inserted) row, or -1 if the
+   *         insert failed
+   */
+  @Override
+  public int createLiftRide(LiftRideInput newLiftRide) {
+    return liftDAO.createLiftRide(newLiftRide);
+  }
+
+  /**
+   * Inserts rides with one transaction per shard, see LiftRideDAO.createLiftRides
+   * @param newLiftRides is the list of Lift Ride objects holding the data to be added
+   * @return the rideIDs in the same order as the given list, with -1 for every ride whose
+   *         shard failed to commit
+   */
+  @Override
+  public int[] createLiftRides(List<LiftRideInput> newLiftRides) {
+    return liftDAO.createLiftRides(newLiftRides);
+  }
+
+  /**
+   * Reads our resorts from shard 0, see ResortDAO.getResortList
+   * @return a ResortList of our active resorts or null if the query failed
+   */
+  @Override
+  public ResortList getResortList() {
+    return resortDAO.getResortList();
+  }
+}
@@ -0,0 +1,209 @@
+package daos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
+
+import servlethelpers.LiftRideInput;
+import servlethelpers.ServerMetrics;
+import servlethelpers.ServerProperties;
+
+/**
+ * Our group-commit ingest stage for new lift rides. Instead of every POST borrowing its own
+ * connection and committing a single row, POSTs enqueue their LiftRideInput into a bounded queue
+ * and a small set of writer threads flush the queue to the liftrides table as JDBC batches.
+ * A batch is flushed once it reaches the configured size or once the oldest ride in it has waited
+ * the configured amount of time, whichever comes first. Each caller gets a future that completes
+ * with its auto-generated rideID once the batch holding its row commits. Every committed ride is
+ * also handed to a callback before its future completes, so whatever has to see every ride does
+ * so even when its caller stopped waiting.
+ * Tuned through the WRITE_BATCH_SIZE, WRITE_BATCH_WAIT_MS, WRITE_QUEUE_SIZE and WRITE_THREADS
+ * system properties.
+ */
+public class LiftRideBatchWriter {
+  private static final long POLL_MILLIS = 100;
+  private final BlockingQueue<PendingRide> queue;
+  private final Thread[] writers;
+  private final int batchSize;
+  private final long batchWaitNanos;
+  private final ObjIntConsumer<LiftRideInput> committed;
+  private volatile boolean running;
+
+  /**
+   * A single enqueued lift ride along with the future its caller is waiting on
+   */
+  private static class PendingRide {
+    private final LiftRideInput ride;
+    private final CompletableFuture<Integer> result;
+
+    private PendingRide(LiftRideInput ride) {
+      this.ride = ride;
+      this.result = new CompletableFuture<>();
+    }
+  }
+
+  /**
+   * Constructs our writer using the batch sizing found in the system properties and starts
+   * its writer threads
+   * @param committed is called once with every ride (and its rideID) as soon as it commits
+   */
+  public LiftRideBatchWriter(ObjIntConsumer<LiftRideInput> committed) {
+    this(ServerProperties.getInt("WRITE_BATCH_SIZE", 100),
+            ServerProperties.getLong("WRITE_BATCH_WAIT_MS", 5),
+            ServerProperties.getInt("WRITE_QUEUE_SIZE", 10000),
+            ServerProperties.getInt("WRITE_THREADS", 4), committed);
+  }
+
+  /**
+   * Constructs our writer with the given batch sizing and starts its writer threads
+   * @param batchSize is the maximum number of rides flushed in a single batch
+   * @param batchWaitMillis is the longest time (in ms) a ride waits for its batch to fill up
+   * @param queueSize is the maximum number of rides waiting to be written
+   * @param numWriters is the number of writer threads flushing batches
+   * @param committed is called once with every ride (and its rideID) as soon as it commits
+   * @throws IllegalArgumentException if any of the given sizes are less than 1 or the wait time
+   *                                  is negative
+   */
+  public LiftRideBatchWriter(int batchSize, long batchWaitMillis, int queueSize, int numWriters,
+                             ObjIntConsumer<LiftRideInput> committed)
+          throws IllegalArgumentException {
+    if (batchSize < 1 || queueSize < 1 || numWriters < 1 || batchWaitMillis < 0) {
+      throw new IllegalArgumentException("Invalid batch writer sizing");
+    }
+    this.batchSize = batchSize;
+    this.batchWaitNanos = TimeUnit.MILLISECONDS.toNanos(batchWaitMillis);
+    this.committed = committed;
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+    this.running = true;
+    this.writers = new Thread[numWriters];
+    for (int i = 0; i < numWriters; i++) {
+      // our writes count against the connections of the write compartment
+      writers[i] = new Thread(() -> {
+        Bulkhead.WRITES.bind();
+        writeLoop();
+      }, "liftride-writer-" + i);
+      writers[i].setDaemon(true);
+      writers[i].start();
+    }
+    ServerMetrics.getInstance().registerGauge("write_queue_depth", this::getQueueDepth);
+  }
+
+  /**
+   * Enqueues the given lift ride to be written with the next batch
+   * @param ride is the validated LiftRideInput to be inserted
+   * @return a future completing with the generated rideID (or -1 if the batch failed to commit),
+   *         or null if the queue is full or the writer has been shut down
+   */
+  public CompletableFuture<Integer> submit(LiftRideInput ride) {
+    if (!running) {
+      return null;
+    }
+    PendingRide pending = new PendingRide(ride);
+    if (!queue.offer(pending)) {
+      return null;
+    }
+    return pending.result;
+  }
+
+  /**
+   * Simple getter for the number of rides currently waiting to be written
+   * @return the integer depth of our queue
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * Stops accepting new rides, lets the writer threads flush whatever is still queued,
+   * and waits for them to finish
+   */
+  public void shutdown() {
+    running = false;
+    for (Thread writer : writers) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * The body of each writer thread. Blocks for the first ride of a batch, keeps collecting rides
+   * until the batch is full or its wait time is up, then flushes it.
+   */
+  private void writeLoop() {
+    StorageEngine storage = StorageEngine.getInstance();
+    List<PendingRide> batch = new ArrayList<>(batchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        PendingRide first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + batchWaitNanos;
+        // grab whatever is already waiting before we consider blocking
+        queue.drainTo(batch, batchSize - batch.size());
+        while (batch.size() < batchSize) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            break;
+          }
+          PendingRide next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          queue.drainTo(batch, batchSize - batch.size());
+        }
+      } catch (InterruptedException e) {
+        // flush what we have and let the loop condition decide if we are done
+        running = false;
+      }
+      if (!batch.isEmpty()) {
+        flush(storage, batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Writes the given batch through our DAO, hands every committed ride to our callback, and
+   * completes each caller's future with its rideID. The callback runs whether or not the caller
+   * is still waiting. A batch that fails with an unexpected exception is failed as a whole, so
+   * its callers hear back right away and the writer thread lives on to flush the next batch.
+   * @param storage is the StorageEngine the batch is written to
+   * @param batch is the list of pending rides to be written together
+   */
+  private void flush(StorageEngine storage, List<PendingRide> batch) {
+    List<LiftRideInput> rides = new ArrayList<>(batch.size());
+    for (PendingRide pending : batch) {
+      rides.add(pending.ride);
+    }
+    int[] ids;
+    try {
+      ids = storage.createLiftRides(rides);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      ids = null;
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      int id = ids == null ? -1 : ids[i];
+      if (id > 0) {
+        try {
+          committed.accept(batch.get(i).ride, id);
+        } catch (RuntimeException e) {
+          // the ride is still committed, so its caller hears back either way
+          e.printStackTrace();
+        }
+      }
+      batch.get(i).result.complete(id);
+    }
+  }
+}
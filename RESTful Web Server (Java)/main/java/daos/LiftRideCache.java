@@ -0,0 +1,171 @@
+package daos;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import servlethelpers.LiftRide;
+import servlethelpers.ServerMetrics;
+import servlethelpers.ServerProperties;
+
+/**
+ * A bounded, read-through cache of lift rides keyed by rideID. Lift rides are never updated once
+ * written, so a cached ride never goes stale: rides are put in the cache as soon as they are
+ * written and misses are read through the StorageEngine. The cache is split into independently
+ * locked segments, each evicting its least recently used rides once it is full, so concurrent
+ * requests rarely contend on the same lock. Sized through the RIDE_CACHE_SIZE system property,
+ * with its size, hits, misses, and evictions reported through ServerMetrics.
+ */
+public class LiftRideCache {
+  private static final int NUM_SEGMENTS = 16;
+  private final Segment[] segments;
+  private final StorageEngine storage;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * A single LRU segment of our cache, guarded by its own lock
+   */
+  private class Segment extends LinkedHashMap<Integer, LiftRide> {
+    private final int capacity;
+
+    private Segment(int capacity) {
+      // access ordered so the eldest entry is always the least recently used
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, LiftRide> eldest) {
+      if (size() > capacity) {
+        evictions.increment();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Constructs our cache using the size found in the RIDE_CACHE_SIZE system property
+   */
+  public LiftRideCache() {
+    this(ServerProperties.getInt("RIDE_CACHE_SIZE", 100000));
+  }
+
+  /**
+   * Constructs our cache to hold up to the given number of lift rides
+   * @param maxSize is the maximum number of lift rides held by the cache
+   * @throws IllegalArgumentException if the given size is less than 1
+   */
+  public LiftRideCache(int maxSize) throws IllegalArgumentException {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("Cache size must be positive");
+    }
+    this.storage = StorageEngine.getInstance();
+    this.segments = new Segment[NUM_SEGMENTS];
+    int segmentSize = Math.max(1, maxSize / NUM_SEGMENTS);
+    for (int i = 0; i < NUM_SEGMENTS; i++) {
+      segments[i] = new Segment(segmentSize);
+    }
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    metrics.registerGauge("ride_cache_size", this::getSize);
+    metrics.registerCounter("ride_cache_hits_total", this::getHits);
+    metrics.registerCounter("ride_cache_misses_total", this::getMisses);
+    metrics.registerCounter("ride_cache_evictions_total", this::getEvictions);
+  }
+
+  /**
+   * Picks the segment responsible for the given rideID
+   * @param rideID is the integer ID of the lift ride
+   * @return the Segment holding that ride
+   */
+  private Segment segmentFor(int rideID) {
+    // spread the bits so sequential IDs land in different segments
+    int hash = rideID * 0x9E3779B9;
+    return segments[(hash >>> 28) & (NUM_SEGMENTS - 1)];
+  }
+
+  /**
+   * Returns the lift ride with the given ID, reading it through the StorageEngine if it is not
+   * cached
+   * @param rideID is the integer ID of the lift ride to be returned
+   * @return a Lift Ride object representing the given rideID or null if not found
+   */
+  public LiftRide get(int rideID) {
+    LiftRide ride = getIfPresent(rideID);
+    if (ride != null) {
+      return ride;
+    }
+    misses.increment();
+    // rides not found are not cached since they may still be written
+    ride = storage.getLiftRide(rideID);
+    if (ride != null) {
+      put(ride);
+    }
+    return ride;
+  }
+
+  /**
+   * Returns the lift ride with the given ID only if it is already cached, never touching the
+   * database
+   * @param rideID is the integer ID of the lift ride to be returned
+   * @return a Lift Ride object representing the given rideID or null if not cached
+   */
+  public LiftRide getIfPresent(int rideID) {
+    Segment segment = segmentFor(rideID);
+    LiftRide ride;
+    synchronized (segment) {
+      ride = segment.get(rideID);
+    }
+    if (ride != null) {
+      hits.increment();
+    }
+    return ride;
+  }
+
+  /**
+   * Adds the given lift ride to the cache, normally right after it has been written
+   * @param ride is the LiftRide to be cached
+   */
+  public void put(LiftRide ride) {
+    Segment segment = segmentFor(ride.getLiftRideId());
+    synchronized (segment) {
+      segment.put(ride.getLiftRideId(), ride);
+    }
+  }
+
+  /**
+   * @return the total number of lookups served from the cache
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the total number of lookups that had to read through to the database
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the total number of rides evicted to keep the cache within its size
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the number of rides currently held by the cache
+   */
+  public int getSize() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+}
@@ -1,7 +1,16 @@
 package daos;
 
+import java.io.IOException;
 import java.sql.*;
-import org.apache.commons.dbcp2.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import servlethelpers.LiftRide;
 import servlethelpers.LiftRideInput;
 import servlethelpers.LiftRideList;
@@ -9,13 +18,50 @@ import servlethelpers.LiftRideList;
 /**
  * Our database access object that handles interacting with the liftrides table of the Upic DB.
  * The liftrides table holds information captured when a skier uses their RFID swipe to
- * take a ski lift
+ * take a ski lift. Rides are sharded by skier across the DatabaseShards of DBCPDataSource: writes
+ * and per-skier reads go to the skier's shard, lookups by rideID go to the shard encoded in the
+ * ID, and reads across all skiers are merged from every shard in rideID order.
  */
 public class LiftRideDAO {
-  private static BasicDataSource dataSource;
+  private static final String INSERT_KEYED = "INSERT INTO liftrides " +
+          "(skierID, resortID, tID, liftID, requestKey) VALUES (?,?,?,?,?)";
+  private static final String SELECT_KEYED = "SELECT rideID FROM liftrides WHERE requestKey = ?";
+  // MySQL's error code for an insert that broke a unique index
+  private static final int ER_DUP_ENTRY = 1062;
+  private static final String SELECT_RIDES = "SELECT rideID, skierID, resortID, liftID, tID " +
+          "FROM liftrides WHERE rideID > ?";
+  // rides moved by the ShardRebalancer are only followed this many times
+  private static final int MAX_FORWARDS = 4;
+  private final RecentWrites recentWrites = RecentWrites.getInstance();
 
-  public LiftRideDAO() {
-    dataSource = DBCPDataSource.getDataSource();
+  /**
+   * One shard's open cursor in a scatter-gather read, positioned on its current ride
+   */
+  private static class ShardCursor {
+    private final int shard;
+    private final Connection conn;
+    private final PreparedStatement prepStatement;
+    private ResultSet rows;
+    private int rideID;
+
+    private ShardCursor(int shard, Connection conn, PreparedStatement prepStatement) {
+      this.shard = shard;
+      this.conn = conn;
+      this.prepStatement = prepStatement;
+    }
+
+    /**
+     * Moves the cursor onto its next ride
+     * @return true if there was another ride, false if the shard has no more
+     * @throws SQLException if there was an issue reading from the shard
+     */
+    private boolean advance() throws SQLException {
+      if (!rows.next()) {
+        return false;
+      }
+      rideID = DBCPDataSource.toPublicID(rows.getInt(1), shard);
+      return true;
+    }
   }
 
   /**
@@ -45,16 +91,19 @@ public class LiftRideDAO {
     Connection conn = null;
     PreparedStatement prepStatement = null;
     String query = "SELECT * FROM liftrides WHERE skierID = ?";
+    int shard = DBCPDataSource.shardOf(skierID);
     // this will be updated to new list, otherwise indicates no data found
     LiftRideList rideList = new LiftRideList();
     try {
-      conn = dataSource.getConnection();
+      conn = DBCPDataSource.getShard(shard).getReadConnection("LiftRideDAO.getSkierRides",
+              recentWrites.skierWritten(skierID));
       prepStatement = conn.prepareStatement(query);
       prepStatement.setInt(1, skierID);
       ResultSet queryResult = prepStatement.executeQuery();
       if (queryResult.next()) {
         do {
-          rideList.addRide(new LiftRide(queryResult.getInt("rideID"),
+          rideList.addRide(new LiftRide(
+                  DBCPDataSource.toPublicID(queryResult.getInt("rideID"), shard),
                   queryResult.getInt("skierID"),
                   queryResult.getInt("resortID"),
                   queryResult.getInt("liftID"),
@@ -74,34 +123,148 @@ public class LiftRideDAO {
    * @return a LiftRideList of all lift rides for all skiers
    */
   public LiftRideList getAllLiftRides() {
-    Connection conn = null;
-    PreparedStatement prepStatement = null;
-    String query = "SELECT * FROM liftrides";
     // this will be updated to new list, otherwise indicates no data found
     LiftRideList rideList = new LiftRideList();
     try {
-      conn = dataSource.getConnection();
-      prepStatement = conn.prepareStatement(query);
+      streamLiftRides(null, 0, 0, (rideID, skier, resort, lift, time) ->
+              rideList.addRide(new LiftRide(rideID, skier, resort, lift, time)));
+    } catch (IOException e) {
+      // adding to a list never throws
+      e.printStackTrace();
+    }
+    return rideList;
+  }
+
+  /**
+   * Streams lift rides in ascending rideID order to the given handler straight from a
+   * forward-only cursor, so no rides are held in memory. Supports keyset pagination: only rides
+   * with an ID greater than afterID are returned, up to the given limit. A single skier's rides
+   * come from that skier's shard, while rides for all skiers are merged from every shard.
+   * @param skierID is the ID of the skier whose rides are streamed or null for all skiers
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param limit is the maximum number of rides to stream, 0 for no limit
+   * @param handler is called once for every lift ride read
+   * @return true if every matching ride was streamed, false if the query failed
+   * @throws IOException if the handler failed writing a ride out
+   */
+  public boolean streamLiftRides(Integer skierID, int afterID, int limit, LiftRideHandler handler)
+          throws IOException {
+    if (skierID == null && DBCPDataSource.getShardCount() > 1) {
+      return mergeLiftRides(afterID, limit, handler);
+    }
+    Connection conn = null;
+    PreparedStatement prepStatement = null;
+    int shard = skierID == null ? 0 : DBCPDataSource.shardOf(skierID);
+    boolean success = false;
+    try {
+      conn = DBCPDataSource.getShard(shard).getReadConnection("LiftRideDAO.streamLiftRides",
+              skierID != null && recentWrites.skierWritten(skierID));
+      prepStatement = prepareRideCursor(conn, skierID, DBCPDataSource.localAfter(afterID, shard),
+              limit);
       ResultSet queryResult = prepStatement.executeQuery();
-      if (queryResult.next()) {
-        do {
-          rideList.addRide(new LiftRide(queryResult.getInt("rideID"),
-                  queryResult.getInt("skierID"),
-                  queryResult.getInt("resortID"),
-                  queryResult.getInt("liftID"),
-                  queryResult.getInt("tID")));
-        } while (queryResult.next());
+      while (queryResult.next()) {
+        handler.accept(DBCPDataSource.toPublicID(queryResult.getInt(1), shard),
+                queryResult.getInt(2), queryResult.getInt(3), queryResult.getInt(4),
+                queryResult.getInt(5));
       }
+      success = true;
     } catch (SQLException e) {
       e.printStackTrace();
     } finally {
       closeAll(conn, prepStatement);
     }
-    return rideList;
+    return success;
   }
 
   /**
-   * Takes a specific integer ride ID and returns a Lift Ride object representing that ride
+   * Scatter-gather version of streamLiftRides for all skiers. Opens a streaming cursor on every
+   * shard at once and merges them by rideID, so the merged stream still comes out in ascending
+   * rideID order and each shard only ever has its current row in memory.
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param limit is the maximum number of rides to stream, 0 for no limit
+   * @param handler is called once for every lift ride read
+   * @return true if every matching ride was streamed, false if a query failed
+   * @throws IOException if the handler failed writing a ride out
+   */
+  private boolean mergeLiftRides(int afterID, int limit, LiftRideHandler handler)
+          throws IOException {
+    List<ShardCursor> cursors = new ArrayList<>();
+    PriorityQueue<ShardCursor> merge = new PriorityQueue<>(
+            Comparator.comparingInt((ShardCursor cursor) -> cursor.rideID));
+    boolean success = false;
+    try {
+      for (int shard = 0; shard < DBCPDataSource.getShardCount(); shard++) {
+        Connection conn = DBCPDataSource.getShard(shard).getReadConnection(
+                "LiftRideDAO.mergeLiftRides", false);
+        ShardCursor cursor;
+        try {
+          cursor = new ShardCursor(shard, conn, prepareRideCursor(conn, null,
+                  DBCPDataSource.localAfter(afterID, shard), limit));
+        } catch (SQLException e) {
+          conn.close();
+          throw e;
+        }
+        cursors.add(cursor);
+        cursor.rows = cursor.prepStatement.executeQuery();
+        if (cursor.advance()) {
+          merge.add(cursor);
+        }
+      }
+      int count = 0;
+      while (!merge.isEmpty() && (limit <= 0 || count < limit)) {
+        ShardCursor cursor = merge.poll();
+        handler.accept(cursor.rideID, cursor.rows.getInt(2), cursor.rows.getInt(3),
+                cursor.rows.getInt(4), cursor.rows.getInt(5));
+        count++;
+        if (cursor.advance()) {
+          merge.add(cursor);
+        }
+      }
+      success = true;
+    } catch (SQLException e) {
+      e.printStackTrace();
+    } finally {
+      for (ShardCursor cursor : cursors) {
+        closeAll(cursor.conn, cursor.prepStatement);
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Prepares a forward-only, streaming query for a page of lift rides on one shard
+   * @param conn is our open connection to the shard
+   * @param skierID is the ID of the skier whose rides are read or null for all skiers
+   * @param afterID is the rideID stored by the shard that the page starts after
+   * @param limit is the maximum number of rides to read, 0 for no limit
+   * @return the prepared statement, ready to be executed
+   * @throws SQLException if there was an issue preparing the statement
+   */
+  private PreparedStatement prepareRideCursor(Connection conn, Integer skierID, int afterID,
+                                              int limit) throws SQLException {
+    String query = SELECT_RIDES
+            + (skierID == null ? "" : " AND skierID = ?")
+            + " ORDER BY rideID"
+            + (limit > 0 ? " LIMIT ?" : "");
+    PreparedStatement prepStatement = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+            ResultSet.CONCUR_READ_ONLY);
+    // tells the MySQL driver to stream rows one at a time instead of buffering the result
+    prepStatement.setFetchSize(Integer.MIN_VALUE);
+    int param = 1;
+    prepStatement.setInt(param++, afterID);
+    if (skierID != null) {
+      prepStatement.setInt(param++, skierID);
+    }
+    if (limit > 0) {
+      prepStatement.setInt(param, limit);
+    }
+    return prepStatement;
+  }
+
+  /**
+   * Takes a specific integer ride ID and returns a Lift Ride object representing that ride.
+   * A ride the ShardRebalancer moved to another shard is followed to its new rideID through the
+   * rideforwards table of the shard it was written to, or of shard 0 if that shard was retired.
    * @param rideID is the integer ID of the lift ride to be returned
    * @return a Lift Ride object representing the given rideID or null if not found
    */
@@ -113,87 +276,612 @@ public class LiftRideDAO {
     // this will be updated to a new LiftRide, otherwise indicates no data found
     LiftRide ride = null;
     try {
-      conn = dataSource.getConnection();
-      prepStatement = conn.prepareStatement(query);
+      for (int hops = 0; ride == null && rideID > 0 && hops <= MAX_FORWARDS; hops++) {
+        int localID = DBCPDataSource.toLocalID(rideID);
+        if (localID <= 0) {
+          break;
+        }
+        int shard = DBCPDataSource.shardOfRide(rideID);
+        // a retired shard has no rides left, only forwards kept on shard 0
+        boolean retired = shard >= DBCPDataSource.getShardCount();
+        conn = DBCPDataSource.getShard(DBCPDataSource.forwardShardOf(rideID))
+                .getReadConnection("LiftRideDAO.getLiftRide", recentWrites.rideWritten(rideID));
+        if (!retired) {
+          prepStatement = conn.prepareStatement(query);
+          prepStatement.setInt(1, localID);
+          ResultSet queryResult = prepStatement.executeQuery();
+          if (queryResult.next()) {
+            ride = new LiftRide(rideID, queryResult.getInt("skierID"),
+                    queryResult.getInt("resortID"),
+                    queryResult.getInt("liftID"),
+                    queryResult.getInt("tID"));
+          }
+        }
+        if (ride == null) {
+          rideID = getForward(conn, rideID);
+        }
+        closeAll(conn, prepStatement);
+        conn = null;
+        prepStatement = null;
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    } finally {
+      closeAll(conn, prepStatement);
+    }
+    return ride;
+  }
+
+  /**
+   * Looks up where the ShardRebalancer moved a lift ride to
+   * @param conn is our open connection to the shard the ride was written to
+   * @param rideID is the public ID of the moved lift ride
+   * @return the ride's new public rideID, or -1 if the ride was never moved
+   * @throws SQLException if there was an issue running the query
+   */
+  private int getForward(Connection conn, int rideID) throws SQLException {
+    try (PreparedStatement prepStatement = conn.prepareStatement(
+            "SELECT newRideID FROM rideforwards WHERE rideID = ?")) {
       prepStatement.setInt(1, rideID);
       ResultSet queryResult = prepStatement.executeQuery();
-      if (queryResult.next()) {
-        ride = new LiftRide(rideID, queryResult.getInt("skierID"),
-                queryResult.getInt("resortID"),
-                queryResult.getInt("liftID"),
-                queryResult.getInt("tID"));
+      return queryResult.next() ? queryResult.getInt(1) : -1;
+    }
+  }
+
+  /**
+   * Takes a filled LiftRideInput object and adds the values as a new row to the liftrides table
+   * of the skier's shard. The auto-generated rideID comes back with the INSERT itself, so no
+   * follow up query is needed. If the ride carries an idempotency key that was already used,
+   * no new row is written and the rideID of the original row is returned instead. The ride is
+   * written as a list of one, so it gets the same transaction (and the same checks before its
+   * commit) as a batch.
+   * @param newLiftRide is the Lift Ride object holding the data to be added
+   * @return the integer rideID of the inserted (or previously inserted) row, or -1 if the
+   *         insert failed
+   */
+  public int createLiftRide(LiftRideInput newLiftRide) {
+    int[] ids = createLiftRides(DBCPDataSource.shardOf(newLiftRide.getSkierID()),
+            Collections.singletonList(newLiftRide));
+    return ids == null ? -1 : ids[0];
+  }
+
+  /**
+   * Takes a list of filled LiftRideInput objects and inserts them into the liftrides tables of
+   * their skiers' shards, with one transaction (and so one commit) per shard.
+   * @param newLiftRides is the list of Lift Ride objects holding the data to be added
+   * @return the rideIDs in the same order as the given list, with -1 for every ride whose
+   *         shard failed to commit
+   */
+  public int[] createLiftRides(List<LiftRideInput> newLiftRides) {
+    int[] ids = new int[newLiftRides.size()];
+    int numShards = DBCPDataSource.getShardCount();
+    if (numShards == 1) {
+      int[] written = createLiftRides(0, newLiftRides);
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = written == null ? -1 : written[i];
+      }
+      return ids;
+    }
+    // group the rides by shard, remembering where each one came from
+    List<List<LiftRideInput>> byShard = new ArrayList<>(numShards);
+    List<List<Integer>> positions = new ArrayList<>(numShards);
+    for (int shard = 0; shard < numShards; shard++) {
+      byShard.add(new ArrayList<>());
+      positions.add(new ArrayList<>());
+    }
+    for (int i = 0; i < ids.length; i++) {
+      int shard = DBCPDataSource.shardOf(newLiftRides.get(i).getSkierID());
+      byShard.get(shard).add(newLiftRides.get(i));
+      positions.get(shard).add(i);
+    }
+    for (int shard = 0; shard < numShards; shard++) {
+      if (byShard.get(shard).isEmpty()) {
+        continue;
+      }
+      int[] written = createLiftRides(shard, byShard.get(shard));
+      for (int i = 0; i < positions.get(shard).size(); i++) {
+        ids[positions.get(shard).get(i)] = written == null ? -1 : written[i];
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Takes a list of filled LiftRideInput objects belonging to one shard and inserts them into
+   * its liftrides table inside one transaction, so the whole list costs one commit. The keys of
+   * the list are looked up with a single query, and every ride whose key was not found (or that
+   * has none) is sent in a single JDBC batch, so the list costs two round trips however many of
+   * its rides are keyed. Should a key be taken by a concurrent insert, or match a stored key
+   * only under the column's collation (e.g. in another case), the transaction is rolled back and
+   * tried once more with every keyed ride inserted on its own through insertKeyed.
+   * @param shard is the integer index of the shard the rides belong to
+   * @param newLiftRides is the list of Lift Ride objects holding the data to be added
+   * @return the public rideIDs in the same order as the given list, or null if nothing was
+   *         committed
+   */
+  private int[] createLiftRides(int shard, List<LiftRideInput> newLiftRides) {
+    int[] ids = null;
+    try {
+      ids = createLiftRides(shard, newLiftRides, true);
+    } catch (SQLException e) {
+      if (isDuplicateKey(e)) {
+        try {
+          ids = createLiftRides(shard, newLiftRides, false);
+        } catch (SQLException retryFailure) {
+          retryFailure.printStackTrace();
+        }
+      } else {
+        e.printStackTrace();
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Helper method for createLiftRides that makes one attempt at inserting a shard's rides in a
+   * single transaction
+   * @param shard is the integer index of the shard the rides belong to
+   * @param newLiftRides is the list of Lift Ride objects holding the data to be added
+   * @param batchKeyed is true if keyed rides go in the batch, with any insert losing a race for
+   *                   its key thrown to be retried, and false if they are inserted one at a time
+   * @return the public rideIDs in the same order as the given list, or null if nothing was
+   *         committed
+   * @throws SQLException if batchKeyed is set and a key was taken by a concurrent insert
+   */
+  private int[] createLiftRides(int shard, List<LiftRideInput> newLiftRides,
+                                boolean batchKeyed) throws SQLException {
+    Connection conn = null;
+    PreparedStatement prepStatement = null;
+    // this will be updated to the generated IDs, otherwise indicates the batch failed
+    int[] ids = null;
+    try {
+      conn = DBCPDataSource.getShard(shard).getPrimary()
+              .getConnection("LiftRideDAO.createLiftRides");
+      conn.setAutoCommit(false);
+      int[] generated = new int[newLiftRides.size()];
+      boolean[] batched = new boolean[generated.length];
+      Map<String, Integer> stored = batchKeyed ? findKeyed(conn, newLiftRides) : new HashMap<>();
+      // the first ride of the list holding each key not stored yet
+      Map<String, Integer> firstWithKey = new HashMap<>();
+      int numBatched = 0;
+      prepStatement = conn.prepareStatement(INSERT_KEYED, Statement.RETURN_GENERATED_KEYS);
+      for (int i = 0; i < generated.length; i++) {
+        LiftRideInput newLiftRide = newLiftRides.get(i);
+        String requestKey = newLiftRide.getRequestKey();
+        // a ride only counts as a replay if this attempt found its key
+        newLiftRide.setDuplicate(requestKey != null
+                && (stored.containsKey(requestKey) || firstWithKey.containsKey(requestKey)));
+        if (requestKey != null && !batchKeyed) {
+          generated[i] = insertKeyed(conn, newLiftRide);
+          stored.put(requestKey, generated[i]);
+        } else if (requestKey != null && stored.containsKey(requestKey)) {
+          generated[i] = stored.get(requestKey);
+        } else if (!newLiftRide.isDuplicate()) {
+          if (requestKey != null) {
+            firstWithKey.put(requestKey, i);
+          }
+          setInsertParams(prepStatement, newLiftRide);
+          prepStatement.setString(5, requestKey);
+          prepStatement.addBatch();
+          batched[i] = true;
+          numBatched++;
+        }
+      }
+
+      boolean complete = true;
+      if (numBatched > 0) {
+        prepStatement.executeBatch();
+        // generated keys come back in the same order the rows were added to the batch
+        ResultSet keys = prepStatement.getGeneratedKeys();
+        for (int i = 0; i < generated.length && complete; i++) {
+          if (batched[i]) {
+            complete = keys.next();
+            generated[i] = complete ? keys.getInt(1) : -1;
+          }
+        }
+      }
+      // rides repeating a key earlier in the list replay the ride written for it
+      for (int i = 0; i < generated.length && complete; i++) {
+        String requestKey = newLiftRides.get(i).getRequestKey();
+        if (!batched[i] && !stored.containsKey(requestKey)) {
+          generated[i] = generated[firstWithKey.get(requestKey)];
+        }
+      }
+      // a rideID too large to hand out must not be committed
+      for (int i = 0; i < generated.length && complete; i++) {
+        generated[i] = generated[i] > 0 ? DBCPDataSource.toPublicID(generated[i], shard) : -1;
+        complete = generated[i] > 0;
+      }
+      if (complete) {
+        conn.commit();
+        ids = generated;
+        for (int i = 0; i < ids.length; i++) {
+          recentWrites.record(newLiftRides.get(i).getSkierID(), ids[i]);
+        }
+      } else {
+        conn.rollback();
       }
     } catch (SQLException e) {
+      rollback(conn);
+      if (batchKeyed && isDuplicateKey(e)) {
+        throw e;
+      }
       e.printStackTrace();
     } finally {
       closeAll(conn, prepStatement);
     }
-    return ride;
+    return ids;
   }
 
   /**
-   * Takes a set of parameters and returns the matching LiftRideId
-   * @param skier is the integer ID of the client
-   * @param resort is the integer ID of the resort
-   * @param time is the integer ID of the time
-   * @param liftID is in the integer ID of the ski lift at that resort
-   * @return the integer LiftRideId for the matching client or -1 if no data was found
+   * Helper method for createLiftRides that looks up the idempotency keys of a list of rides with
+   * a single query
+   * @param conn is our open connection to the shard the rides belong to
+   * @param newLiftRides is the list of Lift Ride objects, any of which may hold a key
+   * @return a map from every key of the list already stored on the shard to its rideID
+   * @throws SQLException if there was an issue running the query
    */
-  public int getLiftRideId(int skier, int resort, int time, int liftID) {
+  private Map<String, Integer> findKeyed(Connection conn, List<LiftRideInput> newLiftRides)
+          throws SQLException {
+    Map<String, Integer> stored = new HashMap<>();
+    Set<String> requestKeys = new LinkedHashSet<>();
+    for (LiftRideInput newLiftRide : newLiftRides) {
+      if (newLiftRide.getRequestKey() != null) {
+        requestKeys.add(newLiftRide.getRequestKey());
+      }
+    }
+    if (requestKeys.isEmpty()) {
+      return stored;
+    }
+    StringBuilder query = new StringBuilder(
+            "SELECT rideID, requestKey FROM liftrides WHERE requestKey IN (?");
+    for (int i = 1; i < requestKeys.size(); i++) {
+      query.append(",?");
+    }
+    try (PreparedStatement prepStatement = conn.prepareStatement(query.append(')').toString())) {
+      int param = 1;
+      for (String requestKey : requestKeys) {
+        prepStatement.setString(param++, requestKey);
+      }
+      ResultSet queryResult = prepStatement.executeQuery();
+      while (queryResult.next()) {
+        stored.put(queryResult.getString("requestKey"), queryResult.getInt("rideID"));
+      }
+    }
+    return stored;
+  }
+
+  /**
+   * Checks DB_LEGACY_MAX_RIDE_ID against shard 0 before any rideID is handed out, since a wrong
+   * value silently changes which ride every stored rideID names. The first time it is checked,
+   * the value must cover every rideID already in liftrides and is then recorded in the
+   * rideidlayout table. Every later check must find the value recorded there.
+   * @return a String describing why the configured value can't be used, or null if it can
+   */
+  public String checkRideIDLayout() {
+    int legacyMaxID = DBCPDataSource.getLegacyMaxID();
+    if (legacyMaxID > DBCPDataSource.MAX_LEGACY_ID) {
+      return "DB_LEGACY_MAX_RIDE_ID " + legacyMaxID + " leaves no room for newer rideIDs, the "
+              + "largest supported is " + DBCPDataSource.MAX_LEGACY_ID;
+    }
     Connection conn = null;
     PreparedStatement prepStatement = null;
-    String query = "SELECT rideID FROM liftrides " +
-            "WHERE skierID = ? AND resortID = ? AND tID = ? AND liftID = ? " +
-            "ORDER BY rideID DESC";
-    // this will be updated to correct ID, otherwise indicates no data found
-    int id = -1;
     try {
-      conn = dataSource.getConnection();
-      prepStatement = conn.prepareStatement(query);
-      prepStatement.setInt(1, skier);
-      prepStatement.setInt(2, resort);
-      prepStatement.setInt(3, time);
-      prepStatement.setInt(4, liftID);
+      conn = DBCPDataSource.getShard(0).getPrimary()
+              .getConnection("LiftRideDAO.checkRideIDLayout");
+      prepStatement = conn.prepareStatement("SELECT legacyMaxRideID FROM rideidlayout");
       ResultSet queryResult = prepStatement.executeQuery();
       if (queryResult.next()) {
-        id = queryResult.getInt("rideID");
+        do {
+          if (queryResult.getInt(1) != legacyMaxID) {
+            return "DB_LEGACY_MAX_RIDE_ID is " + legacyMaxID + " but the stored rideIDs were "
+                    + "handed out with " + queryResult.getInt(1);
+          }
+        } while (queryResult.next());
+        return null;
+      }
+      prepStatement.close();
+      prepStatement = conn.prepareStatement("SELECT MAX(rideID) FROM liftrides");
+      queryResult = prepStatement.executeQuery();
+      if (queryResult.next() && queryResult.getInt(1) > legacyMaxID) {
+        return "liftrides holds rideIDs up to " + queryResult.getInt(1)
+                + ", set DB_LEGACY_MAX_RIDE_ID to at least that";
       }
+      prepStatement.close();
+      prepStatement = conn.prepareStatement("INSERT INTO rideidlayout (legacyMaxRideID) " +
+              "VALUES (?) ON DUPLICATE KEY UPDATE legacyMaxRideID = legacyMaxRideID");
+      prepStatement.setInt(1, legacyMaxID);
+      prepStatement.executeUpdate();
+      return null;
     } catch (SQLException e) {
       e.printStackTrace();
+      return "Failed checking DB_LEGACY_MAX_RIDE_ID against shard 0: " + e.getMessage();
     } finally {
       closeAll(conn, prepStatement);
     }
-    return id;
   }
 
   /**
-   * Takes a filled LiftRideInput object and adds the values as a new row to our liftrides table
-   * @param newLiftRide is the Lift Ride object holding the data to be added
-   * @return true if the row was successfully inserted, false otherwise
+   * Lists the skiers with rides stored on a shard, used by the ShardRebalancer
+   * @param shard is the shard being scanned
+   * @return the list of skier IDs found on the shard, or null if the query failed
    */
-  public boolean createLiftRide(LiftRideInput newLiftRide) {
+  public List<Integer> getShardSkiers(DatabaseShard shard) {
     Connection conn = null;
     PreparedStatement prepStatement = null;
-    String insert = "INSERT INTO liftrides (skierID, resortID, tID, liftID) " +
-            "VALUES (?,?,?,?)";
-    // flag to indicate successful insertion
-    boolean success = false;
+    List<Integer> skiers = new ArrayList<>();
     try {
-      conn = dataSource.getConnection();
-      prepStatement = conn.prepareStatement(insert);
-      prepStatement.setInt(1, newLiftRide.getSkierID());
-      prepStatement.setInt(2, newLiftRide.getResortID());
-      prepStatement.setInt(3, newLiftRide.getTime());
-      prepStatement.setInt(4, newLiftRide.getLiftID());
-
-      // execute insert SQL statement and set our flag
-      prepStatement.executeUpdate();
-      success = true;
+      conn = shard.getPrimary().getConnection("LiftRideDAO.getShardSkiers");
+      prepStatement = conn.prepareStatement("SELECT DISTINCT skierID FROM liftrides");
+      ResultSet queryResult = prepStatement.executeQuery();
+      while (queryResult.next()) {
+        skiers.add(queryResult.getInt(1));
+      }
     } catch (SQLException e) {
       e.printStackTrace();
+      skiers = null;
     } finally {
       closeAll(conn, prepStatement);
     }
-    return success;
+    return skiers;
+  }
+
+  /**
+   * Counts the rides whose forwards are kept on shard 0 because the shard they were written to
+   * was retired, used by the ShardRebalancer to refuse bringing a retired shard index back
+   * @param index is the integer index of the retired shard
+   * @return the number of forwards kept for rides of that shard, or -1 if the query failed
+   */
+  public long countRetiredForwards(int index) {
+    Connection conn = null;
+    PreparedStatement prepStatement = null;
+    long count = -1;
+    try {
+      conn = DBCPDataSource.getShard(0).getPrimary()
+              .getConnection("LiftRideDAO.countRetiredForwards");
+      prepStatement = conn.prepareStatement("SELECT rideID FROM rideforwards");
+      ResultSet queryResult = prepStatement.executeQuery();
+      count = 0;
+      while (queryResult.next()) {
+        if (DBCPDataSource.shardOfRide(queryResult.getInt(1)) == index) {
+          count++;
+        }
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+      count = -1;
+    } finally {
+      closeAll(conn, prepStatement);
+    }
+    return count;
+  }
+
+  /**
+   * Moves all of a skier's rides from one shard to another, used by the ShardRebalancer. The
+   * rides are copied to the target shard, a forward from each old public rideID to its new one
+   * is recorded for getLiftRide, and only then are the copied rides deleted from the source
+   * shard. Each step commits on its own, but every step can be safely repeated: a ride keeps its
+   * idempotency key when the target has no other ride under it (so clients replaying the key
+   * still find it), and is otherwise copied under a key made from its old rideID, so rerunning a
+   * move that failed part way through never copies a ride twice. Every copy is checked to be
+   * this skier's ride before anything is forwarded to it or deleted.
+   * @param skierID is the ID of the skier being moved
+   * @param source is the shard currently holding the skier's rides
+   * @param target is the shard the skier's rides are moved to
+   * @return the number of rides moved, or -1 if the move failed
+   */
+  public int moveSkierRides(int skierID, DatabaseShard source, DatabaseShard target) {
+    Connection conn = null;
+    PreparedStatement prepStatement = null;
+    List<Integer> localIDs = new ArrayList<>();
+    List<LiftRideInput> rides = new ArrayList<>();
+    try {
+      // read everything we are about to move
+      conn = source.getPrimary().getConnection("LiftRideDAO.moveSkierRides");
+      prepStatement = conn.prepareStatement("SELECT rideID, resortID, tID, liftID, requestKey " +
+              "FROM liftrides WHERE skierID = ? ORDER BY rideID");
+      prepStatement.setInt(1, skierID);
+      ResultSet queryResult = prepStatement.executeQuery();
+      while (queryResult.next()) {
+        LiftRideInput ride = new LiftRideInput(skierID, queryResult.getInt("resortID"),
+                queryResult.getInt("liftID"), queryResult.getInt("tID"));
+        ride.setRequestKey(queryResult.getString("requestKey"));
+        localIDs.add(queryResult.getInt("rideID"));
+        rides.add(ride);
+      }
+      closeAll(conn, prepStatement);
+      conn = null;
+      prepStatement = null;
+      if (rides.isEmpty()) {
+        return 0;
+      }
+
+      // copy them over to the target shard
+      conn = target.getPrimary().getConnection("LiftRideDAO.moveSkierRides");
+      conn.setAutoCommit(false);
+      int[] oldIDs = new int[rides.size()];
+      int[] newIDs = new int[rides.size()];
+      for (int i = 0; i < newIDs.length; i++) {
+        oldIDs[i] = DBCPDataSource.toPublicID(localIDs.get(i), source.getIndex());
+        newIDs[i] = copyRide(conn, rides.get(i), oldIDs[i]);
+        if (newIDs[i] <= 0) {
+          conn.rollback();
+          return -1;
+        }
+        newIDs[i] = DBCPDataSource.toPublicID(newIDs[i], target.getIndex());
+        // the target has run out of rideIDs it can hand out
+        if (newIDs[i] <= 0) {
+          conn.rollback();
+          return -1;
+        }
+      }
+      conn.commit();
+      closeAll(conn, null);
+      conn = null;
+
+      // leave a forward behind for every old rideID
+      for (int i = 0; i < newIDs.length; i++) {
+        DatabaseShard forwardShard = DBCPDataSource.getShard(
+                DBCPDataSource.forwardShardOf(oldIDs[i]));
+        conn = forwardShard.getPrimary().getConnection("LiftRideDAO.moveSkierRides");
+        prepStatement = conn.prepareStatement("INSERT INTO rideforwards (rideID, newRideID) " +
+                "VALUES (?,?) ON DUPLICATE KEY UPDATE newRideID = VALUES(newRideID)");
+        prepStatement.setInt(1, oldIDs[i]);
+        prepStatement.setInt(2, newIDs[i]);
+        prepStatement.executeUpdate();
+        closeAll(conn, prepStatement);
+        conn = null;
+        prepStatement = null;
+      }
+
+      // and finally drop the rides we copied (and only those) from the source shard
+      conn = source.getPrimary().getConnection("LiftRideDAO.moveSkierRides");
+      conn.setAutoCommit(false);
+      prepStatement = conn.prepareStatement("DELETE FROM liftrides WHERE rideID = ? " +
+              "AND skierID = ?");
+      for (int localID : localIDs) {
+        prepStatement.setInt(1, localID);
+        prepStatement.setInt(2, skierID);
+        prepStatement.addBatch();
+      }
+      prepStatement.executeBatch();
+      conn.commit();
+      return rides.size();
+    } catch (SQLException e) {
+      e.printStackTrace();
+      rollback(conn);
+      return -1;
+    } finally {
+      closeAll(conn, prepStatement);
+    }
+  }
+
+  /**
+   * Helper method for moveSkierRides that copies one ride onto the target shard. A ride is
+   * first copied under its own idempotency key, if it has one. Should that key already belong to
+   * a different ride on the target (keys are only unique per shard), the ride is copied under a
+   * key made from its old rideID instead, which no other ride can hold.
+   * @param conn is our open connection to the target shard
+   * @param ride is the ride being copied, holding its original idempotency key if any
+   * @param oldID is the public rideID the ride is being moved from
+   * @return the rideID stored by the target shard for the copy, or -1 if it could not be copied
+   * @throws SQLException if there was an issue running the insert
+   */
+  private int copyRide(Connection conn, LiftRideInput ride, int oldID) throws SQLException {
+    String movedKey = "moved-" + oldID;
+    if (ride.getRequestKey() == null) {
+      ride.setRequestKey(movedKey);
+    }
+    int id = insertKeyed(conn, ride);
+    if (id > 0 && ride.isDuplicate() && !isSameRide(conn, id, ride)) {
+      if (movedKey.equals(ride.getRequestKey())) {
+        return -1;
+      }
+      ride.setRequestKey(movedKey);
+      ride.setDuplicate(false);
+      id = insertKeyed(conn, ride);
+      if (id > 0 && ride.isDuplicate() && !isSameRide(conn, id, ride)) {
+        return -1;
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Helper method for copyRide that checks a stored row holds the given ride
+   * @param conn is our open connection to the shard holding the row
+   * @param localID is the rideID stored by the shard
+   * @param ride is the ride the row is expected to hold
+   * @return true if the row holds the same skier, resort, lift and time as the ride
+   * @throws SQLException if there was an issue running the query
+   */
+  private boolean isSameRide(Connection conn, int localID, LiftRideInput ride)
+          throws SQLException {
+    try (PreparedStatement prepStatement = conn.prepareStatement("SELECT skierID, resortID, " +
+            "tID, liftID FROM liftrides WHERE rideID = ?")) {
+      prepStatement.setInt(1, localID);
+      ResultSet queryResult = prepStatement.executeQuery();
+      return queryResult.next() && queryResult.getInt("skierID") == ride.getSkierID()
+              && queryResult.getInt("resortID") == ride.getResortID()
+              && queryResult.getInt("tID") == ride.getTime()
+              && queryResult.getInt("liftID") == ride.getLiftID();
+    }
+  }
+
+  /**
+   * Inserts a single lift ride carrying an idempotency key on the given connection. The key is
+   * looked up first, and a replayed key hands back the original rideID without writing a row.
+   * Otherwise the ride is inserted, where the unique index on requestKey turns a concurrent
+   * insert of the same key into a duplicate key error instead of a second row. Neither step
+   * depends on how the driver reports affected rows.
+   * Marks the given ride as a duplicate if its key had already been used.
+   * @param conn is our open connection to the database/datasource
+   * @param newLiftRide is the Lift Ride object holding the data and key to be added
+   * @return the integer rideID of the new or original row, or -1 if none was returned
+   * @throws SQLException if there was an issue running the insert, including losing the race
+   *                      for the key to a concurrent insert (see isDuplicateKey)
+   */
+  private int insertKeyed(Connection conn, LiftRideInput newLiftRide) throws SQLException {
+    int id = -1;
+    try (PreparedStatement prepStatement = conn.prepareStatement(SELECT_KEYED)) {
+      prepStatement.setString(1, newLiftRide.getRequestKey());
+      ResultSet queryResult = prepStatement.executeQuery();
+      if (queryResult.next()) {
+        newLiftRide.setDuplicate(true);
+        return queryResult.getInt(1);
+      }
+    }
+    try (PreparedStatement prepStatement = conn.prepareStatement(INSERT_KEYED,
+            Statement.RETURN_GENERATED_KEYS)) {
+      setInsertParams(prepStatement, newLiftRide);
+      prepStatement.setString(5, newLiftRide.getRequestKey());
+      prepStatement.executeUpdate();
+      ResultSet keys = prepStatement.getGeneratedKeys();
+      if (keys.next()) {
+        id = keys.getInt(1);
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Helper method that checks whether an insert failed on a key some other insert took first.
+   * A transaction seeing this has to start over to find the other insert's row.
+   * @param e is the SQLException thrown by the insert
+   * @return true if the insert broke a unique index
+   */
+  private static boolean isDuplicateKey(SQLException e) {
+    // a failed JDBC batch may only carry the error of its failing row as its cause
+    return e.getErrorCode() == ER_DUP_ENTRY
+            || e instanceof SQLIntegrityConstraintViolationException
+            || e.getCause() instanceof SQLIntegrityConstraintViolationException;
+  }
+
+  /**
+   * Fills in the four lift ride columns shared by our insert statements
+   * @param prepStatement is the insert statement whose parameters are set
+   * @param newLiftRide is the Lift Ride object holding the data to be added
+   * @throws SQLException if a parameter could not be set
+   */
+  private void setInsertParams(PreparedStatement prepStatement, LiftRideInput newLiftRide)
+          throws SQLException {
+    prepStatement.setInt(1, newLiftRide.getSkierID());
+    prepStatement.setInt(2, newLiftRide.getResortID());
+    prepStatement.setInt(3, newLiftRide.getTime());
+    prepStatement.setInt(4, newLiftRide.getLiftID());
+  }
+
+  /**
+   * Rolls back the current transaction on the given connection, if there is one
+   * @param conn is our connection to the database/datasource
+   */
+  private void rollback(Connection conn) {
+    try {
+      if (conn != null) {
+        conn.rollback();
+      }
+    } catch (SQLException se) {
+      se.printStackTrace();
+    }
   }
 }
@@ -0,0 +1,21 @@
+package daos;
+
+import java.io.IOException;
+
+/**
+ * Callback used by our DAOs to hand back lift rides one row at a time as they are read from a
+ * forward-only cursor, so callers can stream rides out without building up a LiftRideList.
+ */
+public interface LiftRideHandler {
+
+  /**
+   * Called once for each lift ride read, in ascending rideID order
+   * @param rideID is the integer ID that identifies this lift ride
+   * @param skier is the integer ID of the client taking this ride
+   * @param resort is the resort ID where this lift ride occurred
+   * @param lift is the integer ID of the lift taken
+   * @param time is an integer representing the time the lift was taken
+   * @throws IOException if the handler failed writing the ride out
+   */
+  void accept(int rideID, int skier, int resort, int lift, int time) throws IOException;
+}
@@ -0,0 +1,248 @@
+package daos;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import servlethelpers.LiftUtilizationReport;
+import servlethelpers.ServerMetrics;
+import servlethelpers.ServerProperties;
+import servlethelpers.SpaceSaving;
+
+/**
+ * Our in-process counts of how many rides every lift of every resort carries in each time bucket
+ * of the ski day, kept up to date by the servlets as rides are committed so reading them never
+ * scans the liftrides table. Every (resort, lift, bucket) has its own LongAdder, so concurrent
+ * writers counting the same busy lift don't contend on one counter, and every resort has a
+ * SpaceSaving sketch of its busiest lifts.
+ * Buckets are UTILIZATION_BUCKET_MINUTES (15 by default) of the UTILIZATION_DAY_MINUTES long ski
+ * day (420 by default, the range of times our clients send). At most UTILIZATION_MAX_LIFTS lifts
+ * (4096 by default) across UTILIZATION_MAX_RESORTS resorts (256 by default) are counted, so a
+ * client sending made up IDs can't grow the counts without bound, and rides past those limits or
+ * outside the ski day are only counted as untracked.
+ * The counts are rebuilt from the StorageEngine in the background at startup, and again every
+ * UTILIZATION_REBUILD_SECS if set, while the old counts keep being served. Rides committed right
+ * as a rebuild starts its scan may be counted twice by it.
+ */
+public class LiftUtilization {
+  private static final LiftUtilization instance = new LiftUtilization();
+  private static final long RETRY_SECS = 30;
+  private final int bucketMinutes;
+  private final int numBuckets;
+  private final int maxLifts;
+  private final int maxResorts;
+  private final int sketchSize;
+  private final ScheduledExecutorService rebuilder;
+  private final LongAdder rebuilds = new LongAdder();
+  private volatile Counts counts;
+  // the counts a rebuild is filling in, guarded by this
+  private volatile Counts next;
+  private volatile boolean complete;
+
+  /**
+   * One full set of counts, replaced as a whole by every rebuild
+   */
+  private class Counts {
+    private final Map<Integer, ResortCounts> resorts = new ConcurrentHashMap<>();
+    private final AtomicInteger lifts = new AtomicInteger();
+    private final LongAdder untracked = new LongAdder();
+
+    /**
+     * Counts one ride
+     * @param resort is the resort ID where the ride occurred
+     * @param lift is the integer ID of the lift taken
+     * @param time is an integer representing the time the lift was taken
+     */
+    private void add(int resort, int lift, int time) {
+      if (time < 1 || (time - 1) / bucketMinutes >= numBuckets) {
+        untracked.increment();
+        return;
+      }
+      ResortCounts resortCounts = resorts.get(resort);
+      if (resortCounts == null) {
+        if (resorts.size() >= maxResorts) {
+          untracked.increment();
+          return;
+        }
+        resortCounts = resorts.computeIfAbsent(resort, id -> new ResortCounts());
+      }
+      LongAdder[] buckets = resortCounts.lifts.get(lift);
+      if (buckets == null) {
+        if (lifts.get() >= maxLifts) {
+          untracked.increment();
+          return;
+        }
+        buckets = resortCounts.lifts.computeIfAbsent(lift, id -> {
+          lifts.incrementAndGet();
+          LongAdder[] created = new LongAdder[numBuckets];
+          for (int i = 0; i < numBuckets; i++) {
+            created[i] = new LongAdder();
+          }
+          return created;
+        });
+      }
+      buckets[(time - 1) / bucketMinutes].increment();
+      resortCounts.busiest.add(lift);
+    }
+  }
+
+  /**
+   * The counts of one resort
+   */
+  private class ResortCounts {
+    private final Map<Integer, LongAdder[]> lifts = new ConcurrentHashMap<>();
+    private final SpaceSaving busiest = new SpaceSaving(sketchSize);
+  }
+
+  /**
+   * Sets up our counts from the server properties and starts rebuilding them
+   */
+  private LiftUtilization() {
+    this.bucketMinutes = Math.max(1, ServerProperties.getInt("UTILIZATION_BUCKET_MINUTES", 15));
+    int dayMinutes = Math.max(1, ServerProperties.getInt("UTILIZATION_DAY_MINUTES", 420));
+    this.numBuckets = (dayMinutes + bucketMinutes - 1) / bucketMinutes;
+    this.maxLifts = ServerProperties.getInt("UTILIZATION_MAX_LIFTS", 4096);
+    this.maxResorts = ServerProperties.getInt("UTILIZATION_MAX_RESORTS", 256);
+    this.sketchSize = Math.max(1, ServerProperties.getInt("UTILIZATION_SKETCH_SIZE", 32));
+    this.counts = new Counts();
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    metrics.registerGauge("utilization_lifts", () -> counts.lifts.get());
+    metrics.registerCounter("utilization_untracked_rides_total", () -> counts.untracked.sum());
+    metrics.registerCounter("utilization_rebuilds_total", rebuilds::sum);
+    // a rebuild is a full scan, so it takes its connections from the scan compartment
+    rebuilder = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(() -> {
+        Bulkhead.SCANS.bind();
+        task.run();
+      }, "utilization-rebuilder");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long period = ServerProperties.getLong("UTILIZATION_REBUILD_SECS", 0);
+    if (period > 0) {
+      rebuilder.scheduleWithFixedDelay(this::rebuild, 0, period, TimeUnit.SECONDS);
+    } else {
+      rebuilder.execute(this::rebuildUntilDone);
+    }
+  }
+
+  /**
+   * Simple getter for the single set of counts shared by our servlets
+   * @return the LiftUtilization instance
+   */
+  public static LiftUtilization getInstance() {
+    return instance;
+  }
+
+  /**
+   * Counts a ride that was just committed. Replays of an earlier ride must not be counted again.
+   * @param resort is the resort ID where the ride occurred
+   * @param lift is the integer ID of the lift taken
+   * @param time is an integer representing the time the lift was taken
+   */
+  public void rideCommitted(int resort, int lift, int time) {
+    if (next == null) {
+      counts.add(resort, lift, time);
+      return;
+    }
+    // a rebuild swapping its counts in must not lose the rides counted while it ran
+    synchronized (this) {
+      counts.add(resort, lift, time);
+      if (next != null) {
+        next.add(resort, lift, time);
+      }
+    }
+  }
+
+  /**
+   * Rebuilds our counts from every ride in the StorageEngine, keeping the old counts if the
+   * scan fails
+   * @return true if the counts were rebuilt, false if the scan failed
+   */
+  private boolean rebuild() {
+    Counts rebuilt = new Counts();
+    synchronized (this) {
+      next = rebuilt;
+    }
+    boolean scanned;
+    try {
+      scanned = StorageEngine.getInstance().streamLiftRides(null, 0, 0,
+              (rideID, skier, resort, lift, time) -> rebuilt.add(resort, lift, time));
+    } catch (IOException e) {
+      e.printStackTrace();
+      scanned = false;
+    }
+    synchronized (this) {
+      // swapped in before next is cleared, so a writer that sees no rebuild running never adds
+      // to the counts being thrown away
+      if (scanned) {
+        counts = rebuilt;
+        complete = true;
+        rebuilds.increment();
+      }
+      next = null;
+    }
+    return scanned;
+  }
+
+  /**
+   * Helper method that runs the rebuild at startup, trying again every RETRY_SECS until it
+   * succeeds when no periodic rebuild would
+   */
+  private void rebuildUntilDone() {
+    if (!rebuild()) {
+      System.out.println("Failed rebuilding lift utilization, retrying in " + RETRY_SECS + "s");
+      rebuilder.schedule(this::rebuildUntilDone, RETRY_SECS, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Reports the bucketed rides of a resort's lifts, and its busiest lifts
+   * @param resortID is the integer ID of the resort to report on
+   * @param liftID is the integer ID of the only lift to report on, or null for every lift
+   * @param topLifts is the most busiest lifts to report
+   * @return the LiftUtilizationReport of the resort
+   */
+  public LiftUtilizationReport report(int resortID, Integer liftID, int topLifts) {
+    Counts current = counts;
+    LiftUtilizationReport report = new LiftUtilizationReport(resortID, bucketMinutes, complete);
+    ResortCounts resortCounts = current.resorts.get(resortID);
+    if (resortCounts == null) {
+      return report;
+    }
+    if (liftID != null) {
+      LongAdder[] buckets = resortCounts.lifts.get(liftID);
+      if (buckets != null) {
+        report.addLift(liftID, sum(buckets));
+      }
+    } else {
+      // sorted so clients see the lifts in the same order every time
+      for (Map.Entry<Integer, LongAdder[]> lift : new TreeMap<>(resortCounts.lifts).entrySet()) {
+        report.addLift(lift.getKey(), sum(lift.getValue()));
+      }
+    }
+    for (SpaceSaving.Counter busy : resortCounts.busiest.top(topLifts)) {
+      report.addBusiestLift((int) busy.getKey(), busy.getCount(), busy.getError());
+    }
+    return report;
+  }
+
+  /**
+   * Helper method for report that reads a lift's counters
+   * @param buckets are the counters of every bucket of the lift
+   * @return the number of rides in every bucket
+   */
+  private static long[] sum(LongAdder[] buckets) {
+    long[] rides = new long[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      rides[i] = buckets[i].sum();
+    }
+    return rides;
+  }
+}
@@ -0,0 +1,91 @@
+package daos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import servlethelpers.ServerProperties;
+
+/**
+ * Remembers which skiers and lift rides were written recently so their reads can be sent to the
+ * primary instead of a replica that may not have caught up yet (read-your-writes). Writes are
+ * stamped into fixed-size tables of timestamps indexed by a hash of the ID, so recording and
+ * checking are a single array access with no locking or cleanup. Two IDs sharing a slot only
+ * make a read go to the primary when it didn't have to, which is always safe.
+ * Turned on with READ_YOUR_WRITES (on by default) and READ_YOUR_WRITES_MS sets how long after a
+ * write its reads stay on the primary.
+ */
+public class RecentWrites {
+  private static final RecentWrites instance = new RecentWrites();
+  private static final int SLOTS = 1 << 16;
+  private static final int MASK = SLOTS - 1;
+  private final AtomicLongArray skierWrites = new AtomicLongArray(SLOTS);
+  private final AtomicLongArray rideWrites = new AtomicLongArray(SLOTS);
+  private final boolean enabled;
+  private final long windowNanos;
+
+  /**
+   * Sets up our tables using the settings found in the system properties
+   */
+  private RecentWrites() {
+    enabled = ServerProperties.getBoolean("READ_YOUR_WRITES", true);
+    windowNanos = TimeUnit.MILLISECONDS.toNanos(
+            ServerProperties.getLong("READ_YOUR_WRITES_MS", 1000));
+  }
+
+  /**
+   * Simple getter for the single table shared by our DAOs
+   * @return the RecentWrites instance
+   */
+  public static RecentWrites getInstance() {
+    return instance;
+  }
+
+  /**
+   * Records that a lift ride was just committed to the primary
+   * @param skierID is the ID of the skier the ride belongs to
+   * @param rideID is the generated ID of the ride
+   */
+  public void record(int skierID, int rideID) {
+    if (enabled) {
+      // 0 marks an empty slot, so a clock that lands on 0 is nudged off it
+      long now = System.nanoTime() | 1;
+      skierWrites.lazySet(slot(skierID), now);
+      rideWrites.lazySet(slot(rideID), now);
+    }
+  }
+
+  /**
+   * @param skierID is the ID of the skier about to be read
+   * @return true if the skier had a ride written recently enough that we should read from the
+   *         primary
+   */
+  public boolean skierWritten(int skierID) {
+    return enabled && isRecent(skierWrites.get(slot(skierID)));
+  }
+
+  /**
+   * @param rideID is the ID of the lift ride about to be read
+   * @return true if the ride was written recently enough that we should read from the primary
+   */
+  public boolean rideWritten(int rideID) {
+    return enabled && isRecent(rideWrites.get(slot(rideID)));
+  }
+
+  /**
+   * @param writeTime is the nanoTime stamped in a slot, 0 if nothing was ever written there
+   * @return true if the stamp falls inside our read-your-writes window
+   */
+  private boolean isRecent(long writeTime) {
+    return writeTime != 0 && System.nanoTime() - writeTime < windowNanos;
+  }
+
+  /**
+   * @param id is the skier or ride ID
+   * @return the index of the slot the ID is tracked in
+   */
+  private static int slot(int id) {
+    // spread sequential IDs so neighbours don't share the low bits of the index
+    int hash = id * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & MASK;
+  }
+}
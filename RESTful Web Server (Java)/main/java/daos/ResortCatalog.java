@@ -0,0 +1,189 @@
+package daos;
+
+import com.google.gson.Gson;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import servlethelpers.ETags;
+import servlethelpers.ResortList;
+import servlethelpers.ServerProperties;
+
+/**
+ * Our in-process catalog of active resorts. Resorts almost never change, so rather than every
+ * request querying the resorts table, the catalog loads the ResortList once, keeps it (along with
+ * its pre-serialized JSON) in memory, and reloads it in the background every
+ * RESORT_CACHE_TTL_SECS seconds or when refresh is called. The first load also happens in the
+ * background, so getting the catalog never touches the database. Until that load succeeds, reads
+ * from the catalog load it themselves, which is why callers check isLoaded first and only read
+ * from a container thread once it has. Every load carries an ETag of its JSON, which clients can
+ * send back to skip downloading an unchanged list.
+ */
+public class ResortCatalog {
+  private static final ResortCatalog instance = new ResortCatalog();
+  private final Gson gson = new Gson();
+  private volatile Snapshot snapshot;
+
+  /**
+   * An immutable view of the catalog as of its last successful load
+   */
+  public static class Snapshot {
+    private final ResortList resorts;
+    private final byte[] json;
+    private final long version;
+    private final String etag;
+
+    private Snapshot(ResortList resorts, byte[] json, long version) {
+      this.resorts = resorts;
+      this.json = json;
+      this.version = version;
+      this.etag = ETags.of(json);
+    }
+
+    /**
+     * @return the ResortList of active resorts, which callers must not add to
+     */
+    public ResortList getResorts() {
+      return resorts;
+    }
+
+    /**
+     * @return the JSON bytes of our ResortList, which callers must not modify
+     */
+    public byte[] getJson() {
+      return json;
+    }
+
+    /**
+     * @return the long version of the catalog
+     */
+    public long getVersion() {
+      return version;
+    }
+
+    /**
+     * @return the strong ETag of our ResortList's JSON
+     */
+    public String getETag() {
+      return etag;
+    }
+  }
+
+  /**
+   * Schedules our catalog's first load right away and its reloads after that, all in the
+   * background
+   */
+  private ResortCatalog() {
+    long ttl = ServerProperties.getLong("RESORT_CACHE_TTL_SECS", 300);
+    // loading the resorts is a scan, so it takes its connections from the scan compartment
+    ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(() -> {
+        Bulkhead.SCANS.bind();
+        task.run();
+      }, "resort-catalog-reloader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    reloader.scheduleWithFixedDelay(this::reload, 0, ttl, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Helper method that runs a background load, which must not throw or it would never be run
+   * again
+   */
+  private void reload() {
+    try {
+      refresh();
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Simple getter for the single catalog shared by our servlets
+   * @return the ResortCatalog instance
+   */
+  public static ResortCatalog getInstance() {
+    return instance;
+  }
+
+  /**
+   * Reloads the catalog from the resorts table. If the reload fails the previously loaded
+   * resorts are kept.
+   * @return true if the catalog was reloaded, false if the query failed
+   */
+  public synchronized boolean refresh() {
+    ResortList resorts = StorageEngine.getInstance().getResortList();
+    if (resorts == null) {
+      return false;
+    }
+    byte[] json = gson.toJson(resorts).getBytes(StandardCharsets.UTF_8);
+    // only an actual change in the resorts moves the catalog to a new version
+    if (snapshot != null && Arrays.equals(json, snapshot.json)) {
+      return true;
+    }
+    long version = snapshot == null ? 1 : snapshot.version + 1;
+    snapshot = new Snapshot(resorts, json, version);
+    return true;
+  }
+
+  /**
+   * Returns the current snapshot, loading it first if the catalog has never loaded
+   * @return the current Snapshot or null if the resorts could not be loaded
+   */
+  private Snapshot current() {
+    Snapshot cur = snapshot;
+    if (cur == null && refresh()) {
+      cur = snapshot;
+    }
+    return cur;
+  }
+
+  /**
+   * Checks whether the catalog has loaded, meaning reads from it will not touch the database
+   * @return true if the resorts have been loaded, false otherwise
+   */
+  public boolean isLoaded() {
+    return snapshot != null;
+  }
+
+  /**
+   * Returns everything the catalog currently holds at once, so a response can be built from a
+   * single load even if a reload happens while it is being written
+   * @return the current Snapshot or null if the resorts could not be loaded
+   */
+  public Snapshot getSnapshot() {
+    return current();
+  }
+
+  /**
+   * Returns our indexed list of active resorts. The list is shared, so callers must not add to it.
+   * @return the ResortList of active resorts or null if the resorts could not be loaded
+   */
+  public ResortList getResorts() {
+    Snapshot cur = current();
+    return cur == null ? null : cur.resorts;
+  }
+
+  /**
+   * Returns the UTF-8 JSON encoding of our list of active resorts, ready to be written to a
+   * response. The array is shared, so callers must not modify it.
+   * @return the JSON bytes of our ResortList or null if the resorts could not be loaded
+   */
+  public byte[] getJson() {
+    Snapshot cur = current();
+    return cur == null ? null : cur.json;
+  }
+
+  /**
+   * Returns a number identifying the current contents of the catalog, which goes up on every
+   * successful reload
+   * @return the long version of the catalog or 0 if the resorts could not be loaded
+   */
+  public long getVersion() {
+    Snapshot cur = current();
+    return cur == null ? 0 : cur.version;
+  }
+}
@@ -1,6 +1,5 @@
 package daos;
 
-import org.apache.commons.dbcp2.BasicDataSource;
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.PreparedStatement;
@@ -15,7 +14,7 @@ import servlethelpers.ResortList;
  * The resorts table holds information on our current active resorts.
  */
 public class ResortDAO {
-  private static BasicDataSource dataSource;
+  private static InstrumentedDataSource dataSource;
 
   public ResortDAO() {
     dataSource = DBCPDataSource.getDataSource();
@@ -24,6 +23,7 @@ public class ResortDAO {
   /**
    * Queries our database and returns a ResortList object filled with the
    * current active resorts we have
+   * @return a ResortList of our active resorts or null if the query failed
    */
   public ResortList getResortList() {
     Connection conn = null;
@@ -31,7 +31,7 @@ public class ResortDAO {
     ResortList resorts = new ResortList();
     String query = "SELECT resortID, name FROM resorts";
     try {
-      conn = dataSource.getConnection();
+      conn = DBCPDataSource.getReadConnection("ResortDAO.getResortList", false);
       statement = conn.createStatement();
       ResultSet queryResult = statement.executeQuery(query);
       // construct a new Resort object from the data
@@ -42,6 +42,7 @@ public class ResortDAO {
       }
     } catch (SQLException e) {
       e.printStackTrace();
+      resorts = null;
     } finally {
       try {
         if (conn != null) {
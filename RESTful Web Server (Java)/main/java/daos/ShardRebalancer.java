@@ -0,0 +1,121 @@
+package daos;
+
+import java.util.List;
+
+/**
+ * Command line tool that moves skiers' lift rides onto the shards they belong to after DB_SHARDS
+ * has been changed. It is run with the same database system properties as the server, with
+ * DB_SHARDS set to the new number of shards, and is given the number of shards the rides were
+ * spread across before:
+ *
+ *   java -DDB_SHARDS=4 -DSHARD1_DB_URL=... daos.ShardRebalancer 2
+ *
+ * Every shard is scanned for skiers that now hash to a different shard and their rides are moved
+ * one skier at a time through LiftRideDAO.moveSkierRides, so old rideIDs keep resolving through
+ * the rideforwards tables. When shrinking, the retired shards still have to be configured so they
+ * can be drained, and the forwards of their rides are kept on shard 0. A retired shard's old
+ * rideIDs would collide with the ones a new database at its index hands out, so growing back
+ * into an index that was retired is refused. Since jump consistent hashing only moves the skiers
+ * that have to move, growing from N to N+1 shards moves about 1/(N+1) of the rides. The tool can
+ * be stopped and rerun at any point, and while it runs a skier being moved may briefly be missing
+ * some rides from their per-skier reads.
+ */
+public class ShardRebalancer {
+  private final LiftRideDAO liftDAO = new LiftRideDAO();
+  private final int fromShards;
+  private final int toShards;
+
+  /**
+   * Constructs a rebalancer moving rides from the given layout to the one in DB_SHARDS
+   * @param fromShards is the number of shards the rides are currently spread across
+   * @throws IllegalArgumentException if the number of shards is out of range
+   */
+  public ShardRebalancer(int fromShards) throws IllegalArgumentException {
+    if (fromShards < 1 || fromShards > DBCPDataSource.MAX_SHARDS) {
+      throw new IllegalArgumentException("Shard count must be between 1 and "
+              + DBCPDataSource.MAX_SHARDS);
+    }
+    this.fromShards = fromShards;
+    this.toShards = DBCPDataSource.getShardCount();
+  }
+
+  /**
+   * Moves every skier that is on the wrong shard
+   * @return the number of rides moved, or -1 if any skier failed to move
+   */
+  public long rebalance() {
+    String unresolvable = checkLayout();
+    if (unresolvable != null) {
+      System.out.println("Refusing to rebalance: " + unresolvable);
+      return -1;
+    }
+    long moved = 0;
+    boolean failed = false;
+    for (int index = 0; index < Math.max(fromShards, toShards); index++) {
+      DatabaseShard source = DBCPDataSource.getAnyShard(index);
+      List<Integer> skiers = liftDAO.getShardSkiers(source);
+      if (skiers == null) {
+        System.out.println("Failed reading skiers from shard " + index);
+        failed = true;
+        continue;
+      }
+      for (int skierID : skiers) {
+        int target = DBCPDataSource.shardOf(skierID);
+        if (target == index) {
+          continue;
+        }
+        int rides = liftDAO.moveSkierRides(skierID, source, DBCPDataSource.getShard(target));
+        if (rides < 0) {
+          System.out.println("Failed moving skier " + skierID + " from shard " + index);
+          failed = true;
+        } else {
+          moved += rides;
+        }
+      }
+      System.out.println("Finished shard " + index + ", " + moved + " rides moved so far");
+    }
+    return failed ? -1 : moved;
+  }
+
+  /**
+   * Helper method for rebalance that checks DB_LEGACY_MAX_RIDE_ID matches the stored rideIDs
+   * and that every old rideID can still be resolved once the rides are spread across the new
+   * layout
+   * @return a String describing why the layout can't be resolved, or null if it can
+   */
+  private String checkLayout() {
+    String unresolvable = liftDAO.checkRideIDLayout();
+    if (unresolvable != null) {
+      return unresolvable;
+    }
+    for (int index = fromShards; index < toShards; index++) {
+      long forwards = liftDAO.countRetiredForwards(index);
+      if (forwards < 0) {
+        return "failed reading the forwards kept on shard 0";
+      }
+      if (forwards > 0) {
+        return "shard " + index + " was retired and " + forwards + " of its old rideIDs would "
+                + "collide with the ones its new database hands out";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Runs the rebalancer
+   * @param args holds the number of shards the rides are currently spread across
+   */
+  public static void main(String[] args) {
+    if (args.length != 1) {
+      System.out.println("Usage: ShardRebalancer <previous number of shards>");
+      return;
+    }
+    ShardRebalancer rebalancer = new ShardRebalancer(Integer.parseInt(args[0]));
+    long moved = rebalancer.rebalance();
+    if (moved < 0) {
+      System.out.println("Rebalance incomplete, rerun to finish moving the remaining skiers");
+    } else {
+      System.out.println("Rebalance complete, " + moved + " rides moved");
+    }
+  }
+}
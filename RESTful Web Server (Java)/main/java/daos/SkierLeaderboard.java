@@ -0,0 +1,113 @@
+package daos;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import servlethelpers.Leaderboard;
+import servlethelpers.ServerMetrics;
+import servlethelpers.ServerProperties;
+import servlethelpers.SpaceSaving;
+
+/**
+ * Our live leaderboards of the skiers taking the most lift rides at every resort, kept up to
+ * date by the servlets as rides are committed so reading one never runs a GROUP BY over the
+ * liftrides table. Every resort's leaderboard is a set of SpaceSaving sketches, each counting
+ * the skiers whose IDs hash to it, so concurrent writers rarely wait on the same sketch's lock
+ * and a skier's count is never split between sketches.
+ * Every leaderboard tracks LEADERBOARD_SIZE skiers (1024 by default) across
+ * LEADERBOARD_STRIPES sketches (8 by default), however many skiers ride, so reading its top is
+ * a sort of a few thousand counters at most. At most LEADERBOARD_MAX_RESORTS resorts (256 by
+ * default) get a leaderboard. Only rides committed since the server started are counted.
+ */
+public class SkierLeaderboard {
+  private static final SkierLeaderboard instance = new SkierLeaderboard();
+  private final Map<Integer, SpaceSaving[]> resorts = new ConcurrentHashMap<>();
+  private final int stripes;
+  private final int stripeSize;
+  private final int maxResorts;
+  private final LongAdder untracked = new LongAdder();
+
+  /**
+   * Sets up our leaderboards from the server properties
+   */
+  private SkierLeaderboard() {
+    this.stripes = Math.max(1, ServerProperties.getInt("LEADERBOARD_STRIPES", 8));
+    int size = Math.max(1, ServerProperties.getInt("LEADERBOARD_SIZE", 1024));
+    this.stripeSize = (size + stripes - 1) / stripes;
+    this.maxResorts = ServerProperties.getInt("LEADERBOARD_MAX_RESORTS", 256);
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    metrics.registerGauge("leaderboard_resorts", resorts::size);
+    metrics.registerCounter("leaderboard_untracked_rides_total", untracked::sum);
+  }
+
+  /**
+   * Simple getter for the single set of leaderboards shared by our servlets
+   * @return the SkierLeaderboard instance
+   */
+  public static SkierLeaderboard getInstance() {
+    return instance;
+  }
+
+  /**
+   * Counts a ride that was just committed towards its skier's place on its resort's
+   * leaderboard. Replays of an earlier ride must not be counted again.
+   * @param resort is the resort ID where the ride occurred
+   * @param skier is the integer ID of the skier taking the ride
+   */
+  public void rideCommitted(int resort, int skier) {
+    SpaceSaving[] sketches = resorts.get(resort);
+    if (sketches == null) {
+      if (resorts.size() >= maxResorts) {
+        untracked.increment();
+        return;
+      }
+      sketches = resorts.computeIfAbsent(resort, id -> {
+        SpaceSaving[] created = new SpaceSaving[stripes];
+        for (int i = 0; i < stripes; i++) {
+          created[i] = new SpaceSaving(stripeSize);
+        }
+        return created;
+      });
+    }
+    // spread the IDs' bits, sequential skierIDs would otherwise land on sketches in turn
+    int hash = skier * 0x9E3779B9;
+    sketches[(hash >>> 16) % stripes].add(skier);
+  }
+
+  /**
+   * Returns the skiers with the most rides at a resort
+   * @param resortID is the integer ID of the resort
+   * @param top is the most skiers to return
+   * @return the resort's Leaderboard, empty if none of its rides were counted
+   */
+  public Leaderboard top(int resortID, int top) {
+    Leaderboard leaderboard = new Leaderboard(resortID);
+    SpaceSaving[] sketches = resorts.get(resortID);
+    if (sketches == null) {
+      return leaderboard;
+    }
+    // every skier is counted by one sketch only, so the top of the whole resort is among the
+    // tops of its sketches
+    List<SpaceSaving.Counter> counters = new ArrayList<>();
+    for (SpaceSaving sketch : sketches) {
+      counters.addAll(sketch.top(top));
+    }
+    counters.sort(Comparator.comparingLong(SpaceSaving.Counter::getCount).reversed());
+    for (int i = 0; i < counters.size() && i < top; i++) {
+      SpaceSaving.Counter counter = counters.get(i);
+      leaderboard.addSkier((int) counter.getKey(), counter.getCount(), counter.getError());
+    }
+    return leaderboard;
+  }
+
+  /**
+   * @return the most skiers a leaderboard can hold
+   */
+  public int getSize() {
+    return stripes * stripeSize;
+  }
+}
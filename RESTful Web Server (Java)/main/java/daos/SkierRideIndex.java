@@ -0,0 +1,326 @@
+package daos;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An off-heap secondary index from skierID to the skier's lift rides. Every skier has a posting
+ * list of 16 byte records (rideID, resort, lift and time) kept sorted by rideID in one contiguous
+ * region of direct memory, so a skier's rides are read with a binary search and a sequential copy
+ * of ints, and millions of rides put no objects on the heap for the garbage collector to trace.
+ * Regions come in power of 2 sizes carved out of 64MB direct buffers: a posting list that fills its
+ * region is copied into one twice as large and its old region is kept for reuse by another skier.
+ * Once the configured maximum of direct memory is used up, skiers whose lists can't grow are marked
+ * as overflowed and have to be read from elsewhere.
+ * Rides are added under a single lock. Reads take no lock at all unless a ride was added to the
+ * same skier while they copied, in which case they copy again under the skier's read lock.
+ */
+public class SkierRideIndex {
+  private static final int RECORD_BYTES = 16;
+  private static final int CHUNK_SHIFT = 26;
+  private static final int CHUNK_BYTES = 1 << CHUNK_SHIFT;
+  // the smallest region holds 4 records, the largest a whole chunk
+  private static final int MIN_CLASS_SHIFT = 2;
+  private static final int NUM_CLASSES = CHUNK_SHIFT - 4 - MIN_CLASS_SHIFT + 1;
+  private final Map<Integer, Posting> postings = new ConcurrentHashMap<>();
+  private final int maxChunks;
+  // guarded by this
+  private final List<ArrayDeque<Long>> freeRegions = new ArrayList<>();
+  private int chunkUsed = CHUNK_BYTES;
+  private long rides;
+  private long overflows;
+  // replaced with a longer copy whenever a chunk is added
+  private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+  /**
+   * The posting list of one skier. Its fields are written under its write lock and read
+   * optimistically, see read.
+   */
+  private static class Posting {
+    private final StampedLock lock = new StampedLock();
+    private long address = -1;
+    private int sizeClass = -1;
+    private int count;
+    private boolean overflowed;
+
+    /**
+     * @return the number of records our region holds
+     */
+    private int capacity() {
+      return sizeClass < 0 ? 0 : 1 << (sizeClass + MIN_CLASS_SHIFT);
+    }
+  }
+
+  /**
+   * Constructs an empty index
+   * @param maxBytes is the most direct memory the index may allocate, rounded up to whole 64MB
+   *                 chunks
+   */
+  public SkierRideIndex(long maxBytes) {
+    this.maxChunks = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+            (maxBytes + CHUNK_BYTES - 1) / CHUNK_BYTES));
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      freeRegions.add(new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * Adds a lift ride to its skier's posting list, keeping the list sorted by rideID. Adding a
+   * ride that is already indexed does nothing, so rides may be added more than once and in any
+   * order.
+   * @param skierID is the integer ID of the skier taking the ride
+   * @param rideID is the integer ID of the lift ride
+   * @param resort is the resort ID where the lift ride occurred
+   * @param lift is the integer ID of the lift taken
+   * @param time is an integer representing the time the lift was taken
+   * @return true if the ride is indexed, false if the skier's posting list overflowed
+   */
+  public synchronized boolean add(int skierID, int rideID, int resort, int lift, int time) {
+    Posting posting = postings.computeIfAbsent(skierID, skier -> new Posting());
+    if (posting.overflowed) {
+      return false;
+    }
+    long stamp = posting.lock.writeLock();
+    try {
+      int position = posting.count;
+      // rides mostly arrive in rideID order, anything else is searched for
+      if (position > 0 && getInt(posting.address, position - 1, 0) >= rideID) {
+        position = search(posting.address, posting.count, rideID);
+        if (position >= 0) {
+          return true;
+        }
+        position = -position - 1;
+      }
+      if (posting.count == posting.capacity() && !grow(posting)) {
+        return false;
+      }
+      ByteBuffer chunk = chunkOf(posting.address);
+      int base = offsetOf(posting.address);
+      // shift the later records up by one, from the end so none are overwritten
+      for (int i = posting.count; i > position; i--) {
+        int to = base + i * RECORD_BYTES;
+        chunk.putLong(to, chunk.getLong(to - RECORD_BYTES));
+        chunk.putLong(to + 8, chunk.getLong(to - RECORD_BYTES + 8));
+      }
+      int at = base + position * RECORD_BYTES;
+      chunk.putInt(at, rideID);
+      chunk.putInt(at + 4, resort);
+      chunk.putInt(at + 8, lift);
+      chunk.putInt(at + 12, time);
+      posting.count++;
+      rides++;
+      return true;
+    } finally {
+      posting.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Helper method for add that moves a full posting list into a region twice as large, or marks
+   * it as overflowed (dropping its records) if there is no room for one
+   * @param posting is the full posting list, write locked by the caller
+   * @return true if the posting list has room for another record
+   */
+  private boolean grow(Posting posting) {
+    int sizeClass = posting.sizeClass + 1;
+    long address = sizeClass < NUM_CLASSES ? allocate(sizeClass) : -1;
+    if (posting.sizeClass >= 0) {
+      if (address >= 0) {
+        ByteBuffer from = chunkOf(posting.address).duplicate();
+        int offset = offsetOf(posting.address);
+        from.position(offset).limit(offset + posting.count * RECORD_BYTES);
+        ByteBuffer to = chunkOf(address).duplicate();
+        to.position(offsetOf(address));
+        to.put(from);
+      }
+      freeRegions.get(posting.sizeClass).push(posting.address);
+    }
+    if (address < 0) {
+      rides -= posting.count;
+      overflows++;
+      posting.overflowed = true;
+      posting.address = -1;
+      posting.sizeClass = -1;
+      posting.count = 0;
+      return false;
+    }
+    posting.address = address;
+    posting.sizeClass = sizeClass;
+    return true;
+  }
+
+  /**
+   * Helper method for grow that finds a free region of the given size class, reusing one given
+   * up by another posting list or else carving one out of our newest chunk
+   * @param sizeClass is the size class of the region
+   * @return the long address of the region, or -1 if the index is out of direct memory
+   */
+  private long allocate(int sizeClass) {
+    Long free = freeRegions.get(sizeClass).poll();
+    if (free != null) {
+      return free;
+    }
+    int bytes = RECORD_BYTES << (sizeClass + MIN_CLASS_SHIFT);
+    if (CHUNK_BYTES - chunkUsed < bytes) {
+      ByteBuffer[] current = chunks;
+      if (current.length == maxChunks) {
+        return -1;
+      }
+      // the rest of the old chunk is too small for this region, but not for smaller ones
+      for (int rest = sizeClass - 1; rest >= 0; rest--) {
+        int restBytes = RECORD_BYTES << (rest + MIN_CLASS_SHIFT);
+        while (CHUNK_BYTES - chunkUsed >= restBytes) {
+          freeRegions.get(rest).push(((long) (current.length - 1) << CHUNK_SHIFT) + chunkUsed);
+          chunkUsed += restBytes;
+        }
+      }
+      ByteBuffer[] grown = new ByteBuffer[current.length + 1];
+      System.arraycopy(current, 0, grown, 0, current.length);
+      grown[current.length] = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.nativeOrder());
+      chunks = grown;
+      chunkUsed = 0;
+    }
+    long address = ((long) (chunks.length - 1) << CHUNK_SHIFT) + chunkUsed;
+    chunkUsed += bytes;
+    return address;
+  }
+
+  /**
+   * Reads a page of a skier's rides, sorted by rideID, into a packed array of ints holding the
+   * rideID, resort, lift and time of each ride in turn
+   * @param skierID is the integer ID of the skier whose rides are read
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param limit is the maximum number of rides to read, 0 for no limit
+   * @return the packed rides of the page, or null if the skier's posting list overflowed
+   */
+  public int[] read(int skierID, int afterID, int limit) {
+    Posting posting = postings.get(skierID);
+    if (posting == null) {
+      return new int[0];
+    }
+    long stamp = posting.lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        int[] page = copy(posting, afterID, limit);
+        if (posting.lock.validate(stamp)) {
+          return page;
+        }
+      } catch (RuntimeException e) {
+        // we read a posting list while it was moved, so its fields didn't match up
+      }
+    }
+    stamp = posting.lock.readLock();
+    try {
+      return copy(posting, afterID, limit);
+    } finally {
+      posting.lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Helper method for read that copies a page of a posting list out of direct memory
+   * @param posting is the posting list being read
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param limit is the maximum number of rides to read, 0 for no limit
+   * @return the packed rides of the page, or null if the posting list overflowed
+   */
+  private int[] copy(Posting posting, int afterID, int limit) {
+    if (posting.overflowed) {
+      return null;
+    }
+    long address = posting.address;
+    int count = posting.count;
+    if (count == 0) {
+      return new int[0];
+    }
+    int start = search(address, count, afterID);
+    start = start >= 0 ? start + 1 : -start - 1;
+    int end = limit > 0 ? (int) Math.min(count, (long) start + limit) : count;
+    int[] page = new int[Math.max(0, end - start) * 4];
+    ByteBuffer chunk = chunkOf(address);
+    int at = offsetOf(address) + start * RECORD_BYTES;
+    for (int i = 0; i < page.length; i++) {
+      page[i] = chunk.getInt(at);
+      at += 4;
+    }
+    return page;
+  }
+
+  /**
+   * Helper method that binary searches a posting list for a rideID
+   * @param address is the long address of the posting list's region
+   * @param count is the number of records in the region
+   * @param rideID is the rideID searched for
+   * @return the index of the rideID's record if found, otherwise -(insertion point) - 1
+   */
+  private int search(long address, int count, int rideID) {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int found = getInt(address, middle, 0);
+      if (found < rideID) {
+        low = middle + 1;
+      } else if (found > rideID) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * Helper method that reads one field of a record
+   * @param address is the long address of the posting list's region
+   * @param record is the index of the record in the region
+   * @param field is the byte offset of the field in the record
+   * @return the int value of the field
+   */
+  private int getInt(long address, int record, int field) {
+    return chunkOf(address).getInt(offsetOf(address) + record * RECORD_BYTES + field);
+  }
+
+  /**
+   * @param address is a long address of a region
+   * @return the direct buffer holding the region
+   */
+  private ByteBuffer chunkOf(long address) {
+    return chunks[(int) (address >>> CHUNK_SHIFT)];
+  }
+
+  /**
+   * @param address is a long address of a region
+   * @return the byte offset of the region in its chunk
+   */
+  private static int offsetOf(long address) {
+    return (int) (address & (CHUNK_BYTES - 1));
+  }
+
+  /**
+   * @return the number of rides indexed
+   */
+  public synchronized long getRides() {
+    return rides;
+  }
+
+  /**
+   * @return the number of skiers whose posting lists overflowed
+   */
+  public synchronized long getOverflows() {
+    return overflows;
+  }
+
+  /**
+   * @return the number of bytes of direct memory allocated
+   */
+  public long getBytes() {
+    return (long) chunks.length * CHUNK_BYTES;
+  }
+}
@@ -0,0 +1,49 @@
+package daos;
+
+import servlethelpers.ServerProperties;
+
+/**
+ * Holds the StorageEngine selected with the STORAGE_ENGINE system property, created the first
+ * time it is asked for. The jdbc engine is wrapped in an IndexedStorageEngine when SKIER_INDEX is
+ * set, the memory engine indexes its skiers already. The jdbc engine is refused if
+ * DB_LEGACY_MAX_RIDE_ID doesn't match the rideIDs already stored, see
+ * LiftRideDAO.checkRideIDLayout.
+ */
+class Storage {
+  private static final StorageEngine engine = create();
+
+  /**
+   * Helper method that creates the engine named by the server properties
+   * @return the StorageEngine the server stores its data in
+   * @throws IllegalArgumentException if the property names an engine we don't have
+   * @throws IllegalStateException if the jdbc engine would misread the rideIDs already stored
+   */
+  private static StorageEngine create() throws IllegalArgumentException, IllegalStateException {
+    String name = ServerProperties.getString("STORAGE_ENGINE", "jdbc");
+    switch (name) {
+      case "jdbc":
+        String layoutProblem = new LiftRideDAO().checkRideIDLayout();
+        if (layoutProblem != null) {
+          throw new IllegalStateException(layoutProblem);
+        }
+        StorageEngine jdbc = new JdbcStorageEngine();
+        if (!ServerProperties.getBoolean("SKIER_INDEX", false)) {
+          return jdbc;
+        }
+        return new IndexedStorageEngine(jdbc,
+                ServerProperties.getLong("SKIER_INDEX_MAX_MB", 1024) * 1024 * 1024);
+      case "memory":
+        return new ColumnarStorageEngine();
+      default:
+        throw new IllegalArgumentException("Unknown STORAGE_ENGINE " + name);
+    }
+  }
+
+  /**
+   * Simple getter for the engine selected at startup
+   * @return the StorageEngine the server stores its data in
+   */
+  static StorageEngine getEngine() {
+    return engine;
+  }
+}
@@ -0,0 +1,85 @@
+package daos;
+
+import java.io.IOException;
+import java.util.List;
+
+import servlethelpers.LiftRide;
+import servlethelpers.LiftRideInput;
+import servlethelpers.LiftRideList;
+import servlethelpers.ResortList;
+
+/**
+ * The storage our lift rides and resorts are kept in. Everything above the DAOs (the servlets,
+ * our caches and our writers) goes through this interface, so the storage can be swapped at
+ * startup with the STORAGE_ENGINE system property:
+ *
+ *   jdbc    (the default) our sharded MySQL databases, see JdbcStorageEngine
+ *   memory  an in-process columnar store that needs no database, see ColumnarStorageEngine
+ *
+ * The engine in use is shared by the whole server, see getInstance.
+ */
+public interface StorageEngine {
+
+  /**
+   * Simple getter for the engine selected at startup
+   * @return the StorageEngine the server stores its data in
+   */
+  static StorageEngine getInstance() {
+    return Storage.getEngine();
+  }
+
+  /**
+   * Takes a specific integer ride ID and returns a Lift Ride object representing that ride
+   * @param rideID is the integer ID of the lift ride to be returned
+   * @return a Lift Ride object representing the given rideID or null if not found
+   */
+  LiftRide getLiftRide(int rideID);
+
+  /**
+   * Takes a skierID and returns a LiftRideList of all lift rides for that skier ID
+   * @param skierID an integer ID for the skier
+   * @return a LiftRideList containing all lift rides for that skier ID
+   */
+  LiftRideList getSkierRides(int skierID);
+
+  /**
+   * Gets all lift rides and returns them as a LiftRideList
+   * @return a LiftRideList of all lift rides for all skiers
+   */
+  LiftRideList getAllLiftRides();
+
+  /**
+   * Streams lift rides in ascending rideID order to the given handler without holding them in
+   * memory. Only rides with an ID greater than afterID are returned, up to the given limit.
+   * @param skierID is the ID of the skier whose rides are streamed or null for all skiers
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param limit is the maximum number of rides to stream, 0 for no limit
+   * @param handler is called once for every lift ride read
+   * @return true if every matching ride was streamed, false if the read failed
+   * @throws IOException if the handler failed writing a ride out
+   */
+  boolean streamLiftRides(Integer skierID, int afterID, int limit, LiftRideHandler handler)
+          throws IOException;
+
+  /**
+   * Stores a new lift ride. If the ride carries an idempotency key that was already used, no new
+   * ride is stored and the rideID of the original ride is returned instead.
+   * @param newLiftRide is the Lift Ride object holding the data to be added
+   * @return the integer rideID of the stored (or previously stored) ride, or -1 if storing failed
+   */
+  int createLiftRide(LiftRideInput newLiftRide);
+
+  /**
+   * Stores a list of new lift rides, handling idempotency keys like createLiftRide
+   * @param newLiftRides is the list of Lift Ride objects holding the data to be added
+   * @return the rideIDs in the same order as the given list, with -1 for every ride that failed
+   *         to be stored
+   */
+  int[] createLiftRides(List<LiftRideInput> newLiftRides);
+
+  /**
+   * Returns a ResortList object filled with the current active resorts we have
+   * @return a ResortList of our active resorts or null if they could not be read
+   */
+  ResortList getResortList();
+}
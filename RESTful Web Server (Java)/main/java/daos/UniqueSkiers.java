@@ -0,0 +1,363 @@
+package daos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import servlethelpers.HyperLogLog;
+import servlethelpers.ServerMetrics;
+import servlethelpers.ServerProperties;
+
+/**
+ * Our in-process estimates of how many distinct skiers rode at every resort, over a whole season
+ * and on every day of it, so answering never needs a COUNT(DISTINCT skierID) over the liftrides
+ * table. Every resort has a HyperLogLog sketch for the season and one for each day, which the
+ * servlets add a skier to as each of their rides is committed without taking any lock.
+ * Rides carry no date, so they count towards the day (in UNIQUE_SKIERS_ZONE, the server's time
+ * zone by default) they are committed on and towards the current season, UNIQUE_SKIERS_SEASON
+ * (2021 by default). Day sketches are kept for UNIQUE_SKIERS_RETENTION_DAYS (14 by default)
+ * days before today and then dropped, along with their files. At most UNIQUE_SKIERS_MAX_SKETCHES
+ * sketches (16KB each, 4096 by default) of the current season are kept, so a client sending made
+ * up resort IDs can't grow them without bound.
+ * Sketches that changed are written to their own file in UNIQUE_SKIERS_DIR, which must be set,
+ * every UNIQUE_SKIERS_PERSIST_SECS (60 by default) and on shutdown, and read back at startup, so
+ * a restart loses at most the skiers of the last interval.
+ */
+public class UniqueSkiers {
+  private static final UniqueSkiers instance = new UniqueSkiers();
+  private static final String SUFFIX = ".hll";
+  private final Map<String, HyperLogLog> sketches = new ConcurrentHashMap<>();
+  private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+  // sketches dropped from memory whose files are still to be deleted
+  private final Set<String> expired = ConcurrentHashMap.newKeySet();
+  private final String season;
+  private final ZoneId zone;
+  private final Path directory;
+  private final int maxSketches;
+  private final int retentionDays;
+  // the number of sketches of the current season, the only ones maxSketches bounds
+  private final AtomicInteger live = new AtomicInteger();
+  private final LongAdder untracked = new LongAdder();
+  private final LongAdder persistFailures = new LongAdder();
+  private volatile Today today;
+
+  /**
+   * The sketches rides are currently added to, replaced at midnight
+   */
+  private static class Today {
+    private final LocalDate date;
+    private final long endMillis;
+    private final Map<Integer, ResortSketches> resorts = new ConcurrentHashMap<>();
+
+    private Today(LocalDate date, ZoneId zone) {
+      this.date = date;
+      this.endMillis = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+  }
+
+  /**
+   * The season and day sketches of one resort, along with the keys they are stored under
+   */
+  private static class ResortSketches {
+    private final String seasonKey;
+    private final String dayKey;
+    private final HyperLogLog season;
+    private final HyperLogLog day;
+
+    private ResortSketches(String seasonKey, HyperLogLog season, String dayKey,
+                           HyperLogLog day) {
+      this.seasonKey = seasonKey;
+      this.season = season;
+      this.dayKey = dayKey;
+      this.day = day;
+    }
+  }
+
+  /**
+   * Sets up our sketches from the server properties, loading the ones persisted before, and
+   * schedules persisting them
+   * @throws IllegalStateException if UNIQUE_SKIERS_DIR is not set or can't be created
+   */
+  private UniqueSkiers() {
+    this.season = ServerProperties.getString("UNIQUE_SKIERS_SEASON", "2021");
+    String zoneName = ServerProperties.getString("UNIQUE_SKIERS_ZONE", null);
+    this.zone = zoneName == null ? ZoneId.systemDefault() : ZoneId.of(zoneName);
+    // the season's counts live only in these files, so they can't be somewhere wiped
+    String store = ServerProperties.getString("UNIQUE_SKIERS_DIR", null);
+    if (store == null) {
+      throw new IllegalStateException("UNIQUE_SKIERS_DIR must be set");
+    }
+    this.directory = Paths.get(store);
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed creating " + directory, e);
+    }
+    this.maxSketches = ServerProperties.getInt("UNIQUE_SKIERS_MAX_SKETCHES", 4096);
+    this.retentionDays = Math.max(1, ServerProperties.getInt("UNIQUE_SKIERS_RETENTION_DAYS", 14));
+    this.today = new Today(LocalDate.now(zone), zone);
+    load();
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    metrics.registerGauge("unique_skiers_sketches", sketches::size);
+    metrics.registerCounter("unique_skiers_untracked_rides_total", untracked::sum);
+    metrics.registerCounter("unique_skiers_persist_failures_total", persistFailures::sum);
+    long period = ServerProperties.getLong("UNIQUE_SKIERS_PERSIST_SECS", 60);
+    ScheduledExecutorService persister = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "unique-skiers-persister");
+      thread.setDaemon(true);
+      return thread;
+    });
+    persister.scheduleWithFixedDelay(this::persist, period, period, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Simple getter for the single set of sketches shared by our servlets
+   * @return the UniqueSkiers instance
+   */
+  public static UniqueSkiers getInstance() {
+    return instance;
+  }
+
+  /**
+   * Helper method for our constructor that reads back every persisted sketch, deleting the day
+   * sketches that expired while we were down. Files that can't be read are skipped, losing only
+   * their own sketch.
+   */
+  private void load() {
+    LocalDate oldest = today.date.minusDays(retentionDays);
+    try (Stream<Path> files = Files.list(directory)) {
+      files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).forEach(file -> {
+        String name = file.getFileName().toString();
+        String key = name.substring(0, name.length() - SUFFIX.length());
+        try {
+          LocalDate date = dateOf(key);
+          if (date != null && date.isBefore(oldest)) {
+            Files.deleteIfExists(file);
+            return;
+          }
+          sketches.put(key, HyperLogLog.fromBytes(Files.readAllBytes(file)));
+          if (isCurrentSeason(key)) {
+            live.incrementAndGet();
+          }
+        } catch (IOException | IllegalArgumentException e) {
+          System.out.println("Skipping unreadable unique skier sketch " + file);
+        }
+      });
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Counts the skier of a ride that was just committed towards its resort's season and today.
+   * Replays of an earlier ride must not be counted again, or they would count on the wrong day.
+   * @param resort is the resort ID where the ride occurred
+   * @param skier is the integer ID of the skier taking the ride
+   */
+  public void rideCommitted(int resort, int skier) {
+    Today current = today;
+    if (System.currentTimeMillis() >= current.endMillis) {
+      current = rollOver();
+    }
+    ResortSketches resortSketches = current.resorts.get(resort);
+    if (resortSketches == null) {
+      LocalDate date = current.date;
+      // null when we are out of sketches, which leaves no entry behind
+      resortSketches = current.resorts.computeIfAbsent(resort, id -> sketchesOf(id, date));
+      if (resortSketches == null) {
+        untracked.increment();
+        return;
+      }
+    }
+    long hash = HyperLogLog.hash(skier);
+    if (resortSketches.season.add(hash)) {
+      dirty.add(resortSketches.seasonKey);
+    }
+    if (resortSketches.day.add(hash)) {
+      dirty.add(resortSketches.dayKey);
+    }
+  }
+
+  /**
+   * Helper method for rideCommitted that moves on to the sketches of a new day, dropping the
+   * day sketches that are now too old to keep
+   * @return the Today rides are now added to
+   */
+  private synchronized Today rollOver() {
+    if (System.currentTimeMillis() >= today.endMillis) {
+      today = new Today(LocalDate.now(zone), zone);
+      expire(today.date.minusDays(retentionDays));
+    }
+    return today;
+  }
+
+  /**
+   * Helper method for rollOver that drops every day sketch older than a day from memory, leaving
+   * its file for persist to delete
+   * @param oldest is the oldest day whose sketches are kept
+   */
+  private void expire(LocalDate oldest) {
+    for (String key : sketches.keySet()) {
+      LocalDate date = dateOf(key);
+      if (date != null && date.isBefore(oldest) && sketches.remove(key) != null) {
+        if (isCurrentSeason(key)) {
+          live.decrementAndGet();
+        }
+        expired.add(key);
+      }
+    }
+  }
+
+  /**
+   * Helper method for rideCommitted that finds (or creates) a resort's current sketches
+   * @param resort is the resort ID
+   * @param date is the day rides are currently counted towards
+   * @return the resort's ResortSketches, or null if we are out of sketches
+   */
+  private ResortSketches sketchesOf(int resort, LocalDate date) {
+    String seasonKey = key(resort, season, null);
+    String dayKey = key(resort, season, date);
+    HyperLogLog seasonSketch = sketch(seasonKey);
+    HyperLogLog daySketch = seasonSketch == null ? null : sketch(dayKey);
+    return daySketch == null ? null
+            : new ResortSketches(seasonKey, seasonSketch, dayKey, daySketch);
+  }
+
+  /**
+   * Helper method for sketchesOf that finds the sketch stored under a key, creating it if we
+   * still have room for it
+   * @param key is the String key of the sketch
+   * @return the HyperLogLog stored under the key, or null if we are out of sketches
+   */
+  private HyperLogLog sketch(String key) {
+    HyperLogLog sketch = sketches.get(key);
+    if (sketch == null) {
+      // counted inside computeIfAbsent, so a sketch two threads create at once counts once
+      sketch = sketches.computeIfAbsent(key, created -> {
+        if (live.incrementAndGet() > maxSketches) {
+          live.decrementAndGet();
+          return null;
+        }
+        return new HyperLogLog();
+      });
+    }
+    return sketch;
+  }
+
+  /**
+   * Helper method that makes the key a sketch is stored (and persisted) under
+   * @param resort is the resort ID
+   * @param season is the String year of the season
+   * @param date is the day of the sketch, or null for the season's sketch
+   * @return the String key of the sketch
+   */
+  private static String key(int resort, String season, LocalDate date) {
+    return date == null ? resort + "-" + season : resort + "-" + season + "-" + date;
+  }
+
+  /**
+   * Helper method that reads the day back out of the key of a sketch
+   * @param key is the String key of the sketch
+   * @return the day of the sketch, or null for a season's sketch
+   */
+  private static LocalDate dateOf(String key) {
+    // a resort ID is never negative, so the first '-' ends it
+    int seasonEnd = key.indexOf('-', key.indexOf('-') + 1);
+    if (seasonEnd < 0) {
+      return null;
+    }
+    try {
+      return LocalDate.parse(key.substring(seasonEnd + 1));
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param key is the String key of a sketch
+   * @return true if the sketch is of the season rides are currently counted towards
+   */
+  private boolean isCurrentSeason(String key) {
+    String prefix = key.substring(0, key.indexOf('-') + 1) + season;
+    return key.equals(prefix) || key.startsWith(prefix + "-");
+  }
+
+  /**
+   * Estimates the number of distinct skiers who rode at a resort over a season or on one day
+   * @param resort is the resort ID
+   * @param season is the String year of the season
+   * @param date is the day to count, or null to count the whole season
+   * @return the estimated number of distinct skiers, 0 if none were counted
+   */
+  public long count(int resort, String season, LocalDate date) {
+    HyperLogLog sketch = sketches.get(key(resort, season, date));
+    return sketch == null ? 0 : sketch.estimate();
+  }
+
+  /**
+   * Writes every sketch that changed since it was last written to its own file, replacing the
+   * file atomically so a crash mid-write leaves the previous version behind, and deletes the
+   * files of expired sketches
+   */
+  public synchronized void persist() {
+    if (dirty.isEmpty() && expired.isEmpty()) {
+      return;
+    }
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      e.printStackTrace();
+      persistFailures.increment();
+      return;
+    }
+    for (String key : dirty) {
+      // taken out before the copy, so a skier added during it marks the sketch again
+      dirty.remove(key);
+      HyperLogLog sketch = sketches.get(key);
+      if (sketch == null) {
+        // expired since a ride last marked it
+        continue;
+      }
+      Path temp = directory.resolve(key + SUFFIX + ".tmp");
+      try {
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          channel.write(ByteBuffer.wrap(sketch.toBytes()));
+          channel.force(true);
+        }
+        Files.move(temp, directory.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        e.printStackTrace();
+        persistFailures.increment();
+        dirty.add(key);
+      }
+    }
+    for (String key : expired) {
+      expired.remove(key);
+      try {
+        Files.deleteIfExists(directory.resolve(key + SUFFIX));
+      } catch (IOException e) {
+        e.printStackTrace();
+        persistFailures.increment();
+        expired.add(key);
+      }
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package servlethelpers;
+
+import java.io.IOException;
+
+/**
+ * A piece of request handling work that our servlets run off of the container thread, such as a
+ * DAO call followed by writing the response.
+ */
+public interface AsyncTask {
+
+  /**
+   * Runs the work and writes its result to the response
+   * @throws IOException if there was an issue writing to the response
+   */
+  void run() throws IOException;
+}
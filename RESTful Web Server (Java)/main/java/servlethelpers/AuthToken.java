@@ -0,0 +1,36 @@
+package servlethelpers;
+
+/**
+ * Wrapper class for a bearer token handed out by our token endpoint, conforming to the usual
+ * OAuth style access token response
+ */
+public class AuthToken {
+  private String token;
+  private long expiresIn;
+
+  /**
+   * Simply initializes this object to hold the given token
+   * @param token is the String bearer token
+   * @param expiresIn is the number of seconds the token stays valid for
+   */
+  public AuthToken(String token, long expiresIn) {
+    this.token = token;
+    this.expiresIn = expiresIn;
+  }
+
+  /**
+   * Simple getter method to retrieve the bearer token
+   * @return the String token, sent back as "Authorization: Bearer <token>"
+   */
+  public String getToken() {
+    return token;
+  }
+
+  /**
+   * Simple getter method to retrieve how long the token is valid
+   * @return the number of seconds the token stays valid for
+   */
+  public long getExpiresIn() {
+    return expiresIn;
+  }
+}
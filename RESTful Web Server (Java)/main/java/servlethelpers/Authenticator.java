@@ -0,0 +1,241 @@
+package servlethelpers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks the Authorization header of the requests that change our data. Two schemes are accepted:
+ *
+ *   Basic   the POST_USR and POST_PWD credentials, read once when the server starts. Header values
+ *           that have been verified are kept in a small cache, so a client sending the same header
+ *           on every request is checked with a single comparison.
+ *   Bearer  a short-lived token handed out by the /token endpoint, laid out as
+ *           base64url(user:expiry).base64url(HMAC-SHA256 of the first part). Tokens are verified
+ *           with nothing but the HMAC, so any server sharing AUTH_TOKEN_SECRET accepts them.
+ *           Tokens are only issued and accepted when AUTH_TOKEN_SECRET is set, and live for
+ *           AUTH_TOKEN_TTL_SECS seconds (300 by default).
+ *
+ * Every comparison against a secret runs in time independent of where the values differ.
+ */
+public class Authenticator {
+  private static final Authenticator instance = new Authenticator();
+  private static final String HMAC = "HmacSHA256";
+  // must be a power of 2, the cache is indexed by the low bits of a header's hash
+  private static final int CACHE_SLOTS = 1024;
+  private final byte[] user;
+  private final byte[] password;
+  private final SecretKeySpec tokenKey;
+  private final long tokenTtlSecs;
+  // one verified Basic header value per slot, a colliding header simply takes the slot over
+  private final AtomicReferenceArray<String> verified = new AtomicReferenceArray<>(CACHE_SLOTS);
+  private final ThreadLocal<Mac> macs;
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+
+  /**
+   * Loads our credentials and token settings from the server properties and registers our metrics
+   */
+  private Authenticator() {
+    String usr = System.getProperty("POST_USR");
+    String pwd = System.getProperty("POST_PWD");
+    // without configured credentials no Basic header is ever accepted
+    this.user = usr == null ? null : usr.getBytes(StandardCharsets.UTF_8);
+    this.password = pwd == null ? null : pwd.getBytes(StandardCharsets.UTF_8);
+    String secret = ServerProperties.getString("AUTH_TOKEN_SECRET", null);
+    this.tokenKey = secret == null ? null
+            : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC);
+    this.tokenTtlSecs = Math.max(1, ServerProperties.getLong("AUTH_TOKEN_TTL_SECS", 300));
+    this.macs = ThreadLocal.withInitial(() -> {
+      try {
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(tokenKey);
+        return mac;
+      } catch (GeneralSecurityException e) {
+        // every JVM is required to support HmacSHA256
+        throw new IllegalStateException(e);
+      }
+    });
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    metrics.registerCounter("auth_cache_hits_total", cacheHits::sum);
+    metrics.registerCounter("auth_failures_total", failures::sum);
+  }
+
+  /**
+   * Simple getter for the single authenticator shared by our servlets
+   * @return the Authenticator instance
+   */
+  public static Authenticator getInstance() {
+    return instance;
+  }
+
+  /**
+   * @return true if bearer tokens are issued and accepted
+   */
+  public boolean tokensEnabled() {
+    return tokenKey != null;
+  }
+
+  /**
+   * @return the number of seconds an issued token stays valid
+   */
+  public long getTokenTtlSecs() {
+    return tokenTtlSecs;
+  }
+
+  /**
+   * Checks whether a request is authenticated with either of our schemes
+   * @param authHdr is the HTTP request's full authorization header, may be null
+   * @return true if the header holds valid Basic credentials or a valid, unexpired token
+   */
+  public boolean authenticate(String authHdr) {
+    boolean valid;
+    if (startsWithIgnoreCase(authHdr, "Bearer ")) {
+      valid = verifyToken(authHdr.substring("Bearer ".length()).trim());
+    } else {
+      valid = authenticateBasic(authHdr);
+    }
+    if (!valid) {
+      failures.increment();
+    }
+    return valid;
+  }
+
+  /**
+   * Checks whether a request is authenticated with the Basic scheme, the only one a token can be
+   * issued for
+   * @param authHdr is the HTTP request's full authorization header, may be null
+   * @return true if the header holds valid Basic credentials
+   */
+  public boolean authenticateBasic(String authHdr) {
+    if (user == null || password == null || !startsWithIgnoreCase(authHdr, "Basic ")) {
+      return false;
+    }
+    int slot = authHdr.hashCode() & (CACHE_SLOTS - 1);
+    String cached = verified.get(slot);
+    if (cached != null && constantTimeEquals(cached, authHdr)) {
+      cacheHits.increment();
+      return true;
+    }
+    byte[] decoded;
+    try {
+      decoded = Base64.getDecoder().decode(authHdr.substring("Basic ".length()).trim());
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    int colon = indexOf(decoded, (byte) ':');
+    if (colon < 0) {
+      return false;
+    }
+    // both halves are always compared so a wrong user takes as long as a wrong password
+    boolean userMatches = MessageDigest.isEqual(user, slice(decoded, 0, colon));
+    boolean passwordMatches = MessageDigest.isEqual(password,
+            slice(decoded, colon + 1, decoded.length));
+    if (userMatches && passwordMatches) {
+      verified.set(slot, authHdr);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Issues a bearer token to a client that has authenticated with authenticateBasic
+   * @return the token, or null if tokens are not enabled
+   */
+  public String issueToken() {
+    if (tokenKey == null || user == null) {
+      return null;
+    }
+    long expiry = System.currentTimeMillis() / 1000 + tokenTtlSecs;
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    String subject = new String(user, StandardCharsets.UTF_8);
+    String payload = encoder.encodeToString((subject + ":" + expiry)
+            .getBytes(StandardCharsets.UTF_8));
+    byte[] signature = macs.get().doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+    return payload + "." + encoder.encodeToString(signature);
+  }
+
+  /**
+   * Helper method for authenticate that verifies a bearer token
+   * @param token is the token sent by the client
+   * @return true if the token was signed with our secret and has not expired
+   */
+  private boolean verifyToken(String token) {
+    int dot = token.indexOf('.');
+    if (tokenKey == null || dot < 0) {
+      return false;
+    }
+    try {
+      byte[] expected = macs.get().doFinal(token.substring(0, dot)
+              .getBytes(StandardCharsets.US_ASCII));
+      byte[] signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+      if (!MessageDigest.isEqual(expected, signature)) {
+        return false;
+      }
+      String payload = new String(Base64.getUrlDecoder().decode(token.substring(0, dot)),
+              StandardCharsets.UTF_8);
+      long expiry = Long.parseLong(payload.substring(payload.lastIndexOf(':') + 1));
+      return System.currentTimeMillis() / 1000 < expiry;
+    } catch (IllegalArgumentException e) {
+      // covers malformed base64 and expiries alike
+      return false;
+    }
+  }
+
+  /**
+   * Compares two Strings in time that depends only on their lengths
+   * @param a is the first String
+   * @param b is the second String
+   * @return true if they are equal
+   */
+  private static boolean constantTimeEquals(String a, String b) {
+    if (a.length() != b.length()) {
+      return false;
+    }
+    int diff = 0;
+    for (int i = 0; i < a.length(); i++) {
+      diff |= a.charAt(i) ^ b.charAt(i);
+    }
+    return diff == 0;
+  }
+
+  /**
+   * @param value is the String checked, may be null
+   * @param prefix is the prefix looked for
+   * @return true if the value starts with the prefix, ignoring case
+   */
+  private static boolean startsWithIgnoreCase(String value, String prefix) {
+    return value != null && value.regionMatches(true, 0, prefix, 0, prefix.length());
+  }
+
+  /**
+   * @param bytes is the array searched
+   * @param b is the byte looked for
+   * @return the index of the first b in the array, or -1 if there is none
+   */
+  private static int indexOf(byte[] bytes, byte b) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param bytes is the array sliced
+   * @param from is the index of the first byte kept
+   * @param to is the index past the last byte kept
+   * @return a copy of the bytes between the indexes
+   */
+  private static byte[] slice(byte[] bytes, int from, int to) {
+    byte[] slice = new byte[to - from];
+    System.arraycopy(bytes, from, slice, 0, slice.length);
+    return slice;
+  }
+}
@@ -0,0 +1,184 @@
+package servlethelpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * An output stream that holds the start of a response body back until it knows whether the body
+ * is worth compressing. Bodies that finish within the minimum size are written out as they are.
+ * Once a body grows past it, the content encoding is set and everything from there on is streamed
+ * through a Deflater, so a large body is never held in memory as a whole.
+ * Deflaters are kept per thread and reset between responses rather than created for each one,
+ * since setting one up allocates a few hundred KB of native memory.
+ * Callers must end the body with finish, or abort if the body is being abandoned.
+ */
+public class CompressingOutputStream extends OutputStream {
+  private static final int DEFLATE_BUFFER_BYTES = 8192;
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0,
+          0, (byte) 0xff};
+  // gzip wraps raw deflate data in its own header and trailer, deflate is the zlib format
+  private static final ThreadLocal<Deflater> gzipDeflaters =
+          ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+  private static final ThreadLocal<Deflater> zlibDeflaters =
+          ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, false));
+  private final ResponseCompression compression;
+  private final OutputStream out;
+  private final boolean gzip;
+  private final int level;
+  private final Runnable onCompress;
+  private byte[] pending;
+  private int pendingSize;
+  private Deflater deflater;
+  private DeflaterOutputStream deflating;
+  private CRC32 crc;
+  private boolean done;
+
+  /**
+   * Constructs our stream, see ResponseCompression.wrap
+   * @param compression is the ResponseCompression our results are reported to
+   * @param out is the output stream the body is written to
+   * @param gzip is true to compress with gzip, false for deflate
+   * @param level is the zlib compression level
+   * @param minBytes is the size the body has to grow past to be compressed
+   * @param onCompress is run right before the first compressed byte is written
+   */
+  CompressingOutputStream(ResponseCompression compression, OutputStream out, boolean gzip,
+                          int level, int minBytes, Runnable onCompress) {
+    this.compression = compression;
+    this.out = out;
+    this.gzip = gzip;
+    this.level = level;
+    this.onCompress = onCompress;
+    this.pending = new byte[minBytes];
+  }
+
+  /**
+   * Writes a single byte of the body
+   * @param b is the byte
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  /**
+   * Writes part of the body, holding it back while the body is still within our minimum size
+   * @param b is the array holding the bytes
+   * @param off is the offset of the first byte written
+   * @param len is the number of bytes written
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (done) {
+      throw new IOException("Response body already finished");
+    }
+    if (deflating == null) {
+      if (pendingSize + len <= pending.length) {
+        System.arraycopy(b, off, pending, pendingSize, len);
+        pendingSize += len;
+        return;
+      }
+      startCompressing();
+    }
+    deflating.write(b, off, len);
+    if (crc != null) {
+      crc.update(b, off, len);
+    }
+  }
+
+  /**
+   * Helper method for write that switches us over to compressing once the body is big enough
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  private void startCompressing() throws IOException {
+    onCompress.run();
+    deflater = (gzip ? gzipDeflaters : zlibDeflaters).get();
+    // a thread's last response may have been abandoned part way through
+    deflater.reset();
+    deflater.setLevel(level);
+    if (gzip) {
+      out.write(GZIP_HEADER);
+      crc = new CRC32();
+      crc.update(pending, 0, pendingSize);
+    }
+    deflating = new DeflaterOutputStream(out, deflater, DEFLATE_BUFFER_BYTES);
+    deflating.write(pending, 0, pendingSize);
+    pending = null;
+  }
+
+  /**
+   * Flushes what has already been compressed. A body still being held back stays held back,
+   * since flushing it would commit the response before we know its encoding.
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  @Override
+  public void flush() throws IOException {
+    if (deflating != null && !done) {
+      deflating.flush();
+    }
+  }
+
+  /**
+   * Ends the body, writing it out as it is if it never grew past our minimum size and finishing
+   * the compressed stream otherwise
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  public void finish() throws IOException {
+    if (done) {
+      return;
+    }
+    done = true;
+    if (deflating == null) {
+      out.write(pending, 0, pendingSize);
+      pending = null;
+      return;
+    }
+    deflating.finish();
+    long written = deflater.getBytesWritten();
+    if (gzip) {
+      writeIntLE((int) crc.getValue());
+      writeIntLE((int) deflater.getBytesRead());
+      written += GZIP_HEADER.length + 8;
+    }
+    compression.recordCompressed(deflater.getBytesRead(), written);
+    deflater.reset();
+  }
+
+  /**
+   * Helper method for finish that writes part of the gzip trailer
+   * @param value is the integer written in little endian order
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  private void writeIntLE(int value) throws IOException {
+    out.write(value);
+    out.write(value >>> 8);
+    out.write(value >>> 16);
+    out.write(value >>> 24);
+  }
+
+  /**
+   * Abandons the body without writing anything more, leaving the response free to be reset if
+   * none of it was sent yet
+   */
+  public void abort() {
+    done = true;
+    pending = null;
+    if (deflater != null) {
+      deflater.reset();
+    }
+  }
+
+  /**
+   * Finishes the body, see finish
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  @Override
+  public void close() throws IOException {
+    finish();
+  }
+}
@@ -0,0 +1,46 @@
+package servlethelpers;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Helpers for the strong entity tags our servlets put on responses that rarely or never change,
+ * and for answering conditional GETs carrying them in If-None-Match with a 304.
+ */
+public class ETags {
+  /**
+   * Builds a strong ETag from the full body of a response, so the same body gets the same ETag
+   * across restarts and across servers
+   * @param body is the encoded response body
+   * @return the quoted ETag
+   */
+  public static String of(byte[] body) {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    long hash = crc.getValue() << 32 | (Arrays.hashCode(body) & 0xffffffffL);
+    return "\"" + Long.toHexString(hash) + "\"";
+  }
+
+  /**
+   * Checks whether a conditional GET already holds the current version of a response
+   * @param ifNoneMatch is the value of the request's If-None-Match header, may be null
+   * @param etag is the quoted ETag of the current response
+   * @return true if the request can be answered with a 304 Not Modified
+   */
+  public static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      // If-None-Match compares weakly, so a W/ prefix doesn't matter
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,86 @@
+package servlethelpers;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency histograms for a single endpoint (e.g. "GET /liftrides/{id}"), kept separately for
+ * every response status the endpoint returns. A status's histogram is created the first time that
+ * status is seen, after which recording a request never allocates.
+ */
+public class EndpointMetrics {
+  private static final int MAX_STATUS = 600;
+  private final String name;
+  private final AtomicReferenceArray<LatencyHistogram> byStatus =
+          new AtomicReferenceArray<>(MAX_STATUS);
+
+  /**
+   * Constructs the metrics for the endpoint with the given name
+   * @param name is the String name of the endpoint, i.e. its method and path pattern
+   */
+  public EndpointMetrics(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Records a finished request
+   * @param status is the integer HTTP status code the request returned
+   * @param elapsedNanos is the time (in ns) the request took from start to finish
+   */
+  public void record(int status, long elapsedNanos) {
+    int index = status > 0 && status < MAX_STATUS ? status : 0;
+    LatencyHistogram histogram = byStatus.get(index);
+    if (histogram == null) {
+      byStatus.compareAndSet(index, null, new LatencyHistogram());
+      histogram = byStatus.get(index);
+    }
+    histogram.record(elapsedNanos / 1000);
+  }
+
+  /**
+   * Records a finished request using the time it started
+   * @param status is the integer HTTP status code the request returned
+   * @param startNanos is the System.nanoTime when the request started
+   */
+  public void recordSince(int status, long startNanos) {
+    record(status, System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Simple getter for the name of this endpoint
+   * @return the String name of this endpoint
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the histogram for the given status
+   * @param status is the integer HTTP status code
+   * @return the LatencyHistogram for that status or null if the status has never been returned
+   */
+  public LatencyHistogram getHistogram(int status) {
+    return status >= 0 && status < MAX_STATUS ? byStatus.get(status) : null;
+  }
+
+  /**
+   * Lists every status this endpoint has returned so far, in ascending order. Status 0 stands in
+   * for any status code outside of the normal HTTP range.
+   * @return an integer array of the statuses that have a histogram
+   */
+  public int[] getStatuses() {
+    int numStatuses = 0;
+    for (int i = 0; i < MAX_STATUS; i++) {
+      if (byStatus.get(i) != null) {
+        numStatuses++;
+      }
+    }
+    int[] statuses = new int[numStatuses];
+    int next = 0;
+    for (int i = 0; i < MAX_STATUS && next < numStatuses; i++) {
+      if (byStatus.get(i) != null) {
+        statuses[next++] = i;
+      }
+    }
+    return statuses;
+  }
+}
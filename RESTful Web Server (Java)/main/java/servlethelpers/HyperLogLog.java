@@ -0,0 +1,142 @@
+package servlethelpers;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct values added to it in 16KB, with a
+ * standard error of about 0.8%. Each of its 2^14 one byte registers remembers the longest run of
+ * leading zeros seen among the hashes routed to it, and adding a value only raises a register, so
+ * adding the same value twice changes nothing and two sketches merge by taking the larger of each
+ * register pair.
+ * Registers are packed 8 to a long and raised with compare-and-set, so any number of threads can
+ * add to (or merge into) a sketch at once without locking. Once a sketch has warmed up almost
+ * every add only reads its register.
+ */
+public class HyperLogLog {
+  private static final int PRECISION = 14;
+  private static final int REGISTERS = 1 << PRECISION;
+  private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+  private final AtomicLongArray words = new AtomicLongArray(REGISTERS / 8);
+
+  /**
+   * Hashes an integer value (e.g. a skierID) so its bits are spread evenly, using the finalizer
+   * of SplitMix64
+   * @param value is the integer value being hashed
+   * @return the 64 bit hash of the value
+   */
+  public static long hash(int value) {
+    long hash = value * 0x9E3779B97F4A7C15L;
+    hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+    return hash ^ (hash >>> 31);
+  }
+
+  /**
+   * Adds a value to the sketch
+   * @param hash is the 64 bit hash of the value, see hash
+   * @return true if the sketch changed, false if it already accounted for the value
+   */
+  public boolean add(long hash) {
+    int register = (int) (hash >>> (64 - PRECISION));
+    // the guard bit caps the run of zeros at the bits that are left
+    int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+    return raise(register, rank);
+  }
+
+  /**
+   * Helper method that raises a register to the given rank unless it is already as high
+   * @param register is the index of the register
+   * @param rank is the rank the register is raised to
+   * @return true if the register was raised
+   */
+  private boolean raise(int register, int rank) {
+    int word = register >>> 3;
+    int shift = (register & 7) * 8;
+    while (true) {
+      long current = words.get(word);
+      if ((int) ((current >>> shift) & 0xFF) >= rank) {
+        return false;
+      }
+      long raised = (current & ~(0xFFL << shift)) | ((long) rank << shift);
+      if (words.compareAndSet(word, current, raised)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Merges another sketch into this one, after which this sketch estimates the distinct values
+   * added to either
+   * @param other is the sketch being merged in, which is left unchanged
+   * @return true if this sketch changed
+   */
+  public boolean merge(HyperLogLog other) {
+    boolean changed = false;
+    for (int register = 0; register < REGISTERS; register++) {
+      changed |= raise(register, other.get(register));
+    }
+    return changed;
+  }
+
+  /**
+   * Helper method that reads a register
+   * @param register is the index of the register
+   * @return the rank held by the register
+   */
+  private int get(int register) {
+    return (int) ((words.get(register >>> 3) >>> ((register & 7) * 8)) & 0xFF);
+  }
+
+  /**
+   * Estimates the number of distinct values added, switching to linear counting while few
+   * registers have been raised since it is more accurate for small counts
+   * @return the estimated number of distinct values
+   */
+  public long estimate() {
+    double sum = 0;
+    int zeros = 0;
+    for (int register = 0; register < REGISTERS; register++) {
+      int rank = get(register);
+      sum += Math.scalb(1.0, -rank);
+      if (rank == 0) {
+        zeros++;
+      }
+    }
+    double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+    if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+      estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /**
+   * Copies the registers out, e.g. to be persisted
+   * @return a new array holding one byte per register
+   */
+  public byte[] toBytes() {
+    byte[] bytes = new byte[REGISTERS];
+    for (int register = 0; register < REGISTERS; register++) {
+      bytes[register] = (byte) get(register);
+    }
+    return bytes;
+  }
+
+  /**
+   * Recreates a sketch from registers copied out with toBytes
+   * @param bytes is the array holding one byte per register
+   * @return the recreated HyperLogLog
+   * @throws IllegalArgumentException if the array doesn't hold a sketch's registers
+   */
+  public static HyperLogLog fromBytes(byte[] bytes) throws IllegalArgumentException {
+    if (bytes.length != REGISTERS) {
+      throw new IllegalArgumentException("Sketch must have " + REGISTERS + " registers");
+    }
+    HyperLogLog sketch = new HyperLogLog();
+    for (int register = 0; register < REGISTERS; register++) {
+      if (bytes[register] != 0) {
+        sketch.raise(register, bytes[register] & 0xFF);
+      }
+    }
+    return sketch;
+  }
+}
@@ -0,0 +1,147 @@
+package servlethelpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that JSON is encoded into directly, without going through Strings or a
+ * character encoder. Everything appended is plain ASCII: numbers are written digit by digit and
+ * any character outside of ASCII in a String is written as a \\u escape. Used by LiftRideCodec and
+ * LiftRideJsonWriter, which reuse their buffers across responses.
+ */
+public class JsonBuffer {
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+  private byte[] bytes;
+  private int size;
+
+  /**
+   * Constructs an empty buffer
+   * @param capacity is the number of bytes the buffer starts out able to hold
+   */
+  public JsonBuffer(int capacity) {
+    this.bytes = new byte[Math.max(16, capacity)];
+  }
+
+  /**
+   * Helper method that grows our array so it can take the given number of bytes more
+   * @param extra is the number of bytes about to be appended
+   */
+  private void ensure(int extra) {
+    if (size + extra > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+    }
+  }
+
+  /**
+   * Appends a single ASCII character, such as a brace or comma
+   * @param c is the character
+   * @return this buffer
+   */
+  public JsonBuffer append(char c) {
+    ensure(1);
+    bytes[size++] = (byte) c;
+    return this;
+  }
+
+  /**
+   * Appends raw ASCII text that needs no escaping, such as a quoted field name
+   * @param text is the String of ASCII characters
+   * @return this buffer
+   */
+  public JsonBuffer appendAscii(String text) {
+    int length = text.length();
+    ensure(length);
+    for (int i = 0; i < length; i++) {
+      bytes[size++] = (byte) text.charAt(i);
+    }
+    return this;
+  }
+
+  /**
+   * Appends an integer as a JSON number
+   * @param value is the integer
+   * @return this buffer
+   */
+  public JsonBuffer append(int value) {
+    long remaining = value;
+    ensure(11);
+    if (remaining < 0) {
+      bytes[size++] = '-';
+      remaining = -remaining;
+    }
+    int digits = 1;
+    for (long bound = 10; bound <= remaining; bound *= 10) {
+      digits++;
+    }
+    for (int i = size + digits - 1; i >= size; i--) {
+      bytes[i] = (byte) ('0' + remaining % 10);
+      remaining /= 10;
+    }
+    size += digits;
+    return this;
+  }
+
+  /**
+   * Appends a String as a quoted and escaped JSON string
+   * @param text is the String
+   * @return this buffer
+   */
+  public JsonBuffer appendString(String text) {
+    append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        append('\\').append(c);
+      } else if (c < 0x20 || c > 0x7e) {
+        ensure(6);
+        bytes[size++] = '\\';
+        bytes[size++] = 'u';
+        bytes[size++] = HEX[c >> 12 & 0xf];
+        bytes[size++] = HEX[c >> 8 & 0xf];
+        bytes[size++] = HEX[c >> 4 & 0xf];
+        bytes[size++] = HEX[c & 0xf];
+      } else {
+        append(c);
+      }
+    }
+    return append('"');
+  }
+
+  /**
+   * @return the number of bytes appended since the buffer was last cleared
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of bytes the buffer can hold before it has to grow
+   */
+  public int capacity() {
+    return bytes.length;
+  }
+
+  /**
+   * Empties the buffer, keeping its array for reuse
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Writes everything appended to the given stream
+   * @param out is the output stream (normally the servlet response) written to
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(bytes, 0, size);
+  }
+
+  /**
+   * @return a copy of everything appended
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(bytes, size);
+  }
+}
@@ -0,0 +1,134 @@
+package servlethelpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram, recording values in microseconds.
+ * Values are bucketed by their power of two and then split into 32 linear sub-buckets, so every
+ * recorded value is kept to within about 3% of its true value from 1 microsecond up to several
+ * days, using a fixed array of counters. Recording a value is a couple of atomic increments and
+ * never allocates, so it is safe to call on every request.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+  // values at or above 2^MAX_EXPONENT microseconds all land in the last bucket
+  private static final int MAX_EXPONENT = 40;
+  private static final int NUM_BUCKETS =
+          SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a single value in our histogram
+   * @param micros is the value (in microseconds) to be recorded, negative values count as 0
+   */
+  public void record(long micros) {
+    long value = Math.max(0, micros);
+    counts.incrementAndGet(indexFor(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long curMax = max.get();
+    while (value > curMax && !max.compareAndSet(curMax, value)) {
+      curMax = max.get();
+    }
+  }
+
+  /**
+   * Adds all of the values recorded by the given histogram into this one
+   * @param other is the histogram whose values are added
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      long bucketCount = other.counts.get(i);
+      if (bucketCount != 0) {
+        counts.addAndGet(i, bucketCount);
+      }
+    }
+    count.addAndGet(other.count.get());
+    sum.addAndGet(other.sum.get());
+    long otherMax = other.max.get();
+    long curMax = max.get();
+    while (otherMax > curMax && !max.compareAndSet(curMax, otherMax)) {
+      curMax = max.get();
+    }
+  }
+
+  /**
+   * Finds the bucket a value belongs in
+   * @param value is the non-negative value being recorded
+   * @return the integer index of its bucket
+   */
+  private static int indexFor(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent >= MAX_EXPONENT) {
+      return NUM_BUCKETS - 1;
+    }
+    int shift = exponent - SUB_BUCKET_BITS + 1;
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF
+            + (int) (value >>> shift) - SUB_BUCKET_HALF;
+  }
+
+  /**
+   * Finds the largest value that would be recorded in the given bucket
+   * @param index is the integer index of the bucket
+   * @return the highest value (in microseconds) the bucket holds
+   */
+  private static long highestValueFor(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+    long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * Returns the value at the given percentile of everything recorded so far
+   * @param percentile is the percentile to be returned, between 0 and 100
+   * @return the value (in microseconds) at that percentile or 0 if nothing has been recorded
+   */
+  public long getPercentile(double percentile) {
+    long total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestValueFor(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * @return the total number of values recorded
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return the sum (in microseconds) of all values recorded
+   */
+  public long getSum() {
+    return sum.get();
+  }
+
+  /**
+   * @return the largest value (in microseconds) recorded
+   */
+  public long getMax() {
+    return max.get();
+  }
+}
@@ -0,0 +1,82 @@
+package servlethelpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wrapper class for the body of a GET /resorts/{id}/leaderboard request: the skiers who took the
+ * most lift rides at a resort, most rides first
+ */
+public class Leaderboard {
+  private int resortID;
+  private List<Entry> skiers;
+
+  /**
+   * One skier on the leaderboard
+   */
+  public static class Entry {
+    private int skierID;
+    private long rides;
+    private long error;
+
+    private Entry(int skierID, long rides, long error) {
+      this.skierID = skierID;
+      this.rides = rides;
+      this.error = error;
+    }
+
+    /**
+     * @return the integer ID of the skier
+     */
+    public int getSkierID() {
+      return skierID;
+    }
+
+    /**
+     * @return the estimated number of rides the skier took
+     */
+    public long getRides() {
+      return rides;
+    }
+
+    /**
+     * @return how many rides the estimate may be too high by
+     */
+    public long getError() {
+      return error;
+    }
+  }
+
+  /**
+   * Simple constructor for an empty leaderboard
+   * @param resortID is the integer ID of the resort the leaderboard is for
+   */
+  public Leaderboard(int resortID) {
+    this.resortID = resortID;
+    this.skiers = new ArrayList<>();
+  }
+
+  /**
+   * Adds a skier to the bottom of the leaderboard
+   * @param skierID is the integer ID of the skier
+   * @param rides is the estimated number of rides the skier took
+   * @param error is how many rides the estimate may be too high by
+   */
+  public void addSkier(int skierID, long rides, long error) {
+    skiers.add(new Entry(skierID, rides, error));
+  }
+
+  /**
+   * @return the integer ID of the resort the leaderboard is for
+   */
+  public int getResortID() {
+    return resortID;
+  }
+
+  /**
+   * @return the skiers on the leaderboard, most rides first
+   */
+  public List<Entry> getSkiers() {
+    return skiers;
+  }
+}
@@ -0,0 +1,115 @@
+package servlethelpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helper class servlets.LiftRideServlet uses to represent the response body of a
+ * POST /liftrides/batch request. Holds one result per lift ride in the batch, in the same order
+ * the rides were sent, each either the created ride's ID or the error that kept it from being
+ * written.
+ */
+public class LiftRideBatchResult {
+  private final List<Item> results = new ArrayList<>();
+
+  /**
+   * The outcome of a single lift ride in the batch
+   */
+  public static class Item {
+    private final int status;
+    private final Integer liftRideId;
+    private final String url;
+    private final String message;
+
+    /**
+     * Constructs a result holding the given outcome
+     * @param status is the HTTP status code of the ride on its own (e.g. 201, 400)
+     * @param liftRideId is the ID the ride was written under or null if it was not written
+     * @param message is the String error message or null if the ride was written
+     */
+    Item(int status, Integer liftRideId, String message) {
+      this.status = status;
+      this.liftRideId = liftRideId;
+      this.url = liftRideId == null ? null : "/liftrides/" + liftRideId;
+      this.message = message;
+    }
+
+    /**
+     * @return the integer HTTP status code of the ride on its own
+     */
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * @return the integer ID the ride was written under, or null if it was not written
+     */
+    public Integer getLiftRideId() {
+      return liftRideId;
+    }
+
+    /**
+     * @return the String error message, or null if the ride was written
+     */
+    public String getMessage() {
+      return message;
+    }
+  }
+
+  /**
+   * Adds the result of a ride that was written
+   * @param liftRideId is the integer ID the ride was written under
+   */
+  public void addCreated(int liftRideId) {
+    results.add(new Item(201, liftRideId, null));
+  }
+
+  /**
+   * Adds the result of a ride that was durably accepted but not written to the database yet
+   */
+  public void addAccepted() {
+    results.add(new Item(202, null, null));
+  }
+
+  /**
+   * Adds the result of a ride that was not written
+   * @param status is the integer HTTP status code of the ride on its own
+   * @param message is the String error message explaining why
+   */
+  public void addError(int status, String message) {
+    results.add(new Item(status, null, message));
+  }
+
+  /**
+   * Simple getter for the results held by this object
+   * @return the list of results, in the order the rides were sent
+   */
+  public List<Item> getResults() {
+    return results;
+  }
+
+  /**
+   * @return the number of rides that were written or accepted
+   */
+  public int getSuccessCount() {
+    int count = 0;
+    for (Item item : results) {
+      if (item.status < 300) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the ID of the last ride written, or -1 if none were
+   */
+  public int getLastRideId() {
+    for (int i = results.size() - 1; i >= 0; i--) {
+      if (results.get(i).liftRideId != null) {
+        return results.get(i).liftRideId;
+      }
+    }
+    return -1;
+  }
+}
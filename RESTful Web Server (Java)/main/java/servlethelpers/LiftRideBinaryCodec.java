@@ -0,0 +1,377 @@
+package servlethelpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Our compact binary wire format for lift ride payloads, served as application/x-liftride to
+ * clients that ask for it in their Accept or Content-Type header, JSON staying the default.
+ * Every integer is an unsigned LEB128 varint (7 bits per byte, high bit set on all but the last
+ * byte), so the small positive IDs and times we carry take 1 to 3 bytes each:
+ *
+ *   LiftRideInput        skier, resort, lift, time
+ *   list of inputs       count, then count LiftRideInputs
+ *   LiftRide             liftRideId, skier, resort, lift, time (the url is rebuilt from the ID)
+ *   LiftRideList         chunks of [count, then count LiftRides], ended by a chunk count of 0
+ *   LiftRideBatchResult  count, then per ride: status, liftRideId (0 if none),
+ *                        message length (0 if none), message UTF-8 bytes
+ *
+ * Lists of rides are chunked so they can be streamed without knowing their length up front, and
+ * a list missing its final 0 was cut short. Error bodies stay JSON Messages.
+ */
+public class LiftRideBinaryCodec {
+  public static final String CONTENT_TYPE = "application/x-liftride";
+  private static final int BUFFER_BYTES = 1024;
+  // buffers grown past this by a large batch are dropped instead of kept by the thread
+  private static final int MAX_RETAINED_BYTES = 64 * 1024;
+  private static final ThreadLocal<Encoder> encoders =
+          ThreadLocal.withInitial(() -> new Encoder(BUFFER_BYTES));
+  // the media ranges JSON matches, from least to most specific
+  private static final List<String> JSON_RANGES =
+          Arrays.asList("*/*", "application/*", "application/json");
+
+  /**
+   * A reusable byte buffer that varints are encoded into
+   */
+  static class Encoder extends ByteArrayOutputStream {
+    /**
+     * @param capacity is the number of bytes the buffer starts out able to hold
+     */
+    Encoder(int capacity) {
+      super(capacity);
+    }
+
+    /**
+     * Appends an integer as an unsigned varint
+     * @param value is the integer, negative values take the full 5 bytes
+     * @return this encoder
+     */
+    Encoder varint(int value) {
+      // written straight into the array, skipping the lock write(int) takes per byte
+      if (count + 5 > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + 5));
+      }
+      while ((value & ~0x7f) != 0) {
+        buf[count++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      buf[count++] = (byte) value;
+      return this;
+    }
+
+    /**
+     * Appends a single lift ride
+     * @param rideID is the integer ID that identifies this lift ride
+     * @param skier is the integer ID of the client taking this ride
+     * @param resort is the resort ID where this lift ride occurred
+     * @param lift is the integer ID of the lift taken
+     * @param time is an integer representing the time the lift was taken
+     * @return this encoder
+     */
+    Encoder ride(int rideID, int skier, int resort, int lift, int time) {
+      return varint(rideID).varint(skier).varint(resort).varint(lift).varint(time);
+    }
+
+    /**
+     * @return the number of bytes the buffer can hold before it has to grow
+     */
+    int capacity() {
+      return buf.length;
+    }
+  }
+
+  /**
+   * Helper method that hands out this thread's encoder, emptied
+   * @return the Encoder to encode a body into
+   */
+  private static Encoder encoder() {
+    Encoder encoder = encoders.get();
+    if (encoder.capacity() > MAX_RETAINED_BYTES) {
+      encoder = new Encoder(BUFFER_BYTES);
+      encoders.set(encoder);
+    }
+    encoder.reset();
+    return encoder;
+  }
+
+  /**
+   * Checks the media ranges of an Accept header, such as
+   * "application/x-liftride;q=0.9, application/json;q=0.5"
+   * @param accept is the value of a request's Accept header, may be null
+   * @return true if the client names our binary format with a q above 0 and likes it at least
+   *         as much as the JSON we would send otherwise
+   */
+  public static boolean accepts(String accept) {
+    if (accept == null) {
+      return false;
+    }
+    double binary = 0;
+    // the q of the most specific range matching JSON, -1 if none does
+    double json = -1;
+    int jsonSpecificity = -1;
+    for (String range : accept.split(",")) {
+      String type = mediaType(range);
+      double quality = quality(range);
+      if (type.equals(CONTENT_TYPE)) {
+        binary = Math.max(binary, quality);
+      } else {
+        int specificity = JSON_RANGES.indexOf(type);
+        if (specificity > jsonSpecificity) {
+          jsonSpecificity = specificity;
+          json = quality;
+        }
+      }
+    }
+    return binary > 0 && binary >= json;
+  }
+
+  /**
+   * @param contentType is the Content-Type of a request or response, may be null
+   * @return true if the body is in our binary format
+   */
+  public static boolean isBinary(String contentType) {
+    return contentType != null && mediaType(contentType).equals(CONTENT_TYPE);
+  }
+
+  /**
+   * Helper method that strips the parameters off a media type or range
+   * @param value is a media type or range, possibly followed by ;-separated parameters
+   * @return the type and subtype alone, trimmed and in lower case
+   */
+  private static String mediaType(String value) {
+    int end = value.indexOf(';');
+    return (end < 0 ? value : value.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Helper method that reads the q parameter of a media range
+   * @param range is a media range with its parameters
+   * @return the q of the range between 0 and 1, 1 if it has none or it is not a number
+   */
+  private static double quality(String range) {
+    String[] parameters = range.split(";");
+    for (int i = 1; i < parameters.length; i++) {
+      String parameter = parameters[i].trim();
+      if (parameter.length() > 2 && parameter.substring(0, 2).equalsIgnoreCase("q=")) {
+        try {
+          return Math.min(1, Math.max(0, Double.parseDouble(parameter.substring(2).trim())));
+        } catch (NumberFormatException e) {
+          return 1;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Encodes a single lift ride input, the body of a POST
+   * @param ride is the LiftRideInput
+   * @return the encoded body
+   */
+  public static byte[] encodeInput(LiftRideInput ride) {
+    Encoder encoder = encoder();
+    encoder.varint(ride.getSkierID()).varint(ride.getResortID()).varint(ride.getLiftID())
+            .varint(ride.getTime());
+    return encoder.toByteArray();
+  }
+
+  /**
+   * Encodes a list of lift ride inputs, the body of a POST to /liftrides/batch
+   * @param rides is the list of LiftRideInputs
+   * @return the encoded body
+   */
+  public static byte[] encodeInputs(List<LiftRideInput> rides) {
+    Encoder encoder = encoder();
+    encoder.varint(rides.size());
+    for (LiftRideInput ride : rides) {
+      encoder.varint(ride.getSkierID()).varint(ride.getResortID()).varint(ride.getLiftID())
+              .varint(ride.getTime());
+    }
+    return encoder.toByteArray();
+  }
+
+  /**
+   * Writes a single lift ride, the body of GET /liftrides/{id}
+   * @param ride is the LiftRide
+   * @param out is the output stream (normally the servlet response) written to
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  public static void writeRide(LiftRide ride, OutputStream out) throws IOException {
+    Encoder encoder = encoder();
+    encoder.ride(ride.getLiftRideId(), ride.getSkier(), ride.getResort(), ride.getLiftID(),
+            ride.getTime());
+    encoder.writeTo(out);
+  }
+
+  /**
+   * Writes a list of lift rides as a single chunk
+   * @param list is the LiftRideList
+   * @param out is the output stream (normally the servlet response) written to
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  public static void writeRideList(LiftRideList list, OutputStream out) throws IOException {
+    Encoder encoder = encoder();
+    encoder.varint(list.rides.size());
+    for (LiftRide ride : list.rides) {
+      encoder.ride(ride.getLiftRideId(), ride.getSkier(), ride.getResort(), ride.getLiftID(),
+              ride.getTime());
+    }
+    if (!list.rides.isEmpty()) {
+      encoder.varint(0);
+    }
+    encoder.writeTo(out);
+  }
+
+  /**
+   * Writes a single ride as a LiftRideList holding only it, the body of a successful POST
+   * @param ride is the LiftRide created
+   * @param out is the output stream (normally the servlet response) written to
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  public static void writeCreated(LiftRide ride, OutputStream out) throws IOException {
+    Encoder encoder = encoder();
+    encoder.varint(1).ride(ride.getLiftRideId(), ride.getSkier(), ride.getResort(),
+            ride.getLiftID(), ride.getTime()).varint(0);
+    encoder.writeTo(out);
+  }
+
+  /**
+   * Writes the results of a batch of lift rides
+   * @param result is the LiftRideBatchResult
+   * @param out is the output stream (normally the servlet response) written to
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  public static void writeBatchResult(LiftRideBatchResult result, OutputStream out)
+          throws IOException {
+    Encoder encoder = encoder();
+    encoder.varint(result.getResults().size());
+    for (LiftRideBatchResult.Item item : result.getResults()) {
+      encoder.varint(item.getStatus());
+      encoder.varint(item.getLiftRideId() == null ? 0 : item.getLiftRideId());
+      if (item.getMessage() == null) {
+        encoder.varint(0);
+      } else {
+        byte[] message = item.getMessage().getBytes(StandardCharsets.UTF_8);
+        encoder.varint(message.length);
+        encoder.write(message, 0, message.length);
+      }
+    }
+    encoder.writeTo(out);
+  }
+
+  /**
+   * Reads an unsigned varint
+   * @param in is the input stream read from
+   * @return the integer read
+   * @throws IOException if the stream ended early or the varint is longer than 5 bytes
+   */
+  private static int readVarint(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException("Lift ride body ended early");
+      }
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in lift ride body");
+  }
+
+  /**
+   * Reads a single lift ride input, the body of a POST
+   * @param in is the input stream (normally the servlet request) read from
+   * @return the LiftRideInput read
+   * @throws IOException if the body could not be read or is malformed
+   */
+  public static LiftRideInput readInput(InputStream in) throws IOException {
+    return new LiftRideInput(readVarint(in), readVarint(in), readVarint(in), readVarint(in));
+  }
+
+  /**
+   * Reads a list of lift ride inputs, the body of a POST to /liftrides/batch
+   * @param in is the input stream (normally the servlet request) read from
+   * @param max is the largest number of rides allowed in the list
+   * @return the list of LiftRideInputs read, or null if there were more than max
+   * @throws IOException if the body could not be read or is malformed
+   */
+  public static List<LiftRideInput> readInputs(InputStream in, int max) throws IOException {
+    int count = readVarint(in);
+    if (count < 0 || count > max) {
+      return null;
+    }
+    List<LiftRideInput> rides = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      rides.add(readInput(in));
+    }
+    return rides;
+  }
+
+  /**
+   * Reads a single lift ride
+   * @param in is the input stream (normally the response body) read from
+   * @return the LiftRide read
+   * @throws IOException if the body could not be read or is malformed
+   */
+  public static LiftRide readRide(InputStream in) throws IOException {
+    return new LiftRide(readVarint(in), readVarint(in), readVarint(in), readVarint(in),
+            readVarint(in));
+  }
+
+  /**
+   * Reads a list of lift rides
+   * @param in is the input stream (normally the response body) read from
+   * @return the LiftRideList read
+   * @throws IOException if the body could not be read, is malformed, or was cut short
+   */
+  public static LiftRideList readRideList(InputStream in) throws IOException {
+    LiftRideList list = new LiftRideList();
+    int count;
+    while ((count = readVarint(in)) != 0) {
+      if (count < 0) {
+        throw new IOException("Malformed lift ride list");
+      }
+      for (int i = 0; i < count; i++) {
+        list.rides.add(readRide(in));
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Reads the results of a batch of lift rides
+   * @param in is the input stream (normally the response body) read from
+   * @return the LiftRideBatchResult read
+   * @throws IOException if the body could not be read or is malformed
+   */
+  public static LiftRideBatchResult readBatchResult(InputStream in) throws IOException {
+    LiftRideBatchResult result = new LiftRideBatchResult();
+    int count = readVarint(in);
+    for (int i = 0; i < count; i++) {
+      int status = readVarint(in);
+      int rideID = readVarint(in);
+      int length = readVarint(in);
+      String message = null;
+      if (length > 0) {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+          throw new EOFException("Lift ride body ended early");
+        }
+        message = new String(bytes, StandardCharsets.UTF_8);
+      }
+      result.getResults().add(new LiftRideBatchResult.Item(status,
+              rideID == 0 ? null : rideID, message));
+    }
+    return result;
+  }
+}
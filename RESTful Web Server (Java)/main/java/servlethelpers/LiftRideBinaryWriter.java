@@ -0,0 +1,78 @@
+package servlethelpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a LiftRideList to an output stream one ride at a time in our binary wire format (see
+ * LiftRideBinaryCodec). Rides are encoded into a small buffer that is written out as one chunk,
+ * prefixed with its number of rides, whenever it fills up.
+ */
+public class LiftRideBinaryWriter implements LiftRideListWriter {
+  private static final int FLUSH_BYTES = 8192;
+  private final OutputStream out;
+  private final LiftRideBinaryCodec.Encoder chunk =
+          new LiftRideBinaryCodec.Encoder(FLUSH_BYTES + 32);
+  private final LiftRideBinaryCodec.Encoder header = new LiftRideBinaryCodec.Encoder(8);
+  private int count;
+
+  /**
+   * Sets up our writer on top of the given output stream
+   * @param out is the output stream (normally the servlet response) the rides are written to
+   */
+  public LiftRideBinaryWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Writes the opening of our list, must be called before any rides are written
+   */
+  @Override
+  public void beginList() {
+    // the list has no header of its own, it is only its chunks
+  }
+
+  /**
+   * Writes a single lift ride as the next element of our list
+   * @param rideID is the integer ID that identifies this lift ride
+   * @param skier is the integer ID of the client taking this ride
+   * @param resort is the resort ID where this lift ride occurred
+   * @param lift is the integer ID of the lift taken
+   * @param time is an integer representing the time the lift was taken
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  @Override
+  public void writeRide(int rideID, int skier, int resort, int lift, int time) throws IOException {
+    chunk.ride(rideID, skier, resort, lift, time);
+    count++;
+    if (chunk.size() >= FLUSH_BYTES) {
+      writeChunk();
+    }
+  }
+
+  /**
+   * Helper method that writes the rides buffered so far out as one chunk
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  private void writeChunk() throws IOException {
+    header.reset();
+    header.varint(count).writeTo(out);
+    chunk.writeTo(out);
+    chunk.reset();
+    count = 0;
+  }
+
+  /**
+   * Writes the closing of our list and flushes everything out to the output stream
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  @Override
+  public void endList() throws IOException {
+    if (count > 0) {
+      writeChunk();
+    }
+    // a chunk of no rides ends the list
+    out.write(0);
+    out.flush();
+  }
+}
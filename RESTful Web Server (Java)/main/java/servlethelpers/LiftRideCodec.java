@@ -0,0 +1,429 @@
+package servlethelpers;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hand-written JSON codecs for our lift ride payloads (LiftRideInput, LiftRide, LiftRideList,
+ * LiftRideBatchResult and Message), so neither the servlets nor the client go through Gson's
+ * reflection.
+ * Responses are encoded straight to bytes in a JsonBuffer kept per thread and written to the
+ * output stream in one call, skipping the intermediate String and character encoder. Message
+ * bodies are encoded once per message and kept. Requests are read through the TypeAdapters
+ * registered on the Gson returned by gson(), which pull fields off the JsonReader by name.
+ * Everything produces and accepts the same JSON as reflective Gson does for these classes.
+ */
+public class LiftRideCodec {
+  private static final int BUFFER_BYTES = 4096;
+  // buffers grown past this by a large batch are dropped instead of kept by the thread
+  private static final int MAX_RETAINED_BYTES = 64 * 1024;
+  // messages are our own constants, so this only guards against an unexpected flood of them
+  private static final int MAX_CACHED_MESSAGES = 256;
+  private static final ThreadLocal<JsonBuffer> buffers =
+          ThreadLocal.withInitial(() -> new JsonBuffer(BUFFER_BYTES));
+  private static final Map<String, byte[]> messages = new ConcurrentHashMap<>();
+  private static final Gson gson = new GsonBuilder()
+          .registerTypeAdapter(LiftRideInput.class, new InputAdapter().nullSafe())
+          .registerTypeAdapter(LiftRide.class, new RideAdapter().nullSafe())
+          .registerTypeAdapter(LiftRideList.class, new ListAdapter().nullSafe())
+          .registerTypeAdapter(LiftRideBatchResult.class, new BatchResultAdapter().nullSafe())
+          .registerTypeAdapter(Message.class, new MessageAdapter().nullSafe())
+          .create();
+
+  /**
+   * @return a Gson that reads and writes our lift ride payloads through our hand-written
+   *         adapters instead of reflection
+   */
+  public static Gson gson() {
+    return gson;
+  }
+
+  /**
+   * Helper method that hands out this thread's buffer, emptied
+   * @return the JsonBuffer to encode a response into
+   */
+  private static JsonBuffer buffer() {
+    JsonBuffer buffer = buffers.get();
+    if (buffer.capacity() > MAX_RETAINED_BYTES) {
+      buffer = new JsonBuffer(BUFFER_BYTES);
+      buffers.set(buffer);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Appends a single lift ride as a JSON object
+   * @param buffer is the buffer appended to
+   * @param rideID is the integer ID that identifies this lift ride
+   * @param skier is the integer ID of the client taking this ride
+   * @param resort is the resort ID where this lift ride occurred
+   * @param lift is the integer ID of the lift taken
+   * @param time is an integer representing the time the lift was taken
+   */
+  static void appendRide(JsonBuffer buffer, int rideID, int skier, int resort, int lift,
+                         int time) {
+    buffer.appendAscii("{\"liftRideId\":").append(rideID)
+            .appendAscii(",\"url\":\"/liftrides/").append(rideID)
+            .appendAscii("\",\"skier\":").append(skier)
+            .appendAscii(",\"resort\":").append(resort)
+            .appendAscii(",\"lift\":").append(lift)
+            .appendAscii(",\"time\":").append(time)
+            .append('}');
+  }
+
+  /**
+   * Helper method for appendRide that takes a LiftRide
+   * @param buffer is the buffer appended to
+   * @param ride is the LiftRide
+   */
+  private static void appendRide(JsonBuffer buffer, LiftRide ride) {
+    appendRide(buffer, ride.getLiftRideId(), ride.getSkier(), ride.getResort(), ride.getLiftID(),
+            ride.getTime());
+  }
+
+  /**
+   * Writes a single lift ride, the body of GET /liftrides/{id}
+   * @param ride is the LiftRide
+   * @param out is the output stream (normally the servlet response) written to
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  public static void writeRide(LiftRide ride, OutputStream out) throws IOException {
+    JsonBuffer buffer = buffer();
+    appendRide(buffer, ride);
+    buffer.writeTo(out);
+  }
+
+  /**
+   * Writes a list of lift rides
+   * @param list is the LiftRideList
+   * @param out is the output stream (normally the servlet response) written to
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  public static void writeRideList(LiftRideList list, OutputStream out) throws IOException {
+    JsonBuffer buffer = buffer();
+    buffer.appendAscii("{\"rides\":[");
+    for (int i = 0; i < list.rides.size(); i++) {
+      if (i > 0) {
+        buffer.append(',');
+      }
+      appendRide(buffer, list.rides.get(i));
+    }
+    buffer.appendAscii("]}").writeTo(out);
+  }
+
+  /**
+   * Writes a single ride as a LiftRideList holding only it, the body of a successful POST,
+   * without having to build the list
+   * @param ride is the LiftRide created
+   * @param out is the output stream (normally the servlet response) written to
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  public static void writeCreated(LiftRide ride, OutputStream out) throws IOException {
+    JsonBuffer buffer = buffer();
+    buffer.appendAscii("{\"rides\":[");
+    appendRide(buffer, ride);
+    buffer.appendAscii("]}").writeTo(out);
+  }
+
+  /**
+   * Writes the results of a batch of lift rides, leaving out unset fields as Gson does
+   * @param result is the LiftRideBatchResult
+   * @param out is the output stream (normally the servlet response) written to
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  public static void writeBatchResult(LiftRideBatchResult result, OutputStream out)
+          throws IOException {
+    JsonBuffer buffer = buffer();
+    buffer.appendAscii("{\"results\":[");
+    boolean first = true;
+    for (LiftRideBatchResult.Item item : result.getResults()) {
+      buffer.appendAscii(first ? "{\"status\":" : ",{\"status\":").append(item.getStatus());
+      first = false;
+      if (item.getLiftRideId() != null) {
+        buffer.appendAscii(",\"liftRideId\":").append(item.getLiftRideId())
+                .appendAscii(",\"url\":\"/liftrides/").append(item.getLiftRideId()).append('"');
+      }
+      if (item.getMessage() != null) {
+        buffer.appendAscii(",\"message\":").appendString(item.getMessage());
+      }
+      buffer.append('}');
+    }
+    buffer.appendAscii("]}").writeTo(out);
+  }
+
+  /**
+   * Fetches the encoded body of a Message, encoding it the first time it is asked for
+   * @param message is the String message
+   * @return the JSON bytes of the Message, which must not be modified
+   */
+  public static byte[] message(String message) {
+    byte[] body = messages.get(message);
+    if (body == null) {
+      body = new JsonBuffer(message.length() + 16).appendAscii("{\"message\":")
+              .appendString(message).append('}').toByteArray();
+      if (messages.size() < MAX_CACHED_MESSAGES) {
+        messages.put(message, body);
+      }
+    }
+    return body;
+  }
+
+  /**
+   * Helper method for our adapters that reads an integer field
+   * @param in is the reader positioned at the field's value
+   * @return the integer read
+   * @throws IOException if the value could not be read
+   * @throws JsonSyntaxException if the value is not an integer, as reflective Gson reports it
+   */
+  private static int nextInt(JsonReader in) throws IOException, JsonSyntaxException {
+    try {
+      return in.nextInt();
+    } catch (NumberFormatException e) {
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  /**
+   * Reads and writes a LiftRideInput, the body of a POST
+   */
+  private static class InputAdapter extends TypeAdapter<LiftRideInput> {
+    @Override
+    public void write(JsonWriter out, LiftRideInput ride) throws IOException {
+      out.beginObject();
+      out.name("skier").value(ride.getSkierID());
+      out.name("resort").value(ride.getResortID());
+      out.name("lift").value(ride.getLiftID());
+      out.name("time").value(ride.getTime());
+      out.endObject();
+    }
+
+    @Override
+    public LiftRideInput read(JsonReader in) throws IOException {
+      int skier = 0;
+      int resort = 0;
+      int lift = 0;
+      int time = 0;
+      in.beginObject();
+      while (in.hasNext()) {
+        switch (in.nextName()) {
+          case "skier":
+            skier = nextInt(in);
+            break;
+          case "resort":
+            resort = nextInt(in);
+            break;
+          case "lift":
+            lift = nextInt(in);
+            break;
+          case "time":
+            time = nextInt(in);
+            break;
+          default:
+            in.skipValue();
+        }
+      }
+      in.endObject();
+      return new LiftRideInput(skier, resort, lift, time);
+    }
+  }
+
+  /**
+   * Reads and writes a LiftRide
+   */
+  private static class RideAdapter extends TypeAdapter<LiftRide> {
+    @Override
+    public void write(JsonWriter out, LiftRide ride) throws IOException {
+      out.beginObject();
+      out.name("liftRideId").value(ride.getLiftRideId());
+      out.name("url").value(ride.getURL());
+      out.name("skier").value(ride.getSkier());
+      out.name("resort").value(ride.getResort());
+      out.name("lift").value(ride.getLiftID());
+      out.name("time").value(ride.getTime());
+      out.endObject();
+    }
+
+    @Override
+    public LiftRide read(JsonReader in) throws IOException {
+      int rideID = 0;
+      int skier = 0;
+      int resort = 0;
+      int lift = 0;
+      int time = 0;
+      in.beginObject();
+      while (in.hasNext()) {
+        switch (in.nextName()) {
+          case "liftRideId":
+            rideID = nextInt(in);
+            break;
+          case "skier":
+            skier = nextInt(in);
+            break;
+          case "resort":
+            resort = nextInt(in);
+            break;
+          case "lift":
+            lift = nextInt(in);
+            break;
+          case "time":
+            time = nextInt(in);
+            break;
+          default:
+            // the url is rebuilt from the ID
+            in.skipValue();
+        }
+      }
+      in.endObject();
+      return new LiftRide(rideID, skier, resort, lift, time);
+    }
+  }
+
+  /**
+   * Reads and writes a LiftRideList
+   */
+  private static class ListAdapter extends TypeAdapter<LiftRideList> {
+    private final RideAdapter rides = new RideAdapter();
+
+    @Override
+    public void write(JsonWriter out, LiftRideList list) throws IOException {
+      out.beginObject();
+      out.name("rides").beginArray();
+      for (LiftRide ride : list.rides) {
+        rides.write(out, ride);
+      }
+      out.endArray();
+      out.endObject();
+    }
+
+    @Override
+    public LiftRideList read(JsonReader in) throws IOException {
+      LiftRideList list = new LiftRideList();
+      in.beginObject();
+      while (in.hasNext()) {
+        if (in.nextName().equals("rides") && in.peek() == JsonToken.BEGIN_ARRAY) {
+          in.beginArray();
+          while (in.hasNext()) {
+            list.rides.add(rides.read(in));
+          }
+          in.endArray();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return list;
+    }
+  }
+
+  /**
+   * Reads and writes a LiftRideBatchResult
+   */
+  private static class BatchResultAdapter extends TypeAdapter<LiftRideBatchResult> {
+    @Override
+    public void write(JsonWriter out, LiftRideBatchResult result) throws IOException {
+      out.beginObject();
+      out.name("results").beginArray();
+      for (LiftRideBatchResult.Item item : result.getResults()) {
+        out.beginObject();
+        out.name("status").value(item.getStatus());
+        if (item.getLiftRideId() != null) {
+          out.name("liftRideId").value(item.getLiftRideId());
+          out.name("url").value("/liftrides/" + item.getLiftRideId());
+        }
+        if (item.getMessage() != null) {
+          out.name("message").value(item.getMessage());
+        }
+        out.endObject();
+      }
+      out.endArray();
+      out.endObject();
+    }
+
+    @Override
+    public LiftRideBatchResult read(JsonReader in) throws IOException {
+      LiftRideBatchResult result = new LiftRideBatchResult();
+      in.beginObject();
+      while (in.hasNext()) {
+        if (in.nextName().equals("results") && in.peek() == JsonToken.BEGIN_ARRAY) {
+          in.beginArray();
+          while (in.hasNext()) {
+            result.getResults().add(readItem(in));
+          }
+          in.endArray();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return result;
+    }
+
+    /**
+     * Helper method for read that reads the result of a single ride
+     * @param in is the reader positioned at the result
+     * @return the result read
+     * @throws IOException if the result is not valid JSON
+     */
+    private LiftRideBatchResult.Item readItem(JsonReader in) throws IOException {
+      int status = 0;
+      Integer rideID = null;
+      String message = null;
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (in.peek() == JsonToken.NULL) {
+          in.nextNull();
+        } else if (name.equals("status")) {
+          status = nextInt(in);
+        } else if (name.equals("liftRideId")) {
+          rideID = nextInt(in);
+        } else if (name.equals("message")) {
+          message = in.nextString();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return new LiftRideBatchResult.Item(status, rideID, message);
+    }
+  }
+
+  /**
+   * Reads and writes a Message
+   */
+  private static class MessageAdapter extends TypeAdapter<Message> {
+    @Override
+    public void write(JsonWriter out, Message message) throws IOException {
+      out.beginObject();
+      if (message.getMessage() != null) {
+        out.name("message").value(message.getMessage());
+      }
+      out.endObject();
+    }
+
+    @Override
+    public Message read(JsonReader in) throws IOException {
+      String message = null;
+      in.beginObject();
+      while (in.hasNext()) {
+        if (in.nextName().equals("message") && in.peek() == JsonToken.STRING) {
+          message = in.nextString();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return new Message(message);
+    }
+  }
+}
@@ -10,6 +10,9 @@ public class LiftRideInput {
   private final int resort;
   private final int lift;
   private final int time;
+  // not part of the JSON body, these are filled in by the servlet and DAO respectively
+  private transient String requestKey;
+  private transient boolean duplicate;
 
   /**
    * Constructs this object to hold the given skierID, resortID, liftID, and time
@@ -56,4 +59,36 @@ public class LiftRideInput {
   public int getTime() {
     return time;
   }
+
+  /**
+   * Simple getter that returns the client-supplied idempotency key for this ride
+   * @return the String idempotency key or null if the client did not supply one
+   */
+  public String getRequestKey() {
+    return requestKey;
+  }
+
+  /**
+   * Sets the client-supplied idempotency key for this ride, used to dedupe retried POSTs
+   * @param requestKey is the String idempotency key or null for none
+   */
+  public void setRequestKey(String requestKey) {
+    this.requestKey = requestKey;
+  }
+
+  /**
+   * Checks whether writing this ride found an existing row with the same idempotency key
+   * @return true if this ride was a replay of an earlier write, false otherwise
+   */
+  public boolean isDuplicate() {
+    return duplicate;
+  }
+
+  /**
+   * Marks this ride as a replay of an earlier write with the same idempotency key
+   * @param duplicate is true if an existing row with the same key was found
+   */
+  public void setDuplicate(boolean duplicate) {
+    this.duplicate = duplicate;
+  }
 }
@@ -0,0 +1,68 @@
+package servlethelpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a LiftRideList to an output stream one ride at a time, producing the same JSON that
+ * Gson produces for a LiftRideList without ever holding the whole list in memory. Rides are
+ * encoded by LiftRideCodec into a small buffer that is handed to the output stream whenever it
+ * fills up.
+ */
+public class LiftRideJsonWriter implements LiftRideListWriter {
+  private static final int FLUSH_BYTES = 8192;
+  private final OutputStream out;
+  private final JsonBuffer buffer = new JsonBuffer(FLUSH_BYTES + 128);
+  private boolean first = true;
+
+  /**
+   * Sets up our writer on top of the given output stream
+   * @param out is the output stream (normally the servlet response) the JSON is written to
+   */
+  public LiftRideJsonWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Writes the opening of our list, must be called before any rides are written
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  @Override
+  public void beginList() throws IOException {
+    buffer.appendAscii("{\"rides\":[");
+  }
+
+  /**
+   * Writes a single lift ride as the next element of our list
+   * @param rideID is the integer ID that identifies this lift ride
+   * @param skier is the integer ID of the client taking this ride
+   * @param resort is the resort ID where this lift ride occurred
+   * @param lift is the integer ID of the lift taken
+   * @param time is an integer representing the time the lift was taken
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  @Override
+  public void writeRide(int rideID, int skier, int resort, int lift, int time) throws IOException {
+    if (!first) {
+      buffer.append(',');
+    }
+    first = false;
+    LiftRideCodec.appendRide(buffer, rideID, skier, resort, lift, time);
+    if (buffer.size() >= FLUSH_BYTES) {
+      buffer.writeTo(out);
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Writes the closing of our list and flushes everything out to the output stream
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  @Override
+  public void endList() throws IOException {
+    buffer.appendAscii("]}");
+    buffer.writeTo(out);
+    buffer.clear();
+    out.flush();
+  }
+}
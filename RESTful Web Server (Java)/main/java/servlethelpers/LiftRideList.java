@@ -1,6 +1,7 @@
 package servlethelpers;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
  * Helper object for our servlets.LiftRideServlet which allows for proper JSON display conforming to our
@@ -8,12 +9,15 @@ import java.util.ArrayList;
  */
 public class LiftRideList {
   ArrayList<LiftRide> rides;
+  // index of the ride IDs in our list so duplicate checks don't scan the whole list
+  private transient HashSet<Integer> rideIds;
 
   /**
    * Simple constructor that establishes the underlying array.
    */
   public LiftRideList() {
     this.rides = new ArrayList<>();
+    this.rideIds = new HashSet<>();
   }
 
   /**
@@ -26,16 +30,17 @@ public class LiftRideList {
   public boolean addRide(LiftRide newRide) throws NullPointerException {
     if (newRide == null) {
       throw new NullPointerException("Ride cannot be null");
-    } else if (rides.isEmpty()) {
-      rides.add(newRide);
-      return true;
     }
-
-    for (LiftRide ride : rides) {
-      if (ride.getLiftRideId() == newRide.getLiftRideId()) {
-        return false;
+    // a list read in from JSON starts with an out of date index
+    if (rideIds.size() != rides.size()) {
+      rideIds.clear();
+      for (LiftRide ride : rides) {
+        rideIds.add(ride.getLiftRideId());
       }
     }
+    if (!rideIds.add(newRide.getLiftRideId())) {
+      return false;
+    }
     rides.add(newRide);
     return true;
   }
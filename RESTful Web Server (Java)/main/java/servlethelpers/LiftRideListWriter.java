@@ -0,0 +1,32 @@
+package servlethelpers;
+
+import java.io.IOException;
+
+/**
+ * Writes a list of lift rides to an output stream one ride at a time, in whichever wire format
+ * the client negotiated, without ever holding the whole list in memory.
+ */
+public interface LiftRideListWriter {
+  /**
+   * Writes the opening of our list, must be called before any rides are written
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  void beginList() throws IOException;
+
+  /**
+   * Writes a single lift ride as the next element of our list
+   * @param rideID is the integer ID that identifies this lift ride
+   * @param skier is the integer ID of the client taking this ride
+   * @param resort is the resort ID where this lift ride occurred
+   * @param lift is the integer ID of the lift taken
+   * @param time is an integer representing the time the lift was taken
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  void writeRide(int rideID, int skier, int resort, int lift, int time) throws IOException;
+
+  /**
+   * Writes the closing of our list and flushes everything out to the output stream
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  void endList() throws IOException;
+}
@@ -0,0 +1,158 @@
+package servlethelpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wrapper class for the body of a GET /resorts/{id}/utilization request: how many rides each of a
+ * resort's lifts carried in every time bucket of the ski day, along with its busiest lifts
+ */
+public class LiftUtilizationReport {
+  private int resortID;
+  private int bucketMinutes;
+  private boolean complete;
+  private List<LiftBuckets> lifts;
+  private List<BusyLift> busiestLifts;
+
+  /**
+   * The rides one lift carried per time bucket, the first bucket starting at time 1
+   */
+  public static class LiftBuckets {
+    private int liftID;
+    private long total;
+    private long[] rides;
+
+    private LiftBuckets(int liftID, long[] rides) {
+      this.liftID = liftID;
+      this.rides = rides;
+      for (long count : rides) {
+        this.total += count;
+      }
+    }
+
+    /**
+     * @return the integer ID of the lift
+     */
+    public int getLiftID() {
+      return liftID;
+    }
+
+    /**
+     * @return the number of rides the lift carried over the whole day
+     */
+    public long getTotal() {
+      return total;
+    }
+
+    /**
+     * @return the number of rides the lift carried in each time bucket
+     */
+    public long[] getRides() {
+      return rides;
+    }
+  }
+
+  /**
+   * One of the busiest lifts, as estimated by a heavy-hitter sketch
+   */
+  public static class BusyLift {
+    private int liftID;
+    private long rides;
+    private long error;
+
+    private BusyLift(int liftID, long rides, long error) {
+      this.liftID = liftID;
+      this.rides = rides;
+      this.error = error;
+    }
+
+    /**
+     * @return the integer ID of the lift
+     */
+    public int getLiftID() {
+      return liftID;
+    }
+
+    /**
+     * @return the estimated number of rides the lift carried
+     */
+    public long getRides() {
+      return rides;
+    }
+
+    /**
+     * @return how many rides the estimate may be too high by
+     */
+    public long getError() {
+      return error;
+    }
+  }
+
+  /**
+   * Simple constructor for an empty report
+   * @param resortID is the integer ID of the resort being reported on
+   * @param bucketMinutes is the number of minutes of lift time every bucket covers
+   * @param complete is false while the counts are still being rebuilt from the database
+   */
+  public LiftUtilizationReport(int resortID, int bucketMinutes, boolean complete) {
+    this.resortID = resortID;
+    this.bucketMinutes = bucketMinutes;
+    this.complete = complete;
+    this.lifts = new ArrayList<>();
+    this.busiestLifts = new ArrayList<>();
+  }
+
+  /**
+   * Adds the bucketed rides of a lift to this report
+   * @param liftID is the integer ID of the lift
+   * @param rides is the number of rides the lift carried in each time bucket
+   */
+  public void addLift(int liftID, long[] rides) {
+    lifts.add(new LiftBuckets(liftID, rides));
+  }
+
+  /**
+   * Adds one of the busiest lifts to this report, which are expected to be added busiest first
+   * @param liftID is the integer ID of the lift
+   * @param rides is the estimated number of rides the lift carried
+   * @param error is how many rides the estimate may be too high by
+   */
+  public void addBusiestLift(int liftID, long rides, long error) {
+    busiestLifts.add(new BusyLift(liftID, rides, error));
+  }
+
+  /**
+   * @return the integer ID of the resort being reported on
+   */
+  public int getResortID() {
+    return resortID;
+  }
+
+  /**
+   * @return the number of minutes of lift time every bucket covers
+   */
+  public int getBucketMinutes() {
+    return bucketMinutes;
+  }
+
+  /**
+   * @return false while the counts are still being rebuilt from the database
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * @return the bucketed rides of every lift in this report
+   */
+  public List<LiftBuckets> getLifts() {
+    return lifts;
+  }
+
+  /**
+   * @return the busiest lifts, busiest first
+   */
+  public List<BusyLift> getBusiestLifts() {
+    return busiestLifts;
+  }
+}
@@ -1,19 +1,25 @@
 package servlethelpers;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Mostly a wrapper class around an ArrayList for proper JSON display value conforming to
- * Swagger API spec
+ * Swagger API spec. Resorts are also indexed by ID and name so lookups don't scan the list.
  */
 public class ResortList {
   private ArrayList<Resort> resorts;
+  // lookup indexes, not part of the JSON display value
+  private transient HashMap<Integer, Resort> resortsByID;
+  private transient HashMap<String, Resort> resortsByName;
 
   /**
-   * Simple constructor that initializes our underlying ArrayList
+   * Simple constructor that initializes our underlying ArrayList and indexes
    */
   public ResortList() {
     this.resorts = new ArrayList<>();
+    this.resortsByID = new HashMap<>();
+    this.resortsByName = new HashMap<>();
   }
 
   /**
@@ -22,54 +28,39 @@ public class ResortList {
    * @throws IllegalArgumentException if a resort with the same ID has already been added
    */
   public void addResort(Resort resort) throws IllegalArgumentException {
-    for (Resort curResort : resorts) {
-      if (resort.getResortID() == curResort.getResortID()) {
-        throw new IllegalArgumentException("Resort already added to this list");
-      }
+    if (resortsByID.putIfAbsent(resort.getResortID(), resort) != null) {
+      throw new IllegalArgumentException("Resort already added to this list");
     }
+    resortsByName.putIfAbsent(resort.getResortName(), resort);
     resorts.add(resort);
   }
 
   /**
-   * Checks through our resort list to check if the given ID matches a resort in our list
+   * Checks our resort index to check if the given ID matches a resort in our list
    * @param id the integer ID of the resort to be searched for
    * @return true if the resort ID is found, false otherwise
    */
   public boolean resortExists(int id) {
-    for (Resort resort : resorts) {
-      if (id == resort.getResortID()) {
-        return true;
-      }
-    }
-    return false;
+    return resortsByID.containsKey(id);
   }
 
   /**
-   * Checks through our resort list to check if the given name matches a resort name in our list
+   * Checks our resort index to check if the given name matches a resort name in our list
    * @param name is the String name of the resort to be searched for
    * @return true if the resort name is found, false otherwise
    */
   public boolean resortExists(String name) {
-    for (Resort resort : resorts) {
-      if (name.equals(resort.getResortName())) {
-        return true;
-      }
-    }
-    return false;
+    return resortsByName.containsKey(name);
   }
 
   /**
-   * Checks through our resort list to get the ID of the given resort name. Assumes all resort IDs
+   * Checks our resort index to get the ID of the given resort name. Assumes all resort IDs
    * are positive integers.
    * @param name is the resort name whose integer ID is returned
    * @return the integer ID of the given resort name if found, -1 otherwise
    */
   public int getID(String name) {
-    for (Resort resort : resorts) {
-      if (name.equals(resort.getResortName())) {
-        return resort.getResortID();
-      }
-    }
-    return -1;
+    Resort resort = resortsByName.get(name);
+    return resort == null ? -1 : resort.getResortID();
   }
 }
@@ -0,0 +1,106 @@
+package servlethelpers;
+
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Negotiated gzip/deflate compression for our larger responses. It is configured through
+ * RESPONSE_COMPRESSION (on by default), RESPONSE_COMPRESSION_LEVEL (the zlib level, 1 for fastest
+ * to 9 for smallest, 6 by default) and RESPONSE_COMPRESSION_MIN_BYTES (1024 by default), the size
+ * a response has to grow past before it is compressed. Responses smaller than that are sent as
+ * they are, since compressing them costs more latency than it saves on the wire.
+ * How many responses were compressed and how many bytes went in and out are reported through
+ * ServerMetrics.
+ */
+public class ResponseCompression {
+  private final boolean enabled;
+  private final int level;
+  private final int minBytes;
+  private final LongAdder compressed = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+
+  /**
+   * Constructs our compression settings from the server properties and registers its metrics
+   */
+  public ResponseCompression() {
+    this.enabled = ServerProperties.getBoolean("RESPONSE_COMPRESSION", true);
+    this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION,
+            ServerProperties.getInt("RESPONSE_COMPRESSION_LEVEL", 6)));
+    this.minBytes = Math.max(0, ServerProperties.getInt("RESPONSE_COMPRESSION_MIN_BYTES", 1024));
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    metrics.registerCounter("response_compressed_total", compressed::sum);
+    metrics.registerCounter("response_compression_in_bytes_total", bytesIn::sum);
+    metrics.registerCounter("response_compression_out_bytes_total", bytesOut::sum);
+  }
+
+  /**
+   * Picks the content coding to compress a response with
+   * @param acceptEncoding is the value of the request's Accept-Encoding header, may be null
+   * @return "gzip" or "deflate", or null if the response should not be compressed
+   */
+  public String negotiate(String acceptEncoding) {
+    if (!enabled || acceptEncoding == null) {
+      return null;
+    }
+    boolean deflate = false;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] params = coding.split(";");
+      String name = params[0].trim().toLowerCase();
+      if (!accepted(params)) {
+        continue;
+      }
+      // gzip is the most widely supported, so it wins whenever it is accepted
+      if (name.equals("gzip") || name.equals("x-gzip") || name.equals("*")) {
+        return "gzip";
+      } else if (name.equals("deflate")) {
+        deflate = true;
+      }
+    }
+    return deflate ? "deflate" : null;
+  }
+
+  /**
+   * Helper method for negotiate that checks the quality value of a content coding
+   * @param params is the content coding followed by its parameters
+   * @return false if the coding was given a q of 0 (or an unreadable q), true otherwise
+   */
+  private static boolean accepted(String[] params) {
+    for (int i = 1; i < params.length; i++) {
+      String param = params[i].trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Double.parseDouble(param.substring(2)) > 0;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Wraps a response body so it is compressed once it grows past our minimum size
+   * @param out is the output stream (normally the servlet response) the body is written to
+   * @param coding is the content coding returned by negotiate
+   * @param onCompress is run right before the first compressed byte is written, while the
+   *                   response can still take headers, to set its Content-Encoding
+   * @return the stream the body is to be written to
+   */
+  public CompressingOutputStream wrap(OutputStream out, String coding, Runnable onCompress) {
+    return new CompressingOutputStream(this, out, coding.equals("gzip"), level, minBytes,
+            onCompress);
+  }
+
+  /**
+   * Records a response that was compressed, called by CompressingOutputStream once it finishes
+   * @param in is the number of bytes of the body before compression
+   * @param out is the number of bytes written out after compression
+   */
+  void recordCompressed(long in, long out) {
+    compressed.increment();
+    bytesIn.add(in);
+    bytesOut.add(out);
+  }
+}
@@ -0,0 +1,283 @@
+package servlethelpers;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The single registry behind our /metrics endpoint. Servlets record request latencies into
+ * per-endpoint EndpointMetrics, other components record into named LatencyHistograms, and
+ * anything else worth watching (queue depths, cache counters, ...) is registered as a gauge or
+ * counter that is read when the metrics are reported. Reports are available as JSON or in the
+ * Prometheus text format.
+ */
+public class ServerMetrics {
+  private static final ServerMetrics instance = new ServerMetrics();
+  private static final double[] PERCENTILES = {50, 95, 99, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p95", "p99", "p999"};
+  private static final String[] QUANTILES = {"0.5", "0.95", "0.99", "0.999"};
+  private final long startNanos = System.nanoTime();
+  private final Map<String, EndpointMetrics> endpoints = new ConcurrentSkipListMap<>();
+  private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+  private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+  private final Map<String, LongSupplier> counters = new ConcurrentSkipListMap<>();
+
+  /**
+   * Simple getter for the single registry shared by our servlets
+   * @return the ServerMetrics instance
+   */
+  public static ServerMetrics getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns the metrics for the given endpoint, creating them the first time the endpoint is
+   * asked for. Meant to be called once at startup, with the result kept for the hot path.
+   * @param name is the String name of the endpoint, i.e. its method and path pattern
+   * @return the EndpointMetrics for the endpoint
+   */
+  public EndpointMetrics endpoint(String name) {
+    return endpoints.computeIfAbsent(name, EndpointMetrics::new);
+  }
+
+  /**
+   * Returns the named histogram, creating it the first time it is asked for. Meant to be called
+   * once at startup, with the result kept for the hot path.
+   * @param name is the metric name of the histogram, in Prometheus form (e.g. dao_wait_micros)
+   * @return the LatencyHistogram with that name
+   */
+  public LatencyHistogram histogram(String name) {
+    return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+  }
+
+  /**
+   * Returns the named histogram for a single value of the given label, creating it the first
+   * time it is asked for. Histograms sharing a name are reported as one Prometheus metric.
+   * Meant to be called once per label value, with the result kept for the hot path.
+   * @param name is the metric name of the histogram, in Prometheus form (e.g. db_hold_micros)
+   * @param label is the name of the label that tells the histograms apart (e.g. method)
+   * @param value is the value of the label for this histogram
+   * @return the LatencyHistogram for that name and label value
+   */
+  public LatencyHistogram histogram(String name, String label, String value) {
+    return histogram(labeled(name, label, value));
+  }
+
+  /**
+   * Builds the key of a labeled metric (e.g. db_pool_active{pool="primary"}), to be handed to
+   * histogram, registerGauge or registerCounter. Metrics sharing a name are reported as one
+   * Prometheus metric.
+   * @param name is the metric name, in Prometheus form
+   * @param labels is the list of label names each followed by its value
+   * @return the String key of the labeled metric
+   */
+  public static String labeled(String name, String... labels) {
+    StringBuilder key = new StringBuilder(name).append('{');
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) {
+        key.append(',');
+      }
+      key.append(labels[i]).append("=\"").append(escapeLabel(labels[i + 1])).append('"');
+    }
+    return key.append('}').toString();
+  }
+
+  /**
+   * Registers a value that can go up and down, read every time metrics are reported
+   * @param name is the metric name of the gauge, in Prometheus form (e.g. dao_queue_depth)
+   * @param value supplies the current value of the gauge
+   */
+  public void registerGauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /**
+   * Registers a value that only ever goes up, read every time metrics are reported
+   * @param name is the metric name of the counter, in Prometheus form (e.g. dao_rejections_total)
+   * @param value supplies the current value of the counter
+   */
+  public void registerCounter(String name, LongSupplier value) {
+    counters.put(name, value);
+  }
+
+  /**
+   * @return the number of seconds since our metrics started being recorded
+   */
+  private double uptimeSeconds() {
+    return Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+  }
+
+  /**
+   * Writes every metric we hold as a single JSON object
+   * @param out is the writer (normally the servlet response) the JSON is written to
+   * @throws IOException if there was an issue writing the report
+   */
+  public void writeJson(Writer out) throws IOException {
+    double uptime = uptimeSeconds();
+    JsonWriter json = new JsonWriter(out);
+    json.beginObject();
+    json.name("uptimeSeconds").value((long) uptime);
+
+    json.name("endpoints").beginObject();
+    for (EndpointMetrics endpoint : endpoints.values()) {
+      LatencyHistogram all = new LatencyHistogram();
+      long errors = 0;
+      int[] statuses = endpoint.getStatuses();
+      for (int status : statuses) {
+        LatencyHistogram histogram = endpoint.getHistogram(status);
+        all.add(histogram);
+        if (status >= 400 || status < 100) {
+          errors += histogram.getCount();
+        }
+      }
+      json.name(endpoint.getName()).beginObject();
+      json.name("count").value(all.getCount());
+      json.name("throughput").value(all.getCount() / uptime);
+      json.name("errorRate").value(all.getCount() == 0 ? 0 : (double) errors / all.getCount());
+      writeJsonPercentiles(json, all);
+      json.name("statuses").beginObject();
+      for (int status : statuses) {
+        LatencyHistogram histogram = endpoint.getHistogram(status);
+        json.name(Integer.toString(status)).beginObject();
+        json.name("count").value(histogram.getCount());
+        writeJsonPercentiles(json, histogram);
+        json.endObject();
+      }
+      json.endObject();
+      json.endObject();
+    }
+    json.endObject();
+
+    json.name("histograms").beginObject();
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      json.name(entry.getKey()).beginObject();
+      json.name("count").value(entry.getValue().getCount());
+      writeJsonPercentiles(json, entry.getValue());
+      json.endObject();
+    }
+    json.endObject();
+
+    json.name("gauges").beginObject();
+    for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+      json.name(entry.getKey()).value(entry.getValue().getAsLong());
+    }
+    json.endObject();
+
+    json.name("counters").beginObject();
+    for (Map.Entry<String, LongSupplier> entry : counters.entrySet()) {
+      json.name(entry.getKey()).value(entry.getValue().getAsLong());
+    }
+    json.endObject();
+
+    json.endObject();
+    json.flush();
+  }
+
+  /**
+   * Helper method for writeJson that writes the percentiles and max of a histogram
+   * @param json is the JsonWriter positioned inside the histogram's object
+   * @param histogram is the histogram whose percentiles are written
+   * @throws IOException if there was an issue writing the report
+   */
+  private void writeJsonPercentiles(JsonWriter json, LatencyHistogram histogram)
+          throws IOException {
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      json.name(PERCENTILE_NAMES[i] + "Micros").value(histogram.getPercentile(PERCENTILES[i]));
+    }
+    json.name("maxMicros").value(histogram.getMax());
+  }
+
+  /**
+   * Writes every metric we hold in the Prometheus text exposition format
+   * @param out is the writer (normally the servlet response) the report is written to
+   * @throws IOException if there was an issue writing the report
+   */
+  public void writePrometheus(Writer out) throws IOException {
+    out.write("# TYPE http_request_duration_microseconds summary\n");
+    for (EndpointMetrics endpoint : endpoints.values()) {
+      for (int status : endpoint.getStatuses()) {
+        String labels = "endpoint=\"" + escapeLabel(endpoint.getName())
+                + "\",status=\"" + status + "\"";
+        writePrometheusSummary(out, "http_request_duration_microseconds", labels,
+                endpoint.getHistogram(status));
+      }
+    }
+    Set<String> typed = new HashSet<>();
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      String name = writePrometheusType(out, typed, entry.getKey(), "summary");
+      writePrometheusSummary(out, name, labelsOf(entry.getKey()), entry.getValue());
+    }
+    for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+      writePrometheusType(out, typed, entry.getKey(), "gauge");
+      out.write(entry.getKey() + " " + entry.getValue().getAsLong() + "\n");
+    }
+    for (Map.Entry<String, LongSupplier> entry : counters.entrySet()) {
+      writePrometheusType(out, typed, entry.getKey(), "counter");
+      out.write(entry.getKey() + " " + entry.getValue().getAsLong() + "\n");
+    }
+    out.flush();
+  }
+
+  /**
+   * Helper method for writePrometheus that writes the TYPE line of a metric, once per metric
+   * name no matter how many labeled keys share it
+   * @param out is the writer the report is written to
+   * @param typed is the set of metric names whose TYPE line has already been written
+   * @param key is the key of the metric, labeled keys being of the form name{label="value"}
+   * @param type is the Prometheus type of the metric
+   * @return the metric name without its labels
+   * @throws IOException if there was an issue writing the report
+   */
+  private String writePrometheusType(Writer out, Set<String> typed, String key, String type)
+          throws IOException {
+    int labelStart = key.indexOf('{');
+    String name = labelStart < 0 ? key : key.substring(0, labelStart);
+    if (typed.add(name)) {
+      out.write("# TYPE " + name + " " + type + "\n");
+    }
+    return name;
+  }
+
+  /**
+   * @param key is the key of a metric, labeled keys being of the form name{label="value"}
+   * @return the comma separated labels of the key without their braces, empty if unlabeled
+   */
+  private static String labelsOf(String key) {
+    int labelStart = key.indexOf('{');
+    return labelStart < 0 ? "" : key.substring(labelStart + 1, key.length() - 1);
+  }
+
+  /**
+   * Helper method for writePrometheus that writes the quantiles, sum, and count of a histogram
+   * @param out is the writer the report is written to
+   * @param name is the metric name of the summary
+   * @param labels is the comma separated list of labels shared by every line, may be empty
+   * @param histogram is the histogram being written
+   * @throws IOException if there was an issue writing the report
+   */
+  private void writePrometheusSummary(Writer out, String name, String labels,
+                                      LatencyHistogram histogram) throws IOException {
+    String prefix = labels.isEmpty() ? "" : labels + ",";
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      out.write(name + "{" + prefix + "quantile=\"" + QUANTILES[i] + "\"} "
+              + histogram.getPercentile(PERCENTILES[i]) + "\n");
+    }
+    String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+    out.write(name + "_sum" + suffix + " " + histogram.getSum() + "\n");
+    out.write(name + "_count" + suffix + " " + histogram.getCount() + "\n");
+  }
+
+  /**
+   * Escapes a Prometheus label value
+   * @param value is the raw label value
+   * @return the value with backslashes, quotes, and newlines escaped
+   */
+  private static String escapeLabel(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,90 @@
+package servlethelpers;
+
+/**
+ * Small helper around System.getProperty for the tuning knobs our servlets and DAOs read from the
+ * catalina.properties file in the Tomcat conf folder. Every lookup falls back to the given default
+ * when the property is missing or cannot be parsed, so a bare Tomcat install still starts up.
+ */
+public class ServerProperties {
+
+  /**
+   * Fetches a String property
+   * @param name is the name of the system property
+   * @param defaultValue is the value returned if the property is not set
+   * @return the String value of the property or the default if not set
+   */
+  public static String getString(String name, String defaultValue) {
+    String value = System.getProperty(name);
+    return value == null || value.isEmpty() ? defaultValue : value;
+  }
+
+  /**
+   * Fetches an integer property
+   * @param name is the name of the system property
+   * @param defaultValue is the value returned if the property is not set or not an integer
+   * @return the integer value of the property or the default
+   */
+  public static int getInt(String name, int defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Fetches a long property
+   * @param name is the name of the system property
+   * @param defaultValue is the value returned if the property is not set or not a number
+   * @return the long value of the property or the default
+   */
+  public static long getLong(String name, long defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Fetches a decimal property
+   * @param name is the name of the system property
+   * @param defaultValue is the value returned if the property is not set or not a finite number
+   * @return the double value of the property or the default
+   */
+  public static double getDouble(String name, double defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      double parsed = Double.parseDouble(value.trim());
+      return Double.isFinite(parsed) ? parsed : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Fetches a boolean flag property. Flags are considered set when their value
+   * is "TRUE" (case-insensitive).
+   * @param name is the name of the system property
+   * @param defaultValue is the value returned if the property is not set
+   * @return true if the property is "TRUE", false if it is set to anything else, or the default
+   */
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    return value.trim().equalsIgnoreCase("TRUE");
+  }
+}
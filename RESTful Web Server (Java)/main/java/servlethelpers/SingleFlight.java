@@ -0,0 +1,145 @@
+package servlethelpers;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical concurrent requests so they share one execution: the first request for a
+ * key starts the work, and every request for the same key arriving before it finishes waits on
+ * its result instead of starting its own. A result can optionally be reused for a short window
+ * after it completes.
+ * Keys belong to an integer group (e.g. a skierID), and invalidating a group makes every later
+ * request of the group start fresh work, never joining or reusing work that started before the
+ * invalidation. Groups are tracked by stripe, so invalidating one may also refresh a few others.
+ * Executions, joined requests and reused results are reported through ServerMetrics, labeled with
+ * our name, so the share of requests that were coalesced can be read off of them.
+ * @param <K> is the type of our keys
+ * @param <V> is the type of the shared results
+ */
+public class SingleFlight<K, V> {
+  // must be a power of 2, groups are mapped to stripes by their low bits
+  private static final int STRIPES = 1024;
+  private final Map<K, Flight<V>> flights = new ConcurrentHashMap<>();
+  private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+  private final long reuseNanos;
+  private final int maxReused;
+  private final LongAdder executions = new LongAdder();
+  private final LongAdder joined = new LongAdder();
+  private final LongAdder reused = new LongAdder();
+
+  /**
+   * One execution of the work for a key, shared by every request waiting on it
+   * @param <V> is the type of the shared result
+   */
+  private static class Flight<V> {
+    private final long version;
+    private final CompletableFuture<V> result = new CompletableFuture<>();
+    private volatile long completedAt;
+
+    private Flight(long version) {
+      this.version = version;
+    }
+  }
+
+  /**
+   * Constructs our coalescer and registers its metrics
+   * @param name is the String name our metrics are labeled with
+   * @param reuseMillis is how long (in ms) a completed result is reused, 0 to never reuse one
+   * @param maxReused is the most completed results kept around for reuse at once
+   */
+  public SingleFlight(String name, long reuseMillis, int maxReused) {
+    this.reuseNanos = Math.max(0, reuseMillis) * 1000000;
+    this.maxReused = maxReused;
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    metrics.registerCounter(ServerMetrics.labeled("single_flight_executions_total", "name", name),
+            executions::sum);
+    metrics.registerCounter(ServerMetrics.labeled("single_flight_joined_total", "name", name),
+            joined::sum);
+    metrics.registerCounter(ServerMetrics.labeled("single_flight_reused_total", "name", name),
+            reused::sum);
+    metrics.registerGauge(ServerMetrics.labeled("single_flight_entries", "name", name),
+            flights::size);
+  }
+
+  /**
+   * Gets the result for a key, sharing the execution already in flight for it (or a recently
+   * completed one) if there is one, or starting a new one otherwise. Work that fails is never
+   * shared past the requests already waiting on it.
+   * @param key is the key of the request
+   * @param group is the integer group the key belongs to, see invalidate
+   * @param work starts the work for the key, called only if this request has to start it
+   * @return the future completing with the result of the key
+   */
+  public CompletableFuture<V> execute(K key, int group, Supplier<CompletableFuture<V>> work) {
+    long version = versions.get(group & (STRIPES - 1));
+    while (true) {
+      Flight<V> flight = flights.get(key);
+      if (flight != null) {
+        if (flight.version == version && !flight.result.isDone()) {
+          joined.increment();
+          return flight.result;
+        }
+        if (flight.version == version && !flight.result.isCompletedExceptionally()
+                && System.nanoTime() - flight.completedAt < reuseNanos) {
+          reused.increment();
+          return flight.result;
+        }
+        // stale, whoever gets to remove it starts the next execution
+        flights.remove(key, flight);
+        continue;
+      }
+      Flight<V> started = new Flight<>(version);
+      if (flights.putIfAbsent(key, started) != null) {
+        continue;
+      }
+      executions.increment();
+      CompletableFuture<V> result;
+      try {
+        result = work.get();
+      } catch (RuntimeException e) {
+        result = CompletableFuture.failedFuture(e);
+      }
+      result.whenComplete((value, error) -> {
+        started.completedAt = System.nanoTime();
+        // the result must be done before the flight can be dropped, or a request could start a
+        // second execution while the first still has waiters joining
+        if (error == null) {
+          started.result.complete(value);
+        } else {
+          started.result.completeExceptionally(error);
+        }
+        if (error != null || reuseNanos == 0) {
+          flights.remove(key, started);
+        } else if (flights.size() > maxReused) {
+          sweep();
+          if (flights.size() > maxReused) {
+            flights.remove(key, started);
+          }
+        }
+      });
+      return started.result;
+    }
+  }
+
+  /**
+   * Helper method for execute that drops the completed results whose reuse window has passed,
+   * which are otherwise only dropped when their key is asked for again
+   */
+  private void sweep() {
+    long now = System.nanoTime();
+    flights.values().removeIf(flight -> flight.result.isDone()
+            && now - flight.completedAt >= reuseNanos);
+  }
+
+  /**
+   * Makes every later request of a group start fresh work, e.g. once the group's data changes
+   * @param group is the integer group being invalidated
+   */
+  public void invalidate(int group) {
+    versions.incrementAndGet(group & (STRIPES - 1));
+  }
+}
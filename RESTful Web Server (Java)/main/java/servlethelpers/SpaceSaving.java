@@ -0,0 +1,161 @@
+package servlethelpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A heavy-hitter sketch using the Space-Saving algorithm: it counts the most frequent of any
+ * number of long keys in a fixed number of counters. A key without a counter takes over the
+ * counter of the least counted key, inheriting its count as the key's possible overcount (its
+ * error). Any key counted more than total / capacity times is guaranteed to hold a counter, and
+ * every count is at most its error too high.
+ * Counters are kept in a min-heap, so adding to a key takes O(log capacity) time. Sketches are
+ * safe to share between threads, each add taking the sketch's lock.
+ */
+public class SpaceSaving {
+  private final Counter[] heap;
+  private final Map<Long, Counter> counters = new HashMap<>();
+  private int size;
+  private long total;
+
+  /**
+   * One counted key. Counters handed out by top are copies that no longer change.
+   */
+  public static class Counter {
+    private final long key;
+    private long count;
+    private long error;
+    private transient int position;
+
+    private Counter(long key, long count, long error) {
+      this.key = key;
+      this.count = count;
+      this.error = error;
+    }
+
+    /**
+     * @return the long key being counted
+     */
+    public long getKey() {
+      return key;
+    }
+
+    /**
+     * @return the key's estimated count, at most getError too high
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return how much the key's count may be overestimated by
+     */
+    public long getError() {
+      return error;
+    }
+  }
+
+  /**
+   * Constructs an empty sketch
+   * @param capacity is the number of keys counted at once
+   * @throws IllegalArgumentException if the capacity isn't positive
+   */
+  public SpaceSaving(int capacity) throws IllegalArgumentException {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Sketch capacity must be positive");
+    }
+    this.heap = new Counter[capacity];
+  }
+
+  /**
+   * Counts a key once
+   * @param key is the long key being counted
+   */
+  public void add(long key) {
+    add(key, 1);
+  }
+
+  /**
+   * Counts a key the given number of times
+   * @param key is the long key being counted
+   * @param count is the positive amount to count the key by
+   */
+  public synchronized void add(long key, long count) {
+    total += count;
+    Counter counter = counters.get(key);
+    if (counter == null) {
+      if (size < heap.length) {
+        counter = new Counter(key, 0, 0);
+        counter.position = size;
+        heap[size++] = counter;
+      } else {
+        // the least counted key gives up its counter
+        Counter evicted = heap[0];
+        counters.remove(evicted.key);
+        counter = new Counter(key, evicted.count, evicted.count);
+        counter.position = 0;
+        heap[0] = counter;
+      }
+      counters.put(key, counter);
+    }
+    counter.count += count;
+    siftDown(counter.position);
+  }
+
+  /**
+   * Helper method for add that moves a counter whose count went up below its smaller children
+   * @param position is the counter's position in the heap
+   */
+  private void siftDown(int position) {
+    Counter counter = heap[position];
+    while (true) {
+      int child = 2 * position + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+        child++;
+      }
+      if (heap[child].count >= counter.count) {
+        break;
+      }
+      heap[position] = heap[child];
+      heap[position].position = position;
+      position = child;
+    }
+    heap[position] = counter;
+    counter.position = position;
+  }
+
+  /**
+   * Returns the most counted keys, most counted first
+   * @param limit is the most keys to return
+   * @return a list of copies of the top counters
+   */
+  public List<Counter> top(int limit) {
+    Counter[] copies;
+    synchronized (this) {
+      copies = new Counter[size];
+      for (int i = 0; i < size; i++) {
+        copies[i] = new Counter(heap[i].key, heap[i].count, heap[i].error);
+      }
+    }
+    Arrays.sort(copies, Comparator.comparingLong(Counter::getCount).reversed());
+    List<Counter> top = new ArrayList<>(Math.min(limit, copies.length));
+    for (int i = 0; i < copies.length && i < limit; i++) {
+      top.add(copies[i]);
+    }
+    return top;
+  }
+
+  /**
+   * @return the total of every count added, counted or not
+   */
+  public synchronized long getTotal() {
+    return total;
+  }
+}
@@ -0,0 +1,54 @@
+package servlethelpers;
+
+/**
+ * Wrapper class for the body of a GET /resorts/{id}/seasons/{season}/skiers request: the
+ * estimated number of distinct skiers who rode at a resort over a season or on one of its days
+ */
+public class UniqueSkierCount {
+  private int resortID;
+  private String season;
+  private String day;
+  private long skiers;
+
+  /**
+   * Simply initializes this object to hold the given count
+   * @param resortID is the integer ID of the resort counted
+   * @param season is the String year of the season counted
+   * @param day is the ISO date of the day counted, or null for the whole season
+   * @param skiers is the estimated number of distinct skiers
+   */
+  public UniqueSkierCount(int resortID, String season, String day, long skiers) {
+    this.resortID = resortID;
+    this.season = season;
+    this.day = day;
+    this.skiers = skiers;
+  }
+
+  /**
+   * @return the integer ID of the resort counted
+   */
+  public int getResortID() {
+    return resortID;
+  }
+
+  /**
+   * @return the String year of the season counted
+   */
+  public String getSeason() {
+    return season;
+  }
+
+  /**
+   * @return the ISO date of the day counted, or null for the whole season
+   */
+  public String getDay() {
+    return day;
+  }
+
+  /**
+   * @return the estimated number of distinct skiers
+   */
+  public long getSkiers() {
+    return skiers;
+  }
+}
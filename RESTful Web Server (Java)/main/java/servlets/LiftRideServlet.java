@@ -1,41 +1,154 @@
 package servlets;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 import javax.servlet.*;
-import javax.servlet.annotation.WebInitParam;
 import javax.servlet.http.*;
 import javax.servlet.annotation.WebServlet;
-import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import daos.LiftRideDAO;
+import daos.Bulkhead;
+import daos.ConcurrencyLimiter;
+import daos.DAOExecutor;
+import daos.IngestLog;
+import daos.IngestLogDrainer;
+import daos.LiftRideBatchWriter;
+import daos.LiftRideCache;
+import daos.LiftUtilization;
+import daos.SkierLeaderboard;
+import daos.StorageEngine;
+import daos.UniqueSkiers;
 import servlethelpers.*;
 
 /**
  * Our LiftRides servlet that will respond to URLs matching the /liftrides or /liftrides/* pattern.
  * It pulls properties (System.getProperty) from the catalina.properties file in the Tomcat conf folder.
+ * Requests that have to wait on the database are processed asynchronously, with the DAO work
+ * and the response handled by a DAOExecutor instead of the container thread. Writes, single
+ * ride lookups and ride lists each run in their own Bulkhead, so a burst of one can't take the
+ * threads and connections the others need.
+ * Every request's latency is recorded in ServerMetrics, reported through the /metrics endpoint.
+ * With INGEST_LOG set, POSTs are acknowledged once they are durable in a local IngestLog kept in
+ * INGEST_LOG_DIR instead of once they are in the database, and an IngestLogDrainer writes them to
+ * the database behind. Idempotency-Keys starting with IngestLog.KEY_PREFIX are kept for the log.
+ * Lift rides are read and written as JSON by default, or in the compact binary format of
+ * LiftRideBinaryCodec for clients sending it as their Content-Type or asking for it in Accept.
  */
 @WebServlet(name = "LiftRideServlet", urlPatterns = {"/liftrides/*", "/liftrides"},
-            initParams = {@WebInitParam(name = "log4j-properties",
-                                        value = "WEB-INF/log4j.properties")})
+            asyncSupported = true)
 public class LiftRideServlet extends HttpServlet {
-  static Logger log;
+  // matches the width of the requestKey column in the liftrides table
+  private static final int MAX_REQUEST_KEY_LENGTH = 64;
+  private static final String NDJSON = "application/x-ndjson";
+  private static final String KEY_CONFLICT = "Idempotency-Key already used for a different ride";
   private Gson gson;
-  private boolean activeLog;
+  private LiftRideBatchWriter batchWriter;
+  private IngestLog ingestLog;
+  private IngestLogDrainer ingestDrainer;
+  private long writeTimeout;
+  private int maxPageSize;
+  private int maxBatchSize;
+  private LiftRideCache rideCache;
+  private LiftUtilization utilization;
+  private UniqueSkiers uniqueSkiers;
+  private SkierLeaderboard leaderboard;
+  private ResponseCompression compression;
+  private SingleFlight<String, byte[]> skierRides;
+  private String rideCacheControl;
+  private Authenticator authenticator;
+  private DAOExecutor writeExecutor;
+  private DAOExecutor pointReadExecutor;
+  private DAOExecutor scanExecutor;
+  private EndpointMetrics listMetrics;
+  private EndpointMetrics rideMetrics;
+  private EndpointMetrics postMetrics;
+  private EndpointMetrics batchMetrics;
 
   /**
    * Initialization method called upon servlet startup that initializes the servlet fields.
    */
   @Override
   public void init() throws ServletException {
-    PropertyConfigurator.configure("log4j.properties");
-    log = Logger.getLogger(LiftRideServlet.class);
-    gson = new Gson();
-    activeLog = System.getProperty("SERVER_LOG").equals("TRUE");
+    gson = LiftRideCodec.gson();
+    try {
+      // opens our storage now, so a storage that can't be used stops us from starting
+      StorageEngine.getInstance();
+    } catch (ExceptionInInitializerError e) {
+      throw new ServletException("Failed opening storage", e.getCause());
+    }
+    batchWriter = new LiftRideBatchWriter(this::rideCommitted);
+    writeTimeout = ServerProperties.getLong("WRITE_TIMEOUT_MS", 5000);
+    maxPageSize = ServerProperties.getInt("MAX_PAGE_SIZE", 10000);
+    maxBatchSize = ServerProperties.getInt("MAX_BATCH_SIZE", 1000);
+    rideCache = new LiftRideCache();
+    // starts rebuilding the utilization counts right away rather than on the first ride
+    utilization = LiftUtilization.getInstance();
+    try {
+      uniqueSkiers = UniqueSkiers.getInstance();
+    } catch (ExceptionInInitializerError e) {
+      throw new ServletException("Failed opening unique skier sketches", e.getCause());
+    }
+    leaderboard = SkierLeaderboard.getInstance();
+    compression = new ResponseCompression();
+    // identical skier list queries share one read, and its result for SINGLE_FLIGHT_REUSE_MS
+    if (ServerProperties.getBoolean("SINGLE_FLIGHT", true)) {
+      skierRides = new SingleFlight<>("skier_rides",
+              ServerProperties.getLong("SINGLE_FLIGHT_REUSE_MS", 0),
+              ServerProperties.getInt("SINGLE_FLIGHT_MAX_REUSED", 10000));
+    }
+    // a lift ride never changes once it is written
+    rideCacheControl = "public, max-age="
+            + ServerProperties.getLong("RIDE_MAX_AGE_SECS", 365L * 24 * 60 * 60) + ", immutable";
+    authenticator = Authenticator.getInstance();
+    writeExecutor = Bulkhead.WRITES.getExecutor();
+    pointReadExecutor = Bulkhead.POINT_READS.getExecutor();
+    scanExecutor = Bulkhead.SCANS.getExecutor();
+    ServerMetrics metrics = ServerMetrics.getInstance();
+    listMetrics = metrics.endpoint("GET /liftrides");
+    rideMetrics = metrics.endpoint("GET /liftrides/{id}");
+    postMetrics = metrics.endpoint("POST /liftrides");
+    batchMetrics = metrics.endpoint("POST /liftrides/batch");
+    if (ServerProperties.getBoolean("INGEST_LOG", false)) {
+      // acknowledged rides live only in the log until drained, so it can't be somewhere wiped
+      String directory = ServerProperties.getString("INGEST_LOG_DIR", null);
+      if (directory == null) {
+        throw new ServletException("INGEST_LOG_DIR must be set when INGEST_LOG is on");
+      }
+      try {
+        ingestLog = new IngestLog(Paths.get(directory),
+                ServerProperties.getInt("INGEST_LOG_SEGMENT_BYTES", 64 * 1024 * 1024));
+      } catch (IOException e) {
+        throw new ServletException("Failed opening ingest log in " + directory, e);
+      }
+      ingestDrainer = new IngestLogDrainer(ingestLog,
+              ServerProperties.getInt("WRITE_BATCH_SIZE", 100), this::rideCommitted);
+    }
+  }
+
+  /**
+   * Cleanup method called upon servlet shutdown that flushes any lift rides still waiting to
+   * be written. Rides in the ingest log that can't be drained in time are written on the next
+   * start. The unique skier sketches are persisted once everything has been written.
+   */
+  @Override
+  public void destroy() {
+    batchWriter.shutdown();
+    if (ingestLog != null) {
+      ingestLog.close();
+      ingestDrainer.shutdown(writeTimeout);
+    }
+    uniqueSkiers.persist();
   }
 
   /**
@@ -57,6 +170,29 @@ public class LiftRideServlet extends HttpServlet {
     return false;
   }
 
+  /**
+   * Helper function for our doGet and doPost that picks the format of the response body, our
+   * binary format if the client accepts it and JSON otherwise
+   * @param request is the HTTP request whose Accept header is checked
+   * @param response is the HttpServletResponse whose content type is set
+   */
+  private void negotiateFormat(HttpServletRequest request, HttpServletResponse response) {
+    if (LiftRideBinaryCodec.accepts(request.getHeader("Accept"))) {
+      response.setContentType(LiftRideBinaryCodec.CONTENT_TYPE);
+    } else {
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+    }
+  }
+
+  /**
+   * @param response is the HttpServletResponse being written
+   * @return true if the response body is in our binary format
+   */
+  private boolean isBinary(HttpServletResponse response) {
+    return LiftRideBinaryCodec.isBinary(response.getContentType());
+  }
+
   /**
    * Helper function for our doGet and doPost that formulates (mostly error) messages to be returned
    * in the response body
@@ -67,57 +203,351 @@ public class LiftRideServlet extends HttpServlet {
    */
   private void writeMessage(HttpServletResponse response, int code, String msg) throws IOException {
     response.setStatus(code);
-    Message err = new Message(msg);
-    String jsonErr = gson.toJson(err);
-    response.getWriter().write(jsonErr);
+    // messages are always JSON, even to clients of our binary format
+    if (LiftRideBinaryCodec.isBinary(response.getContentType())) {
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+    }
+    // written as bytes since a streamed list may already hold the output stream
+    response.getOutputStream().write(LiftRideCodec.message(msg));
+  }
+
+  /**
+   * Helper function that turns a request away because we are overloaded, telling the client when
+   * to try again
+   * @param response is the HttpServletResponse whose return code and body we are writing
+   * @param limiter is the ConcurrencyLimiter that knows how long the client should wait
+   * @param msg is the string we want entered as the response body
+   * @throws IOException if there is an issue writing to the response body
+   */
+  private void writeBusy(HttpServletResponse response, ConcurrencyLimiter limiter, String msg)
+          throws IOException {
+    response.setHeader("Retry-After", Long.toString(limiter.getRetryAfterSecs()));
+    writeMessage(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, msg);
   }
 
   /**
    * Helper method for doGet that handles querying the database for a list of lift rides for
-   * either a specific skier identified by their ID or all skiers
-   * @param skierID is the ID of the skier whose lift rides we are querying for or null if
-   *                the query is for all skiers
+   * either a specific skier identified by their ID or all skiers. Rides are streamed straight
+   * from the database cursor into the response body, and clients page through large results
+   * with the after (last rideID seen) and limit query parameters. Lists that grow past our
+   * minimum compressed size are compressed as they stream out, see ResponseCompression.
+   * Concurrent requests for the same page of the same skier's rides share one query and one
+   * encoded body, see SingleFlight.
+   * @param request is the HTTP request holding the skier, after, and limit query parameters
    * @param response is the HTTP response that the servlet will return
+   * @param startTime is the System.nanoTime when the request began executing
    * @throws IOException if there was an issue writing to the response to be returned
    */
-  private void querySkierRides(String skierID, HttpServletResponse response) throws IOException {
-    LiftRideDAO liftDAO = new LiftRideDAO();
-    LiftRideList rides;
-    // get all lift rides
-    if (skierID == null) {
-      rides = liftDAO.getAllLiftRides();
-    } else { // get lift rides for a specific skier ID
-      int parsedID;
+  private void querySkierRides(HttpServletRequest request, HttpServletResponse response,
+                               long startTime) throws IOException {
+    String skierParam = request.getParameter("skier");
+    String afterParam = request.getParameter("after");
+    String limitParam = request.getParameter("limit");
+    // null indicates rides for all skiers
+    Integer skierID = null;
+    if (skierParam != null) {
       try {
-        parsedID = Integer.parseInt(skierID);
+        skierID = Integer.parseInt(skierParam);
       } catch (NumberFormatException e) {
         writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "Skier ID invalid format");
         return;
       }
-      rides = liftDAO.getSkierRides(parsedID);
+    }
+    int after;
+    int limit;
+    try {
+      after = afterParam == null ? 0 : Integer.parseInt(afterParam);
+      limit = limitParam == null ? 0 : Integer.parseInt(limitParam);
+    } catch (NumberFormatException e) {
+      writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "Page parameters invalid format");
+      return;
+    }
+    if (after < 0 || (limitParam != null && limit < 1)) {
+      writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "Page parameters invalid format");
+      return;
+    }
+    int pageSize = Math.min(limit, maxPageSize);
+    Integer skier = skierID;
+    int afterID = after;
+
+    String coding = compression.negotiate(request.getHeader("Accept-Encoding"));
+    if (skier != null && skierRides != null) {
+      boolean binary = isBinary(response);
+      // the page and format are part of the key, two requests must want the very same bytes
+      String key = skier + ":" + afterID + ":" + pageSize + (binary ? ":b" : ":j");
+      CompletableFuture<byte[]> body = skierRides.execute(key, skier,
+          () -> loadSkierRides(skier, afterID, pageSize, binary));
+      AsyncContext asyncContext = request.startAsync();
+      asyncContext.setTimeout(0);
+      // the body is written from a container thread, not the DAO thread that completed it
+      body.whenComplete((bytes, error) -> asyncContext.start(() -> {
+        try {
+          writeSkierRides(request, response, coding, bytes, error);
+        } catch (IOException e) {
+          e.printStackTrace();
+        } finally {
+          completeAsync(asyncContext, response, startTime, listMetrics);
+        }
+      }));
+      return;
+    }
+    runAsync(request, response, startTime, listMetrics, scanExecutor, () -> {
+      StorageEngine storage = StorageEngine.getInstance();
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setHeader("Vary", "Accept, Accept-Encoding");
+      // lists big enough to be worth it are compressed as they stream out
+      CompressingOutputStream compressed = coding == null ? null
+              : compression.wrap(response.getOutputStream(), coding,
+                  () -> response.setHeader("Content-Encoding", coding));
+      OutputStream body = compressed == null ? response.getOutputStream() : compressed;
+      LiftRideListWriter listWriter = isBinary(response)
+              ? new LiftRideBinaryWriter(body) : new LiftRideJsonWriter(body);
+      listWriter.beginList();
+      if (storage.streamLiftRides(skier, afterID, pageSize, listWriter::writeRide)) {
+        listWriter.endList();
+        if (compressed != null) {
+          compressed.finish();
+        }
+        return;
+      }
+      if (compressed != null) {
+        compressed.abort();
+      }
+      if (!response.isCommitted()) {
+        // clears any Content-Encoding along with the partial list
+        response.reset();
+        negotiateFormat(request, response);
+        writeMessage(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                "Failed reading from server");
+      }
+      // otherwise the body is left unterminated so the client can tell it was cut short
+    });
+  }
+
+  /**
+   * Helper method for querySkierRides that reads a page of a skier's rides on our scan executor
+   * into an encoded body, to be shared by every request coalesced onto it
+   * @param skierID is the ID of the skier whose rides are read
+   * @param afterID is the rideID the page starts after, 0 to start from the first ride
+   * @param pageSize is the maximum number of rides read, 0 for no limit
+   * @param binary is true to encode the rides in our binary format, false for JSON
+   * @return the future completing with the encoded list, or failing with a
+   *         RejectedExecutionException if we are too busy to read it
+   */
+  private CompletableFuture<byte[]> loadSkierRides(int skierID, int afterID, int pageSize,
+                                                   boolean binary) {
+    ConcurrencyLimiter limiter = scanExecutor.getLimiter();
+    if (!limiter.tryAcquire()) {
+      return CompletableFuture.failedFuture(new RejectedExecutionException("Server busy"));
+    }
+    long admitTime = System.nanoTime();
+    CompletableFuture<byte[]> result = new CompletableFuture<>();
+    boolean queued = scanExecutor.execute(() -> {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      LiftRideListWriter listWriter = binary
+              ? new LiftRideBinaryWriter(body) : new LiftRideJsonWriter(body);
+      byte[] bytes = null;
+      Throwable failure = new IOException("Failed reading from server");
+      try {
+        listWriter.beginList();
+        if (StorageEngine.getInstance().streamLiftRides(skierID, afterID, pageSize,
+                listWriter::writeRide)) {
+          listWriter.endList();
+          bytes = body.toByteArray();
+        }
+      } catch (IOException e) {
+        // can't happen writing to memory, treated like a failed query
+        e.printStackTrace();
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        failure = e;
+      } finally {
+        // every request coalesced onto this read waits on the result, so it must always complete
+        if (bytes != null) {
+          limiter.release(admitTime);
+          result.complete(bytes);
+        } else {
+          limiter.releaseDropped();
+          result.completeExceptionally(failure);
+        }
+      }
+    });
+    if (!queued) {
+      limiter.releaseDropped();
+      result.completeExceptionally(new RejectedExecutionException("Server busy"));
+    }
+    return result;
+  }
+
+  /**
+   * Helper method for querySkierRides that writes a shared page of a skier's rides to one of the
+   * requests waiting on it
+   * @param request is the HTTP request being answered
+   * @param response is the HTTP response that the servlet will return
+   * @param coding is the content coding negotiated for the response, or null for none
+   * @param body is the encoded list of rides, or null if reading it failed
+   * @param error is the reason reading the list failed, or null if it succeeded
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void writeSkierRides(HttpServletRequest request, HttpServletResponse response,
+                               String coding, byte[] body, Throwable error) throws IOException {
+    if (error instanceof RejectedExecutionException) {
+      writeBusy(response, scanExecutor.getLimiter(), "Server busy");
+      return;
+    } else if (error != null) {
+      writeMessage(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+              "Failed reading from server");
+      return;
     }
     response.setStatus(HttpServletResponse.SC_OK);
-    response.getWriter().write(gson.toJson(rides));
+    response.setHeader("Vary", "Accept, Accept-Encoding");
+    if (coding == null) {
+      response.getOutputStream().write(body);
+      return;
+    }
+    CompressingOutputStream compressed = compression.wrap(response.getOutputStream(), coding,
+        () -> response.setHeader("Content-Encoding", coding));
+    compressed.write(body, 0, body.length);
+    compressed.finish();
   }
 
   /**
-   * Helper method for doGet that handles querying the database for the requested rideID
-   * and setting up the returned response
+   * Helper method for doGet that handles looking up the requested rideID and setting up the
+   * returned response. Rides are served from our ride cache right on the container thread, and
+   * only a cache miss is handed to our DAO executor to read through to the database. Rides never
+   * change, so a conditional GET with the ride's ETag gets a 304 without any lookup at all.
+   * @param request is the GET request received by the servlet
    * @param rideID is the integer ID of the lift ride to be queried for
    * @param response is the HTTP response that the servlet will return
+   * @param startTime is the System.nanoTime when the request began executing
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void queryRide(HttpServletRequest request, int rideID, HttpServletResponse response,
+                         long startTime) throws IOException {
+    // a client holding any version of the ride holds the current one, nothing to look up
+    if (ETags.matches(request.getHeader("If-None-Match"), rideETag(rideID, response))) {
+      setRideCaching(rideID, response);
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    LiftRide cached = rideCache.getIfPresent(rideID);
+    if (cached != null) {
+      writeRide(rideID, cached, response);
+      return;
+    }
+    runAsync(request, response, startTime, rideMetrics, pointReadExecutor, () -> {
+      LiftRide ride = rideCache.get(rideID);
+      if (ride == null) {
+        writeMessage(response, HttpServletResponse.SC_NOT_FOUND, "LiftRideId not found");
+      } else {
+        writeRide(rideID, ride, response);
+      }
+    });
+  }
+
+  /**
+   * Helper method for queryRide that builds the ETag of a lift ride. Rides are immutable, so the
+   * ETag only has to tell apart the rides and the formats they are served in.
+   * @param rideID is the integer ID the ride was requested by
+   * @param response is the HTTP response whose format has been negotiated
+   * @return the quoted ETag
+   */
+  private String rideETag(int rideID, HttpServletResponse response) {
+    return isBinary(response) ? "\"r" + rideID + "b\"" : "\"r" + rideID + "\"";
+  }
+
+  /**
+   * Helper method for queryRide that sets the caching headers of a found lift ride
+   * @param rideID is the integer ID the ride was requested by
+   * @param response is the HTTP response that the servlet will return
+   */
+  private void setRideCaching(int rideID, HttpServletResponse response) {
+    response.setHeader("ETag", rideETag(rideID, response));
+    response.setHeader("Cache-Control", rideCacheControl);
+    response.setHeader("Vary", "Accept");
+  }
+
+  /**
+   * Helper method for queryRide that writes a found lift ride to the response
+   * @param rideID is the integer ID the ride was requested by
+   * @param ride is the LiftRide to be returned
+   * @param response is the HTTP response that the servlet will return
    * @throws IOException if there was an issue writing to the response to be returned
    */
-  private void queryRide(int rideID, HttpServletResponse response) throws IOException {
-    LiftRideDAO liftDAO = new LiftRideDAO();
-    LiftRide ride = liftDAO.getLiftRide(rideID);
-    if (ride == null) {
-      writeMessage(response, HttpServletResponse.SC_NOT_FOUND, "LiftRideId not found");
+  private void writeRide(int rideID, LiftRide ride, HttpServletResponse response)
+          throws IOException {
+    setRideCaching(rideID, response);
+    response.setStatus(HttpServletResponse.SC_OK);
+    if (isBinary(response)) {
+      LiftRideBinaryCodec.writeRide(ride, response.getOutputStream());
     } else {
-      response.setStatus(HttpServletResponse.SC_OK);
-      response.getWriter().write(gson.toJson(ride));
+      LiftRideCodec.writeRide(ride, response.getOutputStream());
     }
   }
 
+  /**
+   * Runs the given DB-bound task on the given DAO executor using async processing, so the
+   * container thread goes back to accepting connections while the task waits on the database.
+   * The response is completed from the executor once the task finishes. The request must first be
+   * admitted by the executor's ConcurrencyLimiter, and is answered right away with a 503 if it
+   * isn't or if the executor is saturated. Tasks that answer with a 5xx count as dropped,
+   * shrinking the limit.
+   * @param request is the HTTP request being processed
+   * @param response is the HTTP response that the servlet will return
+   * @param startTime is the System.nanoTime when the request began executing
+   * @param endpoint is the metrics of the endpoint the request is for
+   * @param executor is the DAOExecutor of the Bulkhead the task runs in
+   * @param task is the DB-bound work that writes the response
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void runAsync(HttpServletRequest request, HttpServletResponse response, long startTime,
+                        EndpointMetrics endpoint, DAOExecutor executor, AsyncTask task)
+          throws IOException {
+    ConcurrencyLimiter limiter = executor.getLimiter();
+    if (!limiter.tryAcquire()) {
+      writeBusy(response, limiter, "Server busy");
+      return;
+    }
+    long admitTime = System.nanoTime();
+    AsyncContext asyncContext = request.startAsync();
+    // the DAO work itself bounds how long the request stays open
+    asyncContext.setTimeout(0);
+    boolean queued = executor.execute(() -> {
+      try {
+        task.run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        if (response.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+          limiter.releaseDropped();
+        } else {
+          limiter.release(admitTime);
+        }
+        completeAsync(asyncContext, response, startTime, endpoint);
+      }
+    });
+    if (!queued) {
+      limiter.releaseDropped();
+      writeBusy(response, limiter, "Server busy");
+      completeAsync(asyncContext, response, startTime, endpoint);
+    }
+  }
+
+  /**
+   * Completes an asynchronously processed request and records its latency
+   * @param asyncContext is the async context of the request being completed
+   * @param response is the HTTP response being completed
+   * @param startTime is the System.nanoTime when the request began executing
+   * @param endpoint is the metrics of the endpoint the request is for
+   */
+  private void completeAsync(AsyncContext asyncContext, HttpServletResponse response,
+                             long startTime, EndpointMetrics endpoint) {
+    // must be recorded before completing, the response is recycled afterwards
+    endpoint.recordSince(response.getStatus(), startTime);
+    asyncContext.complete();
+  }
+
   /**
    * This handles the GET requests sent to our servlet. Request responses are either a list
    * of lift rides for a particular resort+skier (via HTTP query) or a particular lift ride.
@@ -128,15 +558,13 @@ public class LiftRideServlet extends HttpServlet {
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
           throws ServletException, IOException {
-    long startTime = System.currentTimeMillis();
-    response.setContentType("application/json");
-    response.setCharacterEncoding("UTF-8");
+    long startTime = System.nanoTime();
+    negotiateFormat(request, response);
     String path = request.getPathInfo();
 
     // corresponds to /liftrides endpoint
     if (path == null || path.isEmpty()) {
-      String queriedSkier = request.getParameter("skier");
-      querySkierRides(queriedSkier, response);
+      querySkierRides(request, response, startTime);
     } else { // /liftrides/{id} endpoint
       // split our path into parts to validate and process
       String[] parts = path.split("/");
@@ -145,71 +573,412 @@ public class LiftRideServlet extends HttpServlet {
         writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "URL or ID invalid format");
       } else {
         // return a specific lift ride
-        queryRide(Integer.parseInt(parts[1]), response);
+        queryRide(request, Integer.parseInt(parts[1]), response, startTime);
       }
     }
-    // always log our latency at the end if configured
-    if (activeLog) {
-      logLatency(startTime, "GET");
+    // always record our latency at the end, async requests record once they complete
+    if (!request.isAsyncStarted()) {
+      (path == null || path.isEmpty() ? listMetrics : rideMetrics)
+              .recordSince(response.getStatus(), startTime);
     }
   }
 
   /**
-   * Handles parsing an authorization HTTP header from our doPost method to ensure that the user is
-   * authenticated prior to any updates being performed
-   * Method heavily inspired by:
-   * https://stackoverflow.com/questions/16000517/how-to-get-password-from-http-basic-authentication
-   * @param authHdr is the HTTP request's full authorization header
-   * @return true if the header contains valid authentication, false otherwise
+   * Helper method for doPost which handles attempting to insert the new LiftRideInput object
+   * into our database. The ride is handed to our group-commit writer and the request goes async
+   * until the batch holding it commits, at which point the response with its real rideID is
+   * completed from our DAO executor. The rideID comes back from the insert itself, including for
+   * a retried POST whose idempotency key matched an earlier ride, which gets a 409 instead if
+   * the earlier ride isn't the one it sent. The writer hands every committed ride to
+   * rideCommitted itself, so a ride committing after our write timeout answered the request is
+   * still cached and counted. The ride must first be admitted by our ConcurrencyLimiter, and a
+   * 503 with a Retry-After is returned right away if it isn't.
+   * @param request is the POST request received by the servlet
+   * @param ride is the LiftRideInput containing the information to insert into the DB
+   * @param response is the HttpServletResponse that will be returned at the end of doPost
+   * @param startTime is the System.nanoTime when the request began executing
+   * @throws IOException if there was an error while writing to the response
    */
-  private boolean authenticate(String authHdr) {
-    // Only use basic authentication
-    if (authHdr != null && authHdr.toLowerCase().startsWith("basic")) {
-      String rawCredentials = authHdr.substring("Basic".length()).trim();
-      String decoded = new String(Base64.getDecoder().decode(rawCredentials), StandardCharsets.UTF_8);
-      String[] credentials = decoded.split(":", 2);
-      return credentials[0].equals(System.getProperty("POST_USR"))
-              && credentials[1].equals(System.getProperty("POST_PWD"));
+  private void databaseWrite(HttpServletRequest request, LiftRideInput ride,
+                             HttpServletResponse response, long startTime) throws IOException {
+    if (ingestLog != null) {
+      logWrite(request, ride, response, startTime);
+      return;
     }
-    return false;
+    ConcurrencyLimiter limiter = writeExecutor.getLimiter();
+    if (!limiter.tryAcquire()) {
+      writeBusy(response, limiter, "Server busy");
+      return;
+    }
+    long admitTime = System.nanoTime();
+    CompletableFuture<Integer> pendingID = batchWriter.submit(ride);
+    // our ingest queue is full, so have the client back off instead of piling on
+    if (pendingID == null) {
+      limiter.releaseDropped();
+      writeBusy(response, limiter, "Server busy");
+      return;
+    }
+    AsyncContext asyncContext = request.startAsync();
+    // our write timeout bounds how long the request stays open
+    asyncContext.setTimeout(0);
+    // the writer still hands a ride committing past our timeout to rideCommitted, only the
+    // response gives up on it
+    pendingID.copy().completeOnTimeout(-1, writeTimeout, TimeUnit.MILLISECONDS).thenAccept(id -> {
+      // the commit latency of the batch holding the ride is what the limit adapts to
+      if (id < 0) {
+        limiter.releaseDropped();
+      } else {
+        limiter.release(admitTime);
+      }
+      Runnable respond = () -> {
+        try {
+          writeCreated(ride, id, response);
+        } catch (IOException e) {
+          e.printStackTrace();
+        } finally {
+          completeAsync(asyncContext, response, startTime, postMetrics);
+        }
+      };
+      // if the executor is saturated, answer from the completing thread so the client hears back
+      if (!writeExecutor.execute(respond)) {
+        respond.run();
+      }
+    });
   }
 
   /**
-   * Helper method for doPost which handles attempting to insert the new LiftRideInput object
-   * into our database
-   * @param ride is the LiftRideInput containing the information to insert into the DB
+   * Helper method for databaseWrite used when our ingest log is on. The ride is appended to the
+   * log and the request goes async until the append is durable, at which point it is answered
+   * with a 202 since its rideID is only known once the drainer writes it to the database.
+   * @param request is the POST request received by the servlet
+   * @param ride is the LiftRideInput to be logged
    * @param response is the HttpServletResponse that will be returned at the end of doPost
+   * @param startTime is the System.nanoTime when the request began executing
    * @throws IOException if there was an error while writing to the response
    */
-  private void databaseWrite(LiftRideInput ride, HttpServletResponse response) throws IOException {
-      LiftRideDAO liftDAO = new LiftRideDAO();
-      int skier = ride.getSkierID();
-      int resort = ride.getResortID();
-      int time = ride.getTime();
-      int lift = ride.getLiftID();
-      // ensure the write succeeded
-      if (liftDAO.createLiftRide(ride)) {
-        // rideID is auto-generated, so look it up
-        int id = liftDAO.getLiftRideId(skier, resort, time, lift);
-        // make sure we found ID
-        if (id < 0) {
-          writeMessage(response, HttpServletResponse.SC_CONFLICT, "Failed writing to server");
+  private void logWrite(HttpServletRequest request, LiftRideInput ride,
+                        HttpServletResponse response, long startTime) throws IOException {
+    CompletableFuture<Long> durable = ingestLog.append(ride);
+    if (durable == null) {
+      writeBusy(response, writeExecutor.getLimiter(), "Server busy");
+      return;
+    }
+    AsyncContext asyncContext = request.startAsync();
+    // our write timeout bounds how long the request stays open
+    asyncContext.setTimeout(0);
+    durable.completeOnTimeout(-1L, writeTimeout, TimeUnit.MILLISECONDS).thenAccept(position -> {
+      try {
+        if (position < 0) {
+          writeBusy(response, writeExecutor.getLimiter(), "Failed writing to server");
         } else {
-          // set up return list
-          LiftRideList returnList = new LiftRideList();
-          returnList.addRide(new LiftRide(id, skier, resort, time, lift));
-          // add return list to response body
-          response.getWriter().write(gson.toJson(returnList));
-          response.setStatus(HttpServletResponse.SC_CREATED);
+          writeMessage(response, HttpServletResponse.SC_ACCEPTED, "Lift ride accepted");
         }
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        completeAsync(asyncContext, response, startTime, postMetrics);
+      }
+    });
+  }
+
+  /**
+   * Helper method for databaseWrite that writes the outcome of an insert to the response
+   * @param ride is the LiftRideInput that was written
+   * @param id is the rideID generated for the ride, or -1 if the write failed
+   * @param response is the HttpServletResponse being returned
+   * @throws IOException if there was an error while writing to the response
+   */
+  private void writeCreated(LiftRideInput ride, int id, HttpServletResponse response)
+          throws IOException {
+    // the write failed or timed out on the database's side, so the client should retry later
+    if (id < 0) {
+      writeBusy(response, writeExecutor.getLimiter(), "Failed writing to server");
+      return;
+    }
+    LiftRide created = storedRide(ride, id);
+    if (created == null) {
+      writeMessage(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+              "Failed reading from server");
+    } else if (!isSameRide(created, ride)) {
+      writeMessage(response, HttpServletResponse.SC_CONFLICT, KEY_CONFLICT);
+    } else {
+      // return it as a list holding only the created ride
+      response.setStatus(HttpServletResponse.SC_CREATED);
+      if (isBinary(response)) {
+        LiftRideBinaryCodec.writeCreated(created, response.getOutputStream());
+      } else {
+        LiftRideCodec.writeCreated(created, response.getOutputStream());
+      }
+    }
+  }
+
+  /**
+   * Called once a lift ride has been committed to the database, by our batch writer, a batch
+   * POST or our ingest log drainer, so the rest of the servlet's state can pick it up. Populates
+   * our ride cache so the GET that normally follows a POST never touches the database,
+   * invalidates the skier's coalesced list queries, and counts the ride towards its lift's
+   * utilization, its resort's unique skiers and its resort's leaderboard.
+   * @param ride is the LiftRideInput that was just written
+   * @param id is the rideID the ride was written under
+   */
+  private void rideCommitted(LiftRideInput ride, int id) {
+    // the skier's next list query must see this ride, not share or reuse an older read
+    if (skierRides != null) {
+      skierRides.invalidate(ride.getSkierID());
+    }
+    // a replayed POST was cached and counted when it was first written
+    if (ride.isDuplicate()) {
+      return;
+    }
+    rideCache.put(storedRide(ride, id));
+    utilization.rideCommitted(ride.getResortID(), ride.getLiftID(), ride.getTime());
+    uniqueSkiers.rideCommitted(ride.getResortID(), ride.getSkierID());
+    leaderboard.rideCommitted(ride.getResortID(), ride.getSkierID());
+  }
+
+  /**
+   * Helper method that finds the ride stored under the rideID a write came back with. A
+   * replayed idempotency key hands back the ride first written under it, which the replayed
+   * body may not match, so for those the stored ride is read back instead of trusting the body.
+   * @param ride is the LiftRideInput that was written
+   * @param id is the rideID the ride was written under
+   * @return the LiftRide stored under the rideID, or null if a replayed ride couldn't be read back
+   */
+  private LiftRide storedRide(LiftRideInput ride, int id) {
+    if (ride.isDuplicate()) {
+      return rideCache.get(id);
+    }
+    return new LiftRide(id, ride.getSkierID(), ride.getResortID(), ride.getLiftID(),
+            ride.getTime());
+  }
+
+  /**
+   * Helper method that checks the ride stored under a rideID is the ride a client sent, which
+   * only differs when an idempotency key was reused for a different ride
+   * @param stored is the LiftRide stored under the rideID
+   * @param ride is the LiftRideInput the client sent
+   * @return true if both hold the same skier, resort, lift and time
+   */
+  private static boolean isSameRide(LiftRide stored, LiftRideInput ride) {
+    return stored.getSkier() == ride.getSkierID() && stored.getResort() == ride.getResortID()
+            && stored.getLiftID() == ride.getLiftID() && stored.getTime() == ride.getTime();
+  }
+
+  /**
+   * Helper method for doPost that handles POST /liftrides/batch. The body is either a JSON array
+   * of lift rides, one lift ride per line with a Content-Type of application/x-ndjson, or a
+   * binary list of lift rides with a Content-Type of application/x-liftride. Every
+   * ride is validated on its own and the valid ones are written together through our DAO, one
+   * JDBC batch and one transaction per shard, on our DAO executor. The response holds a result per
+   * ride, in the order they were sent. An Idempotency-Key on the request makes each ride's key
+   * the request key followed by its index, so a retried batch writes nothing twice.
+   * @param request is the POST request received by the servlet
+   * @param response is the HTTP response that this servlet will return
+   * @param startTime is the System.nanoTime when the request began executing
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void batchWrite(HttpServletRequest request, HttpServletResponse response,
+                          long startTime) throws IOException {
+    String requestKey = request.getHeader("Idempotency-Key");
+    // leave room for the index we add to the key of each ride
+    int maxKeyLength = MAX_REQUEST_KEY_LENGTH - 1 - Integer.toString(maxBatchSize).length();
+    if (requestKey != null && (requestKey.isEmpty() || requestKey.length() > maxKeyLength
+            || IngestLog.isLogKey(requestKey))) {
+      writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid Idempotency-Key");
+      return;
+    }
+    List<LiftRideInput> rides;
+    try {
+      String contentType = request.getContentType();
+      if (LiftRideBinaryCodec.isBinary(contentType)) {
+        rides = LiftRideBinaryCodec.readInputs(request.getInputStream(), maxBatchSize);
+      } else if (contentType != null && contentType.startsWith(NDJSON)) {
+        rides = parseNdjson(request.getReader());
       } else {
-        writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "Failed writing to server");
+        rides = parseJsonArray(request.getReader());
+      }
+    } catch (JsonParseException | IllegalStateException | IOException e) {
+      writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid request body");
+      return;
+    }
+    if (rides == null) {
+      writeMessage(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+              "Batch larger than " + maxBatchSize + " lift rides");
+      return;
+    }
+    // rides that fail validation are left null and reported on their own
+    List<LiftRideInput> valid = new ArrayList<>(rides.size());
+    for (int i = 0; i < rides.size(); i++) {
+      LiftRideInput ride = rides.get(i);
+      if (ride == null || ride.getLiftID() < 1 || ride.getTime() < 1 || ride.getResortID() < 1
+              || ride.getSkierID() < 1) {
+        rides.set(i, null);
+      } else {
+        if (requestKey != null) {
+          ride.setRequestKey(requestKey + ":" + i);
+        }
+        valid.add(ride);
+      }
+    }
+
+    if (ingestLog != null) {
+      batchLogWrite(request, rides, response, startTime);
+      return;
+    }
+    runAsync(request, response, startTime, batchMetrics, writeExecutor, () -> {
+      int[] ids = valid.isEmpty() ? new int[0] : StorageEngine.getInstance().createLiftRides(valid);
+      LiftRideBatchResult result = new LiftRideBatchResult();
+      int next = 0;
+      for (LiftRideInput ride : rides) {
+        if (ride == null) {
+          result.addError(HttpServletResponse.SC_BAD_REQUEST, "Invalid lift ride");
+        } else if (ids[next] < 0) {
+          next++;
+          result.addError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                  "Failed writing to server");
+        } else {
+          rideCommitted(ride, ids[next]);
+          LiftRide created = storedRide(ride, ids[next]);
+          if (created == null) {
+            result.addError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Failed reading from server");
+          } else if (!isSameRide(created, ride)) {
+            result.addError(HttpServletResponse.SC_CONFLICT, KEY_CONFLICT);
+          } else {
+            result.addCreated(ids[next]);
+          }
+          next++;
+        }
+      }
+      writeBatchResult(result, response);
+    });
+  }
+
+  /**
+   * Helper method for batchWrite used when our ingest log is on. Every valid ride is appended to
+   * the log and the request goes async until they are all durable.
+   * @param request is the POST request received by the servlet
+   * @param rides is the list of rides sent, with null in place of every invalid ride
+   * @param response is the HTTP response that this servlet will return
+   * @param startTime is the System.nanoTime when the request began executing
+   */
+  private void batchLogWrite(HttpServletRequest request, List<LiftRideInput> rides,
+                             HttpServletResponse response, long startTime) {
+    List<CompletableFuture<Long>> durable = new ArrayList<>(rides.size());
+    for (LiftRideInput ride : rides) {
+      CompletableFuture<Long> position = ride == null ? null : ingestLog.append(ride);
+      durable.add(position == null ? null
+              : position.completeOnTimeout(-1L, writeTimeout, TimeUnit.MILLISECONDS));
+    }
+    AsyncContext asyncContext = request.startAsync();
+    // our write timeout bounds how long the request stays open
+    asyncContext.setTimeout(0);
+    CompletableFuture.allOf(durable.stream().filter(position -> position != null)
+            .toArray(CompletableFuture[]::new)).thenRun(() -> {
+      LiftRideBatchResult result = new LiftRideBatchResult();
+      for (int i = 0; i < rides.size(); i++) {
+        if (rides.get(i) == null) {
+          result.addError(HttpServletResponse.SC_BAD_REQUEST, "Invalid lift ride");
+        } else if (durable.get(i) == null || durable.get(i).join() < 0) {
+          result.addError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Failed writing to server");
+        } else {
+          result.addAccepted();
+        }
+      }
+      try {
+        writeBatchResult(result, response);
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        completeAsync(asyncContext, response, startTime, batchMetrics);
+      }
+    });
+  }
+
+  /**
+   * Helper method for batchWrite that writes the results of a batch to the response
+   * @param result is the LiftRideBatchResult holding a result per ride
+   * @param response is the HTTP response that this servlet will return
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void writeBatchResult(LiftRideBatchResult result, HttpServletResponse response)
+          throws IOException {
+    response.setStatus(HttpServletResponse.SC_OK);
+    if (isBinary(response)) {
+      LiftRideBinaryCodec.writeBatchResult(result, response.getOutputStream());
+    } else {
+      LiftRideCodec.writeBatchResult(result, response.getOutputStream());
+    }
+  }
+
+  /**
+   * Helper method for batchWrite that reads a JSON array of lift rides one element at a time
+   * @param body is the reader over the request body
+   * @return the list of rides read, or null if there were more than our max batch size
+   * @throws IOException if the body could not be read or is not a JSON array
+   */
+  private List<LiftRideInput> parseJsonArray(BufferedReader body) throws IOException {
+    List<LiftRideInput> rides = new ArrayList<>();
+    JsonReader reader = new JsonReader(body);
+    reader.beginArray();
+    while (reader.hasNext()) {
+      if (rides.size() == maxBatchSize) {
+        return null;
       }
+      rides.add(gson.fromJson(reader, LiftRideInput.class));
+    }
+    reader.endArray();
+    return rides;
   }
 
   /**
-   * This handles the POST requests sent to our servlet. The only valid POST request is to write a
-   * new lift ride for a client.
+   * Helper method for batchWrite that reads newline delimited JSON lift rides one line at a time.
+   * A line that isn't a valid lift ride only fails that ride.
+   * @param body is the reader over the request body
+   * @return the list of rides read with null for every malformed line, or null if there were
+   *         more than our max batch size
+   * @throws IOException if the body could not be read
+   */
+  private List<LiftRideInput> parseNdjson(BufferedReader body) throws IOException {
+    List<LiftRideInput> rides = new ArrayList<>();
+    String line;
+    while ((line = body.readLine()) != null) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      if (rides.size() == maxBatchSize) {
+        return null;
+      }
+      try {
+        rides.add(gson.fromJson(line, LiftRideInput.class));
+      } catch (JsonParseException e) {
+        rides.add(null);
+      }
+    }
+    return rides;
+  }
+
+  /**
+   * Helper method for doPost that reads the lift ride in the request body
+   * @param request is the POST request received by the servlet
+   * @return the LiftRideInput read, or null if the body is empty or not a valid binary lift ride
+   * @throws IOException if a JSON body could not be read
+   */
+  private LiftRideInput readBody(HttpServletRequest request) throws IOException {
+    if (!LiftRideBinaryCodec.isBinary(request.getContentType())) {
+      return gson.fromJson(request.getReader(), LiftRideInput.class);
+    }
+    try {
+      return LiftRideBinaryCodec.readInput(request.getInputStream());
+    } catch (IOException e) {
+      // a binary body cut short or malformed is rejected like any other invalid body
+      return null;
+    }
+  }
+
+  /**
+   * This handles the POST requests sent to our servlet. The only valid POST requests are to write a
+   * new lift ride for a client, or a batch of them to /liftrides/batch.
    * @param request  is the POST request received by the servlet
    * @param response is the HTTP response that this servlet will return
    * @throws IOException if there was an issue writing to the response to be returned
@@ -217,41 +986,39 @@ public class LiftRideServlet extends HttpServlet {
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
           throws ServletException, IOException {
-    long startTime = System.currentTimeMillis();
-    response.setContentType("application/json");
-    response.setCharacterEncoding("UTF-8");
+    long startTime = System.nanoTime();
+    negotiateFormat(request, response);
     String path = request.getPathInfo();
-    // must be /liftrides for POST
-    if (path != null) {
+    boolean batch = "/batch".equals(path);
+    // must be /liftrides or /liftrides/batch for POST
+    if (path != null && !batch) {
       writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "URL or ID invalid format");
-    } else if (!authenticate(request.getHeader("Authorization"))) { // POSTs must authenticate
+    } else if (!authenticator.authenticate(request.getHeader("Authorization"))) {
+      // POSTs must authenticate, with Basic credentials or a token from /token
       writeMessage(response, HttpServletResponse.SC_UNAUTHORIZED, "Could not authenticate user");
+    } else if (batch) {
+      batchWrite(request, response, startTime);
     } else {
       // parse our request body for lift ride info
-      LiftRideInput body = gson.fromJson(request.getReader(), LiftRideInput.class);
+      LiftRideInput body = readBody(request);
+      // retried POSTs may carry the same optional idempotency key to avoid duplicate rides
+      String requestKey = request.getHeader("Idempotency-Key");
       // only positive integers allowed
       if (body == null || body.getLiftID() < 1 || body.getTime() < 1 || body.getResortID() < 1
               || body.getSkierID() < 1) {
         writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid request body");
+      } else if (requestKey != null && (requestKey.isEmpty()
+              || requestKey.length() > MAX_REQUEST_KEY_LENGTH
+              || IngestLog.isLogKey(requestKey))) {
+        writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid Idempotency-Key");
       } else { // attempt to update DB
-        databaseWrite(body, response);
+        body.setRequestKey(requestKey);
+        databaseWrite(request, body, response, startTime);
       }
     }
-    // always log our latency at the end if configured
-    if (activeLog) {
-      logLatency(startTime, "POST");
+    // always record our latency at the end, async requests record once they complete
+    if (!request.isAsyncStarted()) {
+      (batch ? batchMetrics : postMetrics).recordSince(response.getStatus(), startTime);
     }
   }
-
-  /**
-   * Updates our log with the total time (in milliseconds) it took for a particular method to
-   * finish the request
-   * @param startTime is the time (in ms) the method began executing
-   * @param operation is the type of operation performed by the servlet (i.e. GET or POST)
-   */
-  private void logLatency(long startTime, String operation) {
-    long endTime = System.currentTimeMillis();
-    long responseTime = endTime - startTime;
-    log.info(operation + " " + responseTime);
-  }
 }
@@ -0,0 +1,44 @@
+package servlets;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import servlethelpers.ServerMetrics;
+
+/**
+ * Our metrics servlet that will respond to URLs matching the /metrics pattern. It reports the
+ * latency percentiles, throughput, and error rates recorded by our other servlets, along with
+ * every other metric held by ServerMetrics. The report is JSON by default, or the Prometheus text
+ * format if requested with ?format=prometheus or an Accept header of text/plain.
+ */
+@WebServlet(name = "MetricsServlet", urlPatterns = {"/metrics"})
+public class MetricsServlet extends HttpServlet {
+
+  /**
+   * This handles the GET requests sent to our servlet, returning our current metrics
+   * @param request is the GET request received by the servlet
+   * @param response is the HTTP response that this servlet will return
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+          throws ServletException, IOException {
+    String format = request.getParameter("format");
+    String accept = request.getHeader("Accept");
+    boolean prometheus = "prometheus".equals(format)
+            || (format == null && accept != null && accept.startsWith("text/plain"));
+    response.setCharacterEncoding("UTF-8");
+    response.setStatus(HttpServletResponse.SC_OK);
+    if (prometheus) {
+      response.setContentType("text/plain; version=0.0.4");
+      ServerMetrics.getInstance().writePrometheus(response.getWriter());
+    } else {
+      response.setContentType("application/json");
+      ServerMetrics.getInstance().writeJson(response.getWriter());
+    }
+  }
+}
@@ -3,31 +3,75 @@ package servlets;
 import com.google.gson.Gson;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
 import java.util.stream.Collectors;
+import javax.servlet.AsyncContext;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.*;
 import javax.servlet.ServletException;
 
-import daos.ResortDAO;
+import daos.Bulkhead;
+import daos.ConcurrencyLimiter;
+import daos.DAOExecutor;
+import daos.LiftUtilization;
+import daos.ResortCatalog;
+import daos.SkierLeaderboard;
+import daos.UniqueSkiers;
 import servlethelpers.*;
 
 /**
- * Our Resort servlet that will respond to URLs matching the /resorts/* pattern
+ * Our Resort servlet that will respond to URLs matching the /resorts/* pattern.
+ * Resorts are served from the in-memory ResortCatalog, and requests only go async on the scan
+ * Bulkhead's DAOExecutor when the catalog still has to be loaded from the database.
+ * Successful GETs carry an ETag and Cache-Control header, and a GET whose If-None-Match already
+ * holds the current ETag is answered with a 304 from memory.
+ * GET /resorts/{id}/utilization reports the rides per lift and time bucket counted by
+ * LiftUtilization, optionally for a single lift with ?liftID= and with the ?top= busiest lifts.
+ * GET /resorts/{id}/seasons/{season}/skiers estimates the distinct skiers of a season (or of one
+ * of its days, with ?day=YYYY-MM-DD) from the sketches kept by UniqueSkiers.
+ * GET /resorts/{id}/leaderboard returns the ?top= skiers with the most rides, from the resort's
+ * SkierLeaderboard.
+ * Every request's latency is recorded in ServerMetrics, reported through the /metrics endpoint.
  */
-@WebServlet(name = "ResortServlet", urlPatterns = {"/resorts", "/resorts/*"})
+@WebServlet(name = "ResortServlet", urlPatterns = {"/resorts", "/resorts/*"},
+            asyncSupported = true)
 public class ResortServlet extends HttpServlet {
   private final Gson gson = new Gson();
+  // 2021 is the only valid season, so its body never changes and is encoded once
+  private final SeasonList validSeasons = seasonList("2021");
+  private final byte[] seasonsBody = gson.toJson(validSeasons).getBytes(StandardCharsets.UTF_8);
+  private final String seasonsETag = ETags.of(seasonsBody);
+  // resorts change rarely, but clients should still check back with their ETag every so often
+  private final String cacheControl =
+          "public, max-age=" + ServerProperties.getInt("RESORT_MAX_AGE_SECS", 60);
+  private final EndpointMetrics listMetrics = ServerMetrics.getInstance().endpoint("GET /resorts");
+  private final EndpointMetrics seasonsMetrics =
+          ServerMetrics.getInstance().endpoint("GET /resorts/{id}/seasons");
+  private final EndpointMetrics postMetrics =
+          ServerMetrics.getInstance().endpoint("POST /resorts/{id}/seasons");
+  private final EndpointMetrics utilizationMetrics =
+          ServerMetrics.getInstance().endpoint("GET /resorts/{id}/utilization");
+  private final EndpointMetrics skiersMetrics =
+          ServerMetrics.getInstance().endpoint("GET /resorts/{id}/seasons/{season}/skiers");
+  private final EndpointMetrics leaderboardMetrics =
+          ServerMetrics.getInstance().endpoint("GET /resorts/{id}/leaderboard");
+  private final int topSkiers = ServerProperties.getInt("LEADERBOARD_TOP", 10);
+  private final int topLifts = ServerProperties.getInt("UTILIZATION_TOP_LIFTS", 10);
 
   /**
    * Internal helper function to determine if the given URL is of superficial valid form for
    * further processing.
    * @param parts is the various parts of the URL normally separated by "/"
+   * @param resource is the String name expected after the resortID (e.g. seasons)
    * @return true if the URL is of a valid form, false otherwise
    */
-  private boolean isValid(String[] parts) {
-    // this is our /resorts/{resortID}/seasons path pattern
+  private boolean isValid(String[] parts, String resource) {
+    // this is our /resorts/{resortID}/{resource} path pattern
     if (parts.length == 3) {
-      if (!parts[0].equals("") || !parts[2].equals("seasons")) {
+      if (!parts[0].equals("") || !parts[2].equals(resource)) {
         return false;
       }
       // resortID must be an integer to match API
@@ -52,9 +96,82 @@ public class ResortServlet extends HttpServlet {
    */
   private void writeMessage(HttpServletResponse response, int code, String msg) throws IOException {
     response.setStatus(code);
-    Message err = new Message(msg);
-    String jsonErr = gson.toJson(err);
-    response.getWriter().write(jsonErr);
+    response.getOutputStream().write(LiftRideCodec.message(msg));
+  }
+
+  /**
+   * Helper method that builds the list of valid seasons, returned by GET /resorts/{id}/seasons
+   * @param seasons are the String years of the valid seasons
+   * @return the SeasonList holding them
+   */
+  private static SeasonList seasonList(String... seasons) {
+    SeasonList list = new SeasonList();
+    for (String season : seasons) {
+      list.addSeason(season);
+    }
+    return list;
+  }
+
+  /**
+   * Runs the given DB-bound task on the scan Bulkhead's DAO executor using async processing, so
+   * the container thread goes back to accepting connections while the task waits on the database.
+   * The response is completed from the executor once the task finishes, or right away with a 503
+   * if the DAO executor's ConcurrencyLimiter doesn't admit it or the executor is saturated.
+   * @param request is the HTTP request being processed
+   * @param response is the HTTP response that this servlet will return
+   * @param startTime is the System.nanoTime when the request began executing
+   * @param endpoint is the metrics of the endpoint the request is for
+   * @param task is the DB-bound work that writes the response
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void runAsync(HttpServletRequest request, HttpServletResponse response, long startTime,
+                        EndpointMetrics endpoint, AsyncTask task) throws IOException {
+    DAOExecutor daoExecutor = Bulkhead.SCANS.getExecutor();
+    ConcurrencyLimiter limiter = daoExecutor.getLimiter();
+    if (!limiter.tryAcquire()) {
+      writeBusy(response, limiter);
+      endpoint.recordSince(response.getStatus(), startTime);
+      return;
+    }
+    long admitTime = System.nanoTime();
+    AsyncContext asyncContext = request.startAsync();
+    // the DAO work itself bounds how long the request stays open
+    asyncContext.setTimeout(0);
+    boolean queued = daoExecutor.execute(() -> {
+      try {
+        task.run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        if (response.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+          limiter.releaseDropped();
+        } else {
+          limiter.release(admitTime);
+        }
+        // must be recorded before completing, the response is recycled afterwards
+        endpoint.recordSince(response.getStatus(), startTime);
+        asyncContext.complete();
+      }
+    });
+    if (!queued) {
+      limiter.releaseDropped();
+      writeBusy(response, limiter);
+      endpoint.recordSince(response.getStatus(), startTime);
+      asyncContext.complete();
+    }
+  }
+
+  /**
+   * Helper function that turns a request away because we are overloaded, telling the client when
+   * to try again
+   * @param response is the HttpServletResponse whose return code and body we are writing
+   * @param limiter is the ConcurrencyLimiter that knows how long the client should wait
+   * @throws IOException if there is an issue writing to the response body
+   */
+  private void writeBusy(HttpServletResponse response, ConcurrencyLimiter limiter)
+          throws IOException {
+    response.setHeader("Retry-After", Long.toString(limiter.getRetryAfterSecs()));
+    writeMessage(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server busy");
   }
 
   /**
@@ -67,38 +184,197 @@ public class ResortServlet extends HttpServlet {
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
           throws ServletException, IOException {
+    long startTime = System.nanoTime();
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
+    String path = request.getPathInfo();
+    EndpointMetrics endpoint = path == null ? listMetrics
+            : path.endsWith("/utilization") ? utilizationMetrics
+            : path.endsWith("/skiers") ? skiersMetrics
+            : path.endsWith("/leaderboard") ? leaderboardMetrics : seasonsMetrics;
+    // the catalog only touches the database if it has never loaded, so only then is the
+    // request moved off of the container thread
+    if (ResortCatalog.getInstance().isLoaded()) {
+      handleGet(request, response);
+      endpoint.recordSince(response.getStatus(), startTime);
+    } else {
+      runAsync(request, response, startTime, endpoint, () -> handleGet(request, response));
+    }
+  }
 
-    // our resorts
-    ResortList resorts = new ResortDAO().getResortList();
-    SeasonList validSeasons = new SeasonList();
-    validSeasons.addSeason("2021");
-
+  /**
+   * Helper method for doGet that does the actual work of answering a GET request once we know
+   * which thread it is running on.
+   * @param request is the GET request received by the servlet
+   * @param response is the HTTP response that this servlet will return
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void handleGet(HttpServletRequest request, HttpServletResponse response)
+          throws IOException {
+    // our resorts, served from the in-memory catalog
+    ResortCatalog.Snapshot catalog = ResortCatalog.getInstance().getSnapshot();
+    if (catalog == null) {
+      writeMessage(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+              "Failed reading from server");
+      return;
+    }
     String path = request.getPathInfo();
     // this means that the /resorts endpoint given
-    // return list of resorts
+    // return list of resorts, already serialized by the catalog
     if (path == null) {
-      response.setStatus(HttpServletResponse.SC_OK);
-      response.getWriter().write(gson.toJson(resorts));
+      writeCacheable(request, response, catalog.getETag(), catalog.getJson());
       return;
     }
 
     // split our path into parts to validate and process
     String[] parts = path.split("/");
+    boolean utilization = parts.length == 3 && parts[2].equals("utilization");
+    boolean leaderboard = parts.length == 3 && parts[2].equals("leaderboard");
+    // /resorts/{resortID}/seasons/{season}/skiers, validated like its seasons path
+    boolean skiers = parts.length == 5 && parts[4].equals("skiers");
     // first ensure basic validity
-    if (!isValid(parts)) {
+    if (!isValid(skiers ? Arrays.copyOf(parts, 3) : parts,
+            utilization ? "utilization" : leaderboard ? "leaderboard" : "seasons")) {
       writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "URL or Resort ID invalid");
       return;
     }
      int id = Integer.parseInt(parts[1]);
-     if (!resorts.resortExists(id)) {
+     if (!catalog.getResorts().resortExists(id)) {
        writeMessage(response, HttpServletResponse.SC_NOT_FOUND, "Resort not found");
        return;
      }
+     if (utilization) {
+       writeUtilization(request, response, id);
+       return;
+     }
+     if (skiers) {
+       writeUniqueSkiers(request, response, id, parts[3]);
+       return;
+     }
+     if (leaderboard) {
+       writeLeaderboard(request, response, id);
+       return;
+     }
      // otherwise we've found our resort and return the only valid season of 2021
-     response.setStatus(HttpServletResponse.SC_OK);
-     response.getWriter().write(gson.toJson(validSeasons));
+     writeCacheable(request, response, seasonsETag, seasonsBody);
+  }
+
+  /**
+   * Helper method for handleGet that answers GET /resorts/{id}/utilization from the counts kept
+   * in memory by LiftUtilization, without touching the database
+   * @param request is the GET request received by the servlet
+   * @param response is the HTTP response that this servlet will return
+   * @param resortID is the integer ID of the resort being reported on
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void writeUtilization(HttpServletRequest request, HttpServletResponse response,
+                                int resortID) throws IOException {
+    Integer liftID = null;
+    int top = topLifts;
+    try {
+      if (request.getParameter("liftID") != null) {
+        liftID = Integer.parseInt(request.getParameter("liftID"));
+      }
+      if (request.getParameter("top") != null) {
+        top = Integer.parseInt(request.getParameter("top"));
+      }
+    } catch (NumberFormatException e) {
+      liftID = -1;
+    }
+    if ((liftID != null && liftID < 1) || top < 0) {
+      writeMessage(response, HttpServletResponse.SC_BAD_REQUEST,
+              "Query parameters invalid format");
+      return;
+    }
+    // the counts change with every ride, so they are never cached
+    response.setHeader("Cache-Control", "no-cache");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.getOutputStream().write(gson.toJson(LiftUtilization.getInstance()
+            .report(resortID, liftID, top)).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Helper method for handleGet that answers GET /resorts/{id}/seasons/{season}/skiers from the
+   * sketches kept in memory by UniqueSkiers, without touching the database
+   * @param request is the GET request received by the servlet
+   * @param response is the HTTP response that this servlet will return
+   * @param resortID is the integer ID of the resort being counted
+   * @param season is the String year of the season being counted
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void writeUniqueSkiers(HttpServletRequest request, HttpServletResponse response,
+                                 int resortID, String season) throws IOException {
+    if (!validSeasons.getSeasons().contains(season)) {
+      writeMessage(response, HttpServletResponse.SC_NOT_FOUND, "Season not found");
+      return;
+    }
+    LocalDate day = null;
+    if (request.getParameter("day") != null) {
+      try {
+        day = LocalDate.parse(request.getParameter("day"));
+      } catch (DateTimeParseException e) {
+        writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "Day invalid format");
+        return;
+      }
+    }
+    long count = UniqueSkiers.getInstance().count(resortID, season, day);
+    // the counts change with every ride, so they are never cached
+    response.setHeader("Cache-Control", "no-cache");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.getOutputStream().write(gson.toJson(new UniqueSkierCount(resortID, season,
+            day == null ? null : day.toString(), count)).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Helper method for handleGet that answers GET /resorts/{id}/leaderboard from the sketches
+   * kept in memory by SkierLeaderboard, without touching the database
+   * @param request is the GET request received by the servlet
+   * @param response is the HTTP response that this servlet will return
+   * @param resortID is the integer ID of the resort whose leaderboard is returned
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void writeLeaderboard(HttpServletRequest request, HttpServletResponse response,
+                                int resortID) throws IOException {
+    SkierLeaderboard leaderboard = SkierLeaderboard.getInstance();
+    int top = topSkiers;
+    try {
+      if (request.getParameter("top") != null) {
+        top = Integer.parseInt(request.getParameter("top"));
+      }
+    } catch (NumberFormatException e) {
+      top = -1;
+    }
+    if (top < 0 || top > leaderboard.getSize()) {
+      writeMessage(response, HttpServletResponse.SC_BAD_REQUEST,
+              "Query parameters invalid format");
+      return;
+    }
+    // the leaderboard changes with every ride, so it is never cached
+    response.setHeader("Cache-Control", "no-cache");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.getOutputStream().write(gson.toJson(leaderboard.top(resortID, top))
+            .getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Helper method for handleGet that writes a successful response along with its ETag and
+   * caching headers, or just a 304 if the client already holds the same version
+   * @param request is the GET request received by the servlet
+   * @param response is the HTTP response that this servlet will return
+   * @param etag is the quoted ETag of the body
+   * @param body is the encoded response body
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void writeCacheable(HttpServletRequest request, HttpServletResponse response,
+                              String etag, byte[] body) throws IOException {
+    response.setHeader("ETag", etag);
+    response.setHeader("Cache-Control", cacheControl);
+    if (ETags.matches(request.getHeader("If-None-Match"), etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.getOutputStream().write(body);
   }
 
   /**
@@ -133,8 +409,27 @@ public class ResortServlet extends HttpServlet {
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
           throws ServletException, IOException {
+    long startTime = System.nanoTime();
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
+    // same as doGet, only go async if the catalog still has to be loaded from the database
+    if (ResortCatalog.getInstance().isLoaded()) {
+      handlePost(request, response);
+      postMetrics.recordSince(response.getStatus(), startTime);
+    } else {
+      runAsync(request, response, startTime, postMetrics, () -> handlePost(request, response));
+    }
+  }
+
+  /**
+   * Helper method for doPost that does the actual work of answering a POST request once we know
+   * which thread it is running on.
+   * @param request is the POST request received by the servlet
+   * @param response is the HTTP response that this servlet will return
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void handlePost(HttpServletRequest request, HttpServletResponse response)
+          throws IOException {
     String path = request.getPathInfo();
     // must have a full path
     if (path == null || path.isEmpty()) {
@@ -145,13 +440,18 @@ public class ResortServlet extends HttpServlet {
     String[] parts = path.split("/");
 
     // first ensure basic validity
-    if (!isValid(parts)) {
+    if (!isValid(parts, "seasons")) {
       writeMessage(response, HttpServletResponse.SC_BAD_REQUEST, "URL or Resort ID invalid");
       return;
     }
 
     // our resorts
-    ResortList resorts = new ResortDAO().getResortList();
+    ResortList resorts = ResortCatalog.getInstance().getResorts();
+    if (resorts == null) {
+      writeMessage(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+              "Failed reading from server");
+      return;
+    }
     SeasonList validSeasons = new SeasonList();
     validSeasons.addSeason("2021");
 
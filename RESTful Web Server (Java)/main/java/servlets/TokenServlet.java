@@ -0,0 +1,72 @@
+package servlets;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import servlethelpers.AuthToken;
+import servlethelpers.Authenticator;
+import servlethelpers.LiftRideCodec;
+
+/**
+ * Our token servlet that will respond to URLs matching the /token pattern. A client POSTs its
+ * Basic credentials once and gets back a short-lived bearer token it can send on its following
+ * POSTs instead, which our servlets verify without decoding or comparing any credentials.
+ * Tokens are only issued when the server is started with AUTH_TOKEN_SECRET set.
+ */
+@WebServlet(name = "TokenServlet", urlPatterns = {"/token"})
+public class TokenServlet extends HttpServlet {
+  private Gson gson;
+  private Authenticator authenticator;
+
+  /**
+   * Initialization method called upon servlet startup that initializes the servlet fields.
+   */
+  @Override
+  public void init() throws ServletException {
+    gson = LiftRideCodec.gson();
+    authenticator = Authenticator.getInstance();
+  }
+
+  /**
+   * This handles the POST requests sent to our servlet, issuing a token to clients sending valid
+   * Basic credentials
+   * @param request is the POST request received by the servlet
+   * @param response is the HTTP response that this servlet will return
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response)
+          throws ServletException, IOException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    // tokens can't be used to get fresh tokens, so a leaked one can't outlive its expiry
+    if (!authenticator.tokensEnabled()) {
+      writeMessage(response, HttpServletResponse.SC_NOT_FOUND, "Token authentication is disabled");
+    } else if (!authenticator.authenticateBasic(request.getHeader("Authorization"))) {
+      writeMessage(response, HttpServletResponse.SC_UNAUTHORIZED, "Could not authenticate user");
+    } else {
+      // tokens are credentials, so no cache along the way may keep one
+      response.setHeader("Cache-Control", "no-store");
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.getWriter().write(gson.toJson(new AuthToken(authenticator.issueToken(),
+              authenticator.getTokenTtlSecs())));
+    }
+  }
+
+  /**
+   * Helper method for writing a response message for our response
+   * @param response is the HTTP response that this servlet will return
+   * @param code is the HTTP status code for our response
+   * @param msg is the String message to be written in the response body
+   * @throws IOException if there was an issue writing to the response to be returned
+   */
+  private void writeMessage(HttpServletResponse response, int code, String msg) throws IOException {
+    response.setStatus(code);
+    response.getOutputStream().write(LiftRideCodec.message(msg));
+  }
+}
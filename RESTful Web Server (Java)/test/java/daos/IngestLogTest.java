@@ -0,0 +1,252 @@
+package daos;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import servlethelpers.LiftRideInput;
+
+/**
+ * Checks that an IngestLog gives back every durable ride after a restart, stops at records torn
+ * by a crash, resumes from its checkpoint and drops the segments behind it, all against a
+ * temporary directory.
+ */
+public class IngestLogTest {
+  // the size of a record holding a ride without a key
+  private static final int RECORD_BYTES = 26;
+  private final List<IngestLog> opened = new ArrayList<>();
+  @TempDir
+  Path directory;
+
+  /**
+   * Stops the sync thread of every log a test opened
+   */
+  @AfterEach
+  void closeLogs() {
+    for (IngestLog log : opened) {
+      log.close();
+    }
+  }
+
+  /**
+   * Writes rides, reopens the log as a restart would, and reads them all back
+   * @throws Exception if the log could not be written or reopened
+   */
+  @Test
+  void everyDurableRideIsReadBackAfterARestart() throws Exception {
+    IngestLog log = open(1024);
+    LiftRideInput keyed = ride(3);
+    keyed.setRequestKey("client-key");
+    append(log, ride(1), ride(2), keyed);
+    log.close();
+
+    IngestLog reopened = open(1024);
+    List<LiftRideInput> rides = readAll(reopened, reopened.readCheckpoint());
+    assertEquals(3, rides.size());
+    for (int i = 0; i < rides.size(); i++) {
+      assertSameRide(ride(i + 1), rides.get(i));
+    }
+    assertNull(rides.get(0).getRequestKey());
+    assertEquals("client-key", rides.get(2).getRequestKey());
+
+    // new rides go to a fresh segment, after the recovered ones
+    append(reopened, ride(4));
+    rides = readAll(reopened, reopened.readCheckpoint());
+    assertEquals(4, rides.size());
+    assertSameRide(ride(4), rides.get(3));
+    assertEquals(2, reopened.getSegmentCount());
+  }
+
+  /**
+   * Corrupts the middle record of a segment the way a crash mid-write would
+   * @throws Exception if the log could not be written or reopened
+   */
+  @Test
+  void aTornRecordEndsItsSegment() throws Exception {
+    IngestLog log = open(1024);
+    append(log, ride(1), ride(2), ride(3));
+    log.close();
+    // the second record's payload never fully made it to disk
+    try (RandomAccessFile file = new RandomAccessFile(onlySegment().toFile(), "rw")) {
+      file.seek(2 * RECORD_BYTES - 4);
+      file.writeInt(0);
+    }
+
+    IngestLog reopened = open(1024);
+    append(reopened, ride(4));
+    List<LiftRideInput> rides = readAll(reopened, reopened.readCheckpoint());
+    assertEquals(2, rides.size());
+    assertSameRide(ride(1), rides.get(0));
+    assertSameRide(ride(4), rides.get(1));
+  }
+
+  /**
+   * Cuts a segment off part way through a record, as a crash before the file was fully
+   * written would
+   * @throws Exception if the log could not be written or reopened
+   */
+  @Test
+  void aPartialRecordEndsItsSegment() throws Exception {
+    IngestLog log = open(1024);
+    append(log, ride(1), ride(2));
+    log.close();
+    try (RandomAccessFile file = new RandomAccessFile(onlySegment().toFile(), "rw")) {
+      file.setLength(RECORD_BYTES + RECORD_BYTES / 2);
+    }
+
+    IngestLog reopened = open(1024);
+    List<LiftRideInput> rides = readAll(reopened, reopened.readCheckpoint());
+    assertEquals(1, rides.size());
+    assertSameRide(ride(1), rides.get(0));
+  }
+
+  /**
+   * Checkpoints part way through a log spanning several segments and restarts from there
+   * @throws Exception if the log could not be written, checkpointed or reopened
+   */
+  @Test
+  void aRestartResumesFromTheCheckpoint() throws Exception {
+    // two records fit in each segment
+    IngestLog log = open(2 * RECORD_BYTES);
+    append(log, ride(1), ride(2), ride(3), ride(4), ride(5));
+    assertEquals(3, log.getSegmentCount());
+    long position = log.readCheckpoint();
+    for (int i = 0; i < 3; i++) {
+      position = log.read(position).getNext();
+    }
+    // the third ride starts the second segment, so the first one is all behind the checkpoint
+    log.checkpoint(position);
+    assertEquals(2, log.getSegmentCount());
+    assertEquals(2, countSegmentFiles());
+    log.close();
+
+    IngestLog reopened = open(2 * RECORD_BYTES);
+    assertEquals(position, reopened.readCheckpoint());
+    List<LiftRideInput> rides = readAll(reopened, reopened.readCheckpoint());
+    assertEquals(2, rides.size());
+    assertSameRide(ride(4), rides.get(0));
+    assertSameRide(ride(5), rides.get(1));
+
+    // moving the checkpoint into the newest segment drops every older one
+    reopened.checkpoint(reopened.getSynced());
+    assertEquals(1, reopened.getSegmentCount());
+    assertEquals(1, countSegmentFiles());
+    assertNull(reopened.read(reopened.readCheckpoint()));
+  }
+
+  /**
+   * Checks the keys made for keyless records stay the same across restarts of a log and differ
+   * between logs, as a log started over in a wiped directory is a different log
+   * @throws Exception if a log could not be opened
+   */
+  @Test
+  void keysSurviveRestartsButNotAWipedDirectory() throws Exception {
+    IngestLog log = open(1024);
+    String key = log.keyOf(0);
+    log.close();
+    assertEquals(key, open(1024).keyOf(0));
+    assertTrue(IngestLog.isLogKey(key));
+    assertTrue(key.length() <= 64, "longer than the requestKey column");
+
+    IngestLog other = new IngestLog(directory.resolve("wiped"), 1024);
+    opened.add(other);
+    assertNotEquals(key, other.keyOf(0));
+    assertFalse(IngestLog.isLogKey("wal-0-16"));
+  }
+
+  /**
+   * @param segmentBytes is the size of each segment file
+   * @return a log opened in our directory, closed after the test
+   * @throws IOException if the log could not be opened
+   */
+  private IngestLog open(int segmentBytes) throws IOException {
+    IngestLog log = new IngestLog(directory, segmentBytes);
+    opened.add(log);
+    return log;
+  }
+
+  /**
+   * Appends rides to a log and waits for them to be durable
+   * @param log is the log being appended to
+   * @param rides are the rides to append, in order
+   * @throws Exception if a ride did not become durable
+   */
+  private static void append(IngestLog log, LiftRideInput... rides) throws Exception {
+    for (LiftRideInput ride : rides) {
+      CompletableFuture<Long> durable = log.append(ride);
+      assertNotNull(durable, "append refused");
+      durable.get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * @param log is the log being read
+   * @param position is the position to start reading from
+   * @return every ride read from the position on, in order
+   */
+  private static List<LiftRideInput> readAll(IngestLog log, long position) {
+    List<LiftRideInput> rides = new ArrayList<>();
+    IngestLog.Entry entry;
+    while ((entry = log.read(position)) != null) {
+      rides.add(entry.getRide());
+      position = entry.getNext();
+    }
+    return rides;
+  }
+
+  /**
+   * @param n is a number telling rides apart
+   * @return the nth ride of a test
+   */
+  private static LiftRideInput ride(int n) {
+    return new LiftRideInput(n, 1 + n % 5, 1 + n % 10, 10 * n);
+  }
+
+  /**
+   * Checks two rides hold the same skier, resort, lift and time
+   * @param expected is the ride that was appended
+   * @param actual is the ride read back
+   */
+  private static void assertSameRide(LiftRideInput expected, LiftRideInput actual) {
+    assertEquals(expected.getSkierID(), actual.getSkierID());
+    assertEquals(expected.getResortID(), actual.getResortID());
+    assertEquals(expected.getLiftID(), actual.getLiftID());
+    assertEquals(expected.getTime(), actual.getTime());
+  }
+
+  /**
+   * @return the path of the only segment file in our directory
+   * @throws IOException if the directory could not be listed
+   */
+  private Path onlySegment() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.toString().endsWith(".log")).findFirst().get();
+    }
+  }
+
+  /**
+   * @return the number of segment files in our directory
+   * @throws IOException if the directory could not be listed
+   */
+  private long countSegmentFiles() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.toString().endsWith(".log")).count();
+    }
+  }
+}
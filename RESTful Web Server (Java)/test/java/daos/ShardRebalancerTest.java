@@ -0,0 +1,268 @@
+package daos;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import servlethelpers.LiftRide;
+import servlethelpers.LiftRideInput;
+
+/**
+ * Checks that every rideID handed out keeps naming the same ride while the ShardRebalancer moves
+ * skiers from 1 shard to 2 and back again, using two embedded MariaDB databases as our shards.
+ * Run with: mvn -Pdb-tests test
+ */
+@Tag("db")
+public class ShardRebalancerTest {
+  private static final int SKIERS = 50;
+  private static final int RIDES_PER_SKIER = 4;
+  private static final DB[] databases = new DB[2];
+  private final LiftRideDAO liftDAO = new LiftRideDAO();
+  // every ride written, by the rideID it was handed out under
+  private final Map<Integer, LiftRide> written = new HashMap<>();
+
+  /**
+   * Starts our two databases, loads the schema into both and points shards 0 and 1 at them
+   * @throws Exception if a database failed to start
+   */
+  @BeforeAll
+  static void startDatabases() throws Exception {
+    String schema = new String(Files.readAllBytes(Paths.get("main", "upicDB.txt")),
+            StandardCharsets.UTF_8);
+    for (int i = 0; i < databases.length; i++) {
+      DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+      // picks a free port
+      config.setPort(0);
+      databases[i] = DB.newEmbeddedDB(config.build());
+      databases[i].start();
+      databases[i].createDB("upic");
+      databases[i].run(schema, "root", null, "upic");
+      String prefix = i == 0 ? "" : "SHARD" + i + "_";
+      // set as given, the way DB_URL is in an embedded or local setup
+      System.setProperty(prefix + "DB_URL", "jdbc:mysql://localhost:"
+              + databases[i].getConfiguration().getPort() + "/upic?serverTimezone=UTC");
+    }
+    System.setProperty("DB_USERNAME", "root");
+    System.setProperty("DB_PASSWORD", "");
+    System.setProperty("DB_SHARDS", "1");
+    System.setProperty("DB_POOL_INITIAL_SIZE", "1");
+    // records our rideID layout before any ride is written, as opening the storage would
+    assertNull(new LiftRideDAO().checkRideIDLayout());
+  }
+
+  /**
+   * Stops our databases
+   * @throws Exception if a database failed to stop
+   */
+  @AfterAll
+  static void stopDatabases() throws Exception {
+    for (DB database : databases) {
+      if (database != null) {
+        database.stop();
+      }
+    }
+  }
+
+  /**
+   * Empties both shards and goes back to routing to a single one
+   * @throws Exception if a shard could not be emptied
+   */
+  @BeforeEach
+  void emptyShards() throws Exception {
+    for (int i = 0; i < databases.length; i++) {
+      try (Connection conn = DBCPDataSource.getAnyShard(i).getPrimary().getConnection();
+           Statement statement = conn.createStatement()) {
+        statement.executeUpdate("DELETE FROM liftrides");
+        statement.executeUpdate("DELETE FROM rideforwards");
+      }
+    }
+    DBCPDataSource.setShardCount(1);
+  }
+
+  /**
+   * Goes back to routing to a single shard for the next test
+   */
+  @AfterEach
+  void resetShards() {
+    DBCPDataSource.setShardCount(1);
+  }
+
+  /**
+   * Grows from 1 shard to 2 and shrinks back, checking every rideID after each rebalance
+   * @throws Exception if a skier's rides could not be read
+   */
+  @Test
+  void everyRideIDSurvivesGrowingAndShrinking() throws Exception {
+    writeRides("before");
+    DBCPDataSource.setShardCount(2);
+    long moved = new ShardRebalancer(1).rebalance();
+    // without any skier moving there would be nothing to check
+    assertTrue(moved > 0, "no rides moved growing to 2 shards");
+    assertEveryRideFound();
+
+    writeRides("grown");
+    DBCPDataSource.setShardCount(1);
+    moved = new ShardRebalancer(2).rebalance();
+    assertTrue(moved > 0, "no rides moved shrinking to 1 shard");
+    assertEveryRideFound();
+    for (int skier = 1; skier <= SKIERS; skier++) {
+      assertEquals(2 * RIDES_PER_SKIER, countSkierRides(skier), "rides of skier " + skier);
+    }
+
+    // a rerun has nothing left to move
+    assertEquals(0, new ShardRebalancer(2).rebalance());
+    // shard 1's old rideIDs would collide with the ones a new shard 1 hands out
+    DBCPDataSource.setShardCount(2);
+    assertEquals(-1, new ShardRebalancer(1).rebalance());
+  }
+
+  /**
+   * Moves a ride whose idempotency key another skier's ride already holds on the target shard
+   * @throws Exception if a skier's rides could not be read
+   */
+  @Test
+  void movedRideKeepsItsOwnRowWhenItsKeyIsTakenOnTheTarget() throws Exception {
+    int mover = skierMovingTo(1, 1);
+    int other = skierMovingTo(1, mover + 1);
+    write(new LiftRideInput(mover, 1, 7, 100), "shared");
+    DBCPDataSource.setShardCount(2);
+    // keys are only unique per shard, so another skier's ride can hold the same one there
+    write(new LiftRideInput(other, 2, 9, 200), "shared");
+
+    assertEquals(1, new ShardRebalancer(1).rebalance());
+    assertEveryRideFound();
+    assertEquals(1, countSkierRides(mover));
+    assertEquals(1, countSkierRides(other));
+    // rerunning the move finds the copy it made before instead of copying the ride again
+    assertEquals(0, new ShardRebalancer(1).rebalance());
+  }
+
+  /**
+   * Replays an idempotency key, once with the same ride and once with a different one
+   * @throws Exception if a skier's rides could not be read
+   */
+  @Test
+  void replayedKeyIsFoundWithoutAnyUrlFlags() throws Exception {
+    LiftRideInput ride = new LiftRideInput(1, 1, 3, 30);
+    write(ride, "replayed");
+    assertFalse(ride.isDuplicate());
+
+    LiftRideInput replay = new LiftRideInput(1, 1, 3, 30);
+    replay.setRequestKey("replayed");
+    int rideID = liftDAO.createLiftRide(replay);
+    assertTrue(replay.isDuplicate());
+    assertTrue(written.containsKey(rideID));
+
+    LiftRideInput different = new LiftRideInput(2, 4, 5, 60);
+    different.setRequestKey("replayed");
+    assertEquals(rideID, liftDAO.createLiftRide(different));
+    assertTrue(different.isDuplicate());
+    assertEquals(1, countSkierRides(1));
+    assertEquals(0, countSkierRides(2));
+  }
+
+  /**
+   * Checks a DB_LEGACY_MAX_RIDE_ID other than the one the stored rideIDs were handed out with is
+   * refused, by the storage and by the rebalancer
+   * @throws Exception if the recorded layout could not be changed
+   */
+  @Test
+  void anotherLegacyMaxIsRefused() throws Exception {
+    try (Connection conn = DBCPDataSource.getShard(0).getPrimary().getConnection();
+         Statement statement = conn.createStatement()) {
+      statement.executeUpdate("UPDATE rideidlayout SET legacyMaxRideID = 1000");
+      try {
+        assertNotNull(liftDAO.checkRideIDLayout(), "a different legacy max was accepted");
+        assertEquals(-1, new ShardRebalancer(1).rebalance());
+      } finally {
+        statement.executeUpdate("UPDATE rideidlayout SET legacyMaxRideID = 0");
+      }
+    }
+    assertNull(liftDAO.checkRideIDLayout());
+  }
+
+  /**
+   * Writes RIDES_PER_SKIER rides for every skier through the current layout, half of them with
+   * an idempotency key
+   * @param round is a String naming this round of rides, making their keys unique
+   */
+  private void writeRides(String round) {
+    for (int skier = 1; skier <= SKIERS; skier++) {
+      for (int i = 0; i < RIDES_PER_SKIER; i++) {
+        LiftRideInput ride = new LiftRideInput(skier, 1 + skier % 5, 1 + i, 10 * skier + i);
+        write(ride, i % 2 == 0 ? round + "-" + skier + "-" + i : null);
+      }
+    }
+  }
+
+  /**
+   * Writes a ride and remembers the rideID it was handed out under
+   * @param ride is the ride being written
+   * @param requestKey is the ride's idempotency key, or null for none
+   */
+  private void write(LiftRideInput ride, String requestKey) {
+    ride.setRequestKey(requestKey);
+    int rideID = liftDAO.createLiftRide(ride);
+    assertTrue(rideID > 0, "failed writing a ride of skier " + ride.getSkierID());
+    written.put(rideID, new LiftRide(rideID, ride.getSkierID(), ride.getResortID(),
+            ride.getLiftID(), ride.getTime()));
+  }
+
+  /**
+   * Checks every rideID ever handed out still finds the ride it was handed out for
+   */
+  private void assertEveryRideFound() {
+    for (LiftRide expected : written.values()) {
+      LiftRide found = liftDAO.getLiftRide(expected.getLiftRideId());
+      assertNotNull(found, "rideID " + expected.getLiftRideId() + " not found");
+      assertEquals(expected.getSkier(), found.getSkier());
+      assertEquals(expected.getResort(), found.getResort());
+      assertEquals(expected.getLiftID(), found.getLiftID());
+      assertEquals(expected.getTime(), found.getTime());
+    }
+  }
+
+  /**
+   * @param skier is the ID of the skier
+   * @return the number of rides found for the skier on their current shard
+   * @throws Exception if the rides could not be read
+   */
+  private int countSkierRides(int skier) throws Exception {
+    AtomicInteger count = new AtomicInteger();
+    assertTrue(liftDAO.streamLiftRides(skier, 0, 0,
+            (rideID, skierID, resort, lift, time) -> count.incrementAndGet()));
+    return count.get();
+  }
+
+  /**
+   * @param shard is the index of the shard the skier has to move to when growing to 2 shards
+   * @param from is the first skierID to consider
+   * @return the first skierID from the given one that moves to the shard
+   */
+  private static int skierMovingTo(int shard, int from) {
+    int skier = from;
+    while (DBCPDataSource.shardOf(skier, 2) != shard) {
+      skier++;
+    }
+    return skier;
+  }
+}
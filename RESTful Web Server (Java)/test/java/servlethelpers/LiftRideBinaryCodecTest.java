@@ -0,0 +1,330 @@
+package servlethelpers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that everything LiftRideBinaryCodec and LiftRideBinaryWriter encode reads back the
+ * same, that malformed or cut short bodies are refused, and that the binary format is only
+ * picked for Accept headers that really ask for it.
+ */
+public class LiftRideBinaryCodecTest {
+  private static final int[] VARINTS = {0, 1, 127, 128, 300, 16383, 16384, 2097151, 2097152,
+      Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+
+  /**
+   * Encodes integers around every varint length boundary, and negative ones, and reads them back
+   * @throws IOException if an encoded integer could not be read
+   */
+  @Test
+  void varintsRoundTrip() throws IOException {
+    LiftRideBinaryCodec.Encoder encoder = new LiftRideBinaryCodec.Encoder(4);
+    for (int value : VARINTS) {
+      encoder.varint(value);
+    }
+    // every 4 integers read back as one ride input
+    ByteArrayInputStream in = new ByteArrayInputStream(encoder.toByteArray());
+    List<Integer> read = new ArrayList<>();
+    for (int i = 0; i < VARINTS.length / 4; i++) {
+      LiftRideInput ride = LiftRideBinaryCodec.readInput(in);
+      read.addAll(Arrays.asList(ride.getSkierID(), ride.getResortID(), ride.getLiftID(),
+              ride.getTime()));
+    }
+    assertEquals(-1, in.read());
+    assertArrayEquals(VARINTS, read.stream().mapToInt(Integer::intValue).toArray());
+  }
+
+  /**
+   * Checks the encoded length of integers, 7 bits per byte and 5 bytes for negative ones
+   */
+  @Test
+  void varintsTakeOneByteForEverySevenBits() {
+    assertArrayEquals(new byte[] {0}, encode(0));
+    assertArrayEquals(new byte[] {127}, encode(127));
+    assertArrayEquals(new byte[] {(byte) 0x80, 1}, encode(128));
+    assertArrayEquals(new byte[] {(byte) 0xac, 2}, encode(300));
+    assertEquals(5, encode(-1).length);
+    assertEquals(5, encode(Integer.MAX_VALUE).length);
+  }
+
+  /**
+   * Round trips a single ride input and a list of them, the bodies of a POST
+   * @throws IOException if an encoded body could not be read
+   */
+  @Test
+  void inputsRoundTrip() throws IOException {
+    LiftRideInput ride = new LiftRideInput(123456, 7, 40, 360);
+    assertSameInput(ride, LiftRideBinaryCodec.readInput(
+            new ByteArrayInputStream(LiftRideBinaryCodec.encodeInput(ride))));
+
+    List<LiftRideInput> rides = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      rides.add(new LiftRideInput(i * 1000, i % 10, i % 40, i));
+    }
+    byte[] body = LiftRideBinaryCodec.encodeInputs(rides);
+    List<LiftRideInput> read = LiftRideBinaryCodec.readInputs(new ByteArrayInputStream(body),
+            rides.size());
+    assertEquals(rides.size(), read.size());
+    for (int i = 0; i < rides.size(); i++) {
+      assertSameInput(rides.get(i), read.get(i));
+    }
+    // a max below the number of rides refuses the list
+    assertNull(LiftRideBinaryCodec.readInputs(new ByteArrayInputStream(body), rides.size() - 1));
+  }
+
+  /**
+   * Round trips a single ride, a single chunk list, an empty list and a created ride
+   * @throws IOException if an encoded body could not be read
+   */
+  @Test
+  void ridesRoundTrip() throws IOException {
+    LiftRide ride = new LiftRide(987654, 1234, 5, 17, 300);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    LiftRideBinaryCodec.writeRide(ride, out);
+    assertSameRide(ride, LiftRideBinaryCodec.readRide(new ByteArrayInputStream(out.toByteArray())));
+
+    LiftRideList list = rideList(300);
+    out.reset();
+    LiftRideBinaryCodec.writeRideList(list, out);
+    assertSameRides(list, readRideList(out));
+
+    out.reset();
+    LiftRideBinaryCodec.writeRideList(new LiftRideList(), out);
+    assertArrayEquals(new byte[] {0}, out.toByteArray());
+    assertTrue(readRideList(out).rides.isEmpty());
+
+    out.reset();
+    LiftRideBinaryCodec.writeCreated(ride, out);
+    LiftRideList created = readRideList(out);
+    assertEquals(1, created.rides.size());
+    assertSameRide(ride, created.rides.get(0));
+  }
+
+  /**
+   * Streams enough rides through a LiftRideBinaryWriter to take several chunks and reads them
+   * back as one list
+   * @throws IOException if the list could not be written or read
+   */
+  @Test
+  void chunkedListsRoundTrip() throws IOException {
+    LiftRideList list = rideList(5000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeChunked(list, out);
+    assertSameRides(list, readRideList(out));
+    // each extra chunk adds its own count to the bytes of a single chunk list
+    ByteArrayOutputStream single = new ByteArrayOutputStream();
+    LiftRideBinaryCodec.writeRideList(list, single);
+    assertTrue(out.size() > single.size(), "expected more than one chunk");
+
+    out.reset();
+    writeChunked(new LiftRideList(), out);
+    assertArrayEquals(new byte[] {0}, out.toByteArray());
+  }
+
+  /**
+   * Round trips the results of a batch, with and without IDs and messages
+   * @throws IOException if the results could not be written or read
+   */
+  @Test
+  void batchResultsRoundTrip() throws IOException {
+    LiftRideBatchResult result = new LiftRideBatchResult();
+    result.addCreated(42);
+    result.addAccepted();
+    result.addError(400, "Invalid lift ride: skierID must be positive \u00e9");
+    result.addCreated(Integer.MAX_VALUE);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    LiftRideBinaryCodec.writeBatchResult(result, out);
+    LiftRideBatchResult read = LiftRideBinaryCodec.readBatchResult(
+            new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(result.getResults().size(), read.getResults().size());
+    for (int i = 0; i < result.getResults().size(); i++) {
+      LiftRideBatchResult.Item expected = result.getResults().get(i);
+      LiftRideBatchResult.Item actual = read.getResults().get(i);
+      assertEquals(expected.getStatus(), actual.getStatus());
+      assertEquals(expected.getLiftRideId(), actual.getLiftRideId());
+      assertEquals(expected.getMessage(), actual.getMessage());
+    }
+  }
+
+  /**
+   * Cuts encoded bodies short at every byte and checks each one is refused rather than read as
+   * something else
+   * @throws IOException if the bodies could not be written
+   */
+  @Test
+  void truncatedBodiesAreRefused() throws IOException {
+    byte[] input = LiftRideBinaryCodec.encodeInput(new LiftRideInput(300000, 20, 300, 1000));
+    for (int length = 0; length < input.length; length++) {
+      byte[] cut = Arrays.copyOf(input, length);
+      assertThrows(EOFException.class,
+          () -> LiftRideBinaryCodec.readInput(new ByteArrayInputStream(cut)));
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeChunked(rideList(50), out);
+    byte[] list = out.toByteArray();
+    // without its final 0 a list was cut short, even with every ride in it
+    for (int length = 0; length < list.length; length++) {
+      byte[] cut = Arrays.copyOf(list, length);
+      assertThrows(EOFException.class,
+          () -> LiftRideBinaryCodec.readRideList(new ByteArrayInputStream(cut)));
+    }
+
+    LiftRideBatchResult result = new LiftRideBatchResult();
+    result.addError(503, "Busy");
+    out.reset();
+    LiftRideBinaryCodec.writeBatchResult(result, out);
+    byte[] cutMessage = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+    assertThrows(EOFException.class,
+        () -> LiftRideBinaryCodec.readBatchResult(new ByteArrayInputStream(cutMessage)));
+  }
+
+  /**
+   * Feeds in varints longer than any integer and lists with negative chunk counts
+   * @throws IOException if a list of inputs with a negative count could not be read
+   */
+  @Test
+  void malformedBodiesAreRefused() throws IOException {
+    byte[] tooLong = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1, 1, 1};
+    assertThrows(IOException.class,
+        () -> LiftRideBinaryCodec.readInput(new ByteArrayInputStream(tooLong)));
+    assertThrows(IOException.class,
+        () -> LiftRideBinaryCodec.readRideList(new ByteArrayInputStream(tooLong)));
+
+    byte[] negativeCount = encode(-1);
+    assertThrows(IOException.class,
+        () -> LiftRideBinaryCodec.readRideList(new ByteArrayInputStream(negativeCount)));
+    assertNull(LiftRideBinaryCodec.readInputs(new ByteArrayInputStream(negativeCount), 100));
+  }
+
+  /**
+   * Checks which Accept headers pick our binary format over JSON
+   */
+  @Test
+  void onlyAcceptHeadersAskingForTheBinaryFormatPickIt() {
+    assertTrue(LiftRideBinaryCodec.accepts("application/x-liftride"));
+    assertTrue(LiftRideBinaryCodec.accepts("Application/X-LiftRide"));
+    assertTrue(LiftRideBinaryCodec.accepts("application/json;q=0.5, application/x-liftride"));
+    assertTrue(LiftRideBinaryCodec.accepts("application/x-liftride;v=1;q=0.8, */*;q=0.1"));
+    assertTrue(LiftRideBinaryCodec.accepts(" application/x-liftride ; q=1.0 ,application/json"));
+
+    assertFalse(LiftRideBinaryCodec.accepts(null));
+    assertFalse(LiftRideBinaryCodec.accepts(""));
+    assertFalse(LiftRideBinaryCodec.accepts("*/*"));
+    assertFalse(LiftRideBinaryCodec.accepts("application/json"));
+    assertFalse(LiftRideBinaryCodec.accepts("application/x-liftride;q=0"));
+    assertFalse(LiftRideBinaryCodec.accepts("application/x-liftride; Q=0.000, */*"));
+    assertFalse(LiftRideBinaryCodec.accepts("application/x-liftrides"));
+    assertFalse(LiftRideBinaryCodec.accepts("application/x-liftride+json"));
+    assertFalse(LiftRideBinaryCodec.accepts("text/plain;format=application/x-liftride"));
+    assertFalse(LiftRideBinaryCodec.accepts("application/x-liftride;q=0.4, application/*"));
+    assertFalse(LiftRideBinaryCodec.accepts(
+            "application/x-liftride;q=0.4, application/json;q=0.9, */*;q=0.1"));
+
+    assertTrue(LiftRideBinaryCodec.isBinary("application/x-liftride"));
+    assertTrue(LiftRideBinaryCodec.isBinary("application/x-liftride; charset=binary"));
+    assertFalse(LiftRideBinaryCodec.isBinary("application/x-liftrides"));
+    assertFalse(LiftRideBinaryCodec.isBinary(null));
+  }
+
+  /**
+   * @param value is the integer to encode
+   * @return the integer encoded as a varint
+   */
+  private static byte[] encode(int value) {
+    return new LiftRideBinaryCodec.Encoder(5).varint(value).toByteArray();
+  }
+
+  /**
+   * @param size is the number of rides in the list
+   * @return a list of rides with IDs and times growing through several varint lengths
+   */
+  private static LiftRideList rideList(int size) {
+    LiftRideList list = new LiftRideList();
+    for (int i = 1; i <= size; i++) {
+      list.rides.add(new LiftRide(i * 997, i, i % 10, i % 40, i % 420));
+    }
+    return list;
+  }
+
+  /**
+   * Writes a list through a LiftRideBinaryWriter, the way a streamed GET does
+   * @param list is the list of rides to write
+   * @param out is the output stream written to
+   * @throws IOException if there was an issue writing to the output stream
+   */
+  private static void writeChunked(LiftRideList list, ByteArrayOutputStream out)
+          throws IOException {
+    LiftRideBinaryWriter writer = new LiftRideBinaryWriter(out);
+    writer.beginList();
+    for (LiftRide ride : list.rides) {
+      writer.writeRide(ride.getLiftRideId(), ride.getSkier(), ride.getResort(), ride.getLiftID(),
+              ride.getTime());
+    }
+    writer.endList();
+  }
+
+  /**
+   * @param out holds an encoded list of rides
+   * @return the list read back
+   * @throws IOException if the list could not be read
+   */
+  private static LiftRideList readRideList(ByteArrayOutputStream out) throws IOException {
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    LiftRideList list = LiftRideBinaryCodec.readRideList(in);
+    assertEquals(-1, in.read(), "bytes left after the list");
+    return list;
+  }
+
+  /**
+   * Checks two inputs hold the same skier, resort, lift and time
+   * @param expected is the input that was encoded
+   * @param actual is the input read back
+   */
+  private static void assertSameInput(LiftRideInput expected, LiftRideInput actual) {
+    assertEquals(expected.getSkierID(), actual.getSkierID());
+    assertEquals(expected.getResortID(), actual.getResortID());
+    assertEquals(expected.getLiftID(), actual.getLiftID());
+    assertEquals(expected.getTime(), actual.getTime());
+  }
+
+  /**
+   * Checks two lists hold the same rides in the same order
+   * @param expected is the list that was encoded
+   * @param actual is the list read back
+   */
+  private static void assertSameRides(LiftRideList expected, LiftRideList actual) {
+    assertEquals(expected.rides.size(), actual.rides.size());
+    for (int i = 0; i < expected.rides.size(); i++) {
+      assertSameRide(expected.rides.get(i), actual.rides.get(i));
+    }
+  }
+
+  /**
+   * Checks two rides hold the same ID, skier, resort, lift and time
+   * @param expected is the ride that was encoded
+   * @param actual is the ride read back
+   */
+  private static void assertSameRide(LiftRide expected, LiftRide actual) {
+    assertEquals(expected.getLiftRideId(), actual.getLiftRideId());
+    assertEquals(expected.getSkier(), actual.getSkier());
+    assertEquals(expected.getResort(), actual.getResort());
+    assertEquals(expected.getLiftID(), actual.getLiftID());
+    assertEquals(expected.getTime(), actual.getTime());
+  }
+}